@@ -20,15 +20,41 @@ import commonutils.PhysicsTools;
 import hitoridenshi.executionmanager.OutputInterface;
 import hitoridenshi.guimanager.GUIManager;
 import hitoridenshi.simulationmanager.CalculationConditions;
+import hitoridenshi.simulationmanager.FieldTerm;
+import hitoridenshi.simulationmanager.LinearGrading;
+import hitoridenshi.simulationmanager.ProgressNotifierInterface;
+import hitoridenshi.simulationmanager.QuantumDotWell;
+import hitoridenshi.simulationmanager.ScatteringModel;
+import hitoridenshi.simulationmanager.ShardMerger;
+import hitoridenshi.simulationmanager.SimulationControl;
+import hitoridenshi.simulationmanager.SimulationEngine;
 import hitoridenshi.simulationmanager.SimulationManager;
+import hitoridenshi.simulationmanager.SimulationOptions;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 import nu.studer.java.util.OrderedProperties;
 
 /**
@@ -37,6 +63,11 @@ import nu.studer.java.util.OrderedProperties;
  */
 public class ConsoleManager implements OutputInterface
 {
+    //the time given to the simulation to write the finished starting positions when the program is interrupted, in seconds
+    private static final long SHUTDOWN_TIMEOUT = 60;
+    //the number of different electric fields kept in memory during a batch
+    private static final int MAXIMUM_CACHED_FIELDS = 64;
+    
     /**
      * Creates a CalculationCondition object from passed properties
      * @param p_properties the properly formatted properties
@@ -44,7 +75,7 @@ public class ConsoleManager implements OutputInterface
      * @throws StringIndexOutOfBoundsException
      * @throws NumberFormatException 
      */    
-    private CalculationConditions getCalculationConditions(OrderedProperties p_properties) throws StringIndexOutOfBoundsException, NumberFormatException 
+    public static CalculationConditions getCalculationConditions(OrderedProperties p_properties) throws StringIndexOutOfBoundsException, NumberFormatException 
     {
         boolean isElectron = (p_properties.getProperty("simulated_particle").equals("electron"));
         boolean zeroAtFront = (p_properties.getProperty("zero_position").equals("front"));
@@ -59,32 +90,427 @@ public class ConsoleManager implements OutputInterface
         BigDecimal bufferWindowSize = new BigDecimal(p_properties.getProperty("bufferwindow width"));
         BigDecimal effectiveMassDouble = new BigDecimal(p_properties.getProperty("effective_mass"));
         BigDecimal lifetimeNumber = new BigDecimal(p_properties.getProperty("lifetime"));
+        BigDecimal temperature = new BigDecimal(p_properties.getProperty("temperature", "300"));
+        CalculationConditions.VelocitySampling velocitySampling = CalculationConditions.VelocitySampling.valueOf(p_properties.getProperty("velocity_sampling", "random").strip().toUpperCase());
+        double importanceShift = Double.parseDouble(p_properties.getProperty("importance_shift", "0").strip());
+        long randomSeed = Long.parseLong(p_properties.getProperty("random_seed", "42").strip());
+        ScatteringModel scattering = new ScatteringModel(Double.parseDouble(p_properties.getProperty("mobility", "0").strip()), Double.parseDouble(p_properties.getProperty("acoustic_scattering_rate", "0").strip()), Double.parseDouble(p_properties.getProperty("optical_scattering_rate", "0").strip()), Double.parseDouble(p_properties.getProperty("optical_phonon_energy", "0").strip()));
         BigDecimal frontBangapNumber = new BigDecimal(p_properties.getProperty("front_bandgap"));
         BigDecimal minimumBandgapNumber = new BigDecimal(p_properties.getProperty("minimum_bandgap"));
         BigDecimal backBangapNumber = new BigDecimal(p_properties.getProperty("back_bandgap"));
         
         int numberSimulatedParticle = Integer.parseInt(p_properties.getProperty("number_of_simulated_particles"));
+        List<FieldTerm> fieldTerms = getFieldTerms(p_properties, unitPrefix.getMultiplier(), isElectron ? PhysicsTools.Q.negate() : PhysicsTools.Q);
 
-        return new CalculationConditions(isElectron, zeroAtFront, unitPrefix, numberSimulatedParticle, effectiveMassDouble, lifetimeNumber, bufferWindowSize, totalSampleWidth, frontBangapNumber, minimumBandgapNumber, backBangapNumber, biasVoltagesList, notchesList, initialPositionsList);
+        return new CalculationConditions(isElectron, zeroAtFront, unitPrefix, numberSimulatedParticle, effectiveMassDouble, lifetimeNumber, temperature, velocitySampling, importanceShift, randomSeed, scattering, fieldTerms, bufferWindowSize, totalSampleWidth, frontBangapNumber, minimumBandgapNumber, backBangapNumber, biasVoltagesList, notchesList, initialPositionsList);
+    }
+    
+    /**
+     * Read the terms added to the electric field of the absorbers: the band gradings, the quantum dots and the field profiles
+     * @param p_properties the properly formatted properties
+     * @param p_abscissaMultiplier the multiplier converting the positions into m
+     * @param p_charge the charge of the simulated particles
+     * @return the terms, in SI units
+     * @throws UncheckedIOException if a field profile cannot be read
+     * @throws IllegalArgumentException if a term cannot be read
+     */
+    private static List<FieldTerm> getFieldTerms(OrderedProperties p_properties, BigDecimal p_abscissaMultiplier, BigDecimal p_charge) throws UncheckedIOException, IllegalArgumentException
+    {
+        List<FieldTerm> terms = new ArrayList<>();
+        
+        for (String grading: listProperty(p_properties, "band_gradings"))
+        {
+            String[] values = grading.split("\\h*,\\h*");
+            if (values.length != 4)
+            {
+                throw new IllegalArgumentException("a band grading is given as start,energy,end,energy: "+grading);
+            }
+            terms.add(new LinearGrading(new BigDecimal(values[0]).multiply(p_abscissaMultiplier), new BigDecimal(values[1]).multiply(PhysicsTools.EV), new BigDecimal(values[2]).multiply(p_abscissaMultiplier), new BigDecimal(values[3]).multiply(PhysicsTools.EV), p_charge));
+        }
+        for (String dot: listProperty(p_properties, "quantum_dots"))
+        {
+            String[] values = dot.split("\\h*,\\h*");
+            if (values.length != 3)
+            {
+                throw new IllegalArgumentException("a quantum dot is given as position,depth,width: "+dot);
+            }
+            terms.add(new QuantumDotWell(new BigDecimal(values[0]).multiply(p_abscissaMultiplier), new BigDecimal(values[1]).multiply(PhysicsTools.EV), new BigDecimal(values[2]).multiply(p_abscissaMultiplier), p_charge));
+        }
+        for (String profile: listProperty(p_properties, "field_profiles"))
+        {
+            //the profiles are looked for in the input folder, with the SCAPS files
+            File profileFile = new File(profile);
+            if (!profileFile.isAbsolute() && p_properties.getProperty("input_folder") != null)
+            {
+                profileFile = new File(p_properties.getProperty("input_folder"), profile);
+            }
+            try
+            {
+                terms.add(FieldTerm.readProfile(profileFile, p_abscissaMultiplier));
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            catch (DataFormatException ex)
+            {
+                throw new IllegalArgumentException("the field profile "+profileFile+" is not a txt file");
+            }
+        }
+        
+        return terms;
+    }
+    
+    /**
+     * @param p_properties the properly formatted properties
+     * @param p_key a property listing values separated by semicolons
+     * @return the values, empty if the property is not given
+     */
+    private static List<String> listProperty(OrderedProperties p_properties, String p_key)
+    {
+        String property = p_properties.getProperty(p_key, "").strip();
+        
+        return property.isEmpty() ? new ArrayList<>() : Arrays.asList(property.split("\\h*;\\h*"));
+    }
+    
+    /**
+     * @param p_simulations the futures of the simulations
+     * @return true if all the simulations have ended
+     */
+    private static boolean areDone(List<Future<?>> p_simulations)
+    {
+        boolean done = true;
+        for (Future<?> simulation: p_simulations)
+        {
+            done &= simulation.isDone();
+        }
+        
+        return done;
+    }
+    
+    /**
+     * Let the user control the simulations from the terminal
+     * Typing pause, resume or cancel stops or restarts the workers at their next step. Interrupting the program (Ctrl+C) or terminating it cancels the simulations and waits for the finished starting positions to be written before exiting.
+     * @param p_controls the controls of the simulations
+     * @param p_simulations the futures of the simulations
+     */
+    private void listenToCommands(final List<SimulationControl> p_controls, final List<Future<?>> p_simulations)
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!areDone(p_simulations))
+                {
+                    System.out.println("Cancelling the simulation, the finished starting positions are kept...");
+                    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT);
+                    for (SimulationControl control: p_controls)
+                    {
+                        control.cancel();
+                    }
+                    try
+                    {
+                        for (Future<?> simulation: p_simulations)
+                        {
+                            simulation.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    catch (InterruptedException | ExecutionException | TimeoutException ex)
+                    {
+                        System.err.println("The simulation did not end properly before exiting: "+ex);
+                    }
+                }
+            }
+        }, "SimulationShutdown"));
+        
+        Thread commandReader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+                try
+                {
+                    String command;
+                    while (!areDone(p_simulations) && (command = input.readLine()) != null)
+                    {
+                        switch (command.trim().toLowerCase())
+                        {
+                            case "pause":
+                                for (SimulationControl control: p_controls)
+                                {
+                                    control.pause();
+                                }
+                                System.out.println("Simulation paused, type resume to go on.");
+                                break;
+                            case "resume":
+                                for (SimulationControl control: p_controls)
+                                {
+                                    control.resume();
+                                }
+                                System.out.println("Simulation resumed.");
+                                break;
+                            case "cancel":
+                                for (SimulationControl control: p_controls)
+                                {
+                                    control.cancel();
+                                }
+                                System.out.println("Cancelling the simulation, the finished starting positions are kept...");
+                                break;
+                            case "":
+                                break;
+                            default:
+                                System.out.println("Unknown command "+command+", type pause, resume or cancel.");
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    //no terminal to read the commands from, the simulation can still be cancelled by interrupting it
+                }
+            }
+        }, "SimulationCommands");
+        commandReader.setDaemon(true);
+        commandReader.start();
+        
+        System.out.println("Type pause, resume or cancel to control the simulation. Ctrl+C cancels it, keeping the finished starting positions.");
+    }
+    
+    /**
+     * List the configuration files to run: the file given, or the configuration files of the folder given, followed by the files given after the options
+     * @param args the currated arguments
+     * @return the configuration files, those of a folder being sorted by name
+     */
+    private static List<File> listConfigurations(String[] args)
+    {
+        List<File> configurationFiles = new ArrayList<>();
+        
+        File firstFile = new File(args[0]);
+        if (firstFile.isDirectory())
+        {
+            File[] folderFiles = firstFile.listFiles(new FileFilter()
+            {
+                @Override
+                public boolean accept(File p_file)
+                {
+                    return p_file.isFile() && (p_file.getName().endsWith(".conf") || p_file.getName().endsWith(".properties"));
+                }
+            });
+            if (folderFiles != null)
+            {
+                Arrays.sort(folderFiles);
+                configurationFiles.addAll(Arrays.asList(folderFiles));
+            }
+        }
+        else
+        {
+            configurationFiles.add(firstFile);
+        }
+        
+        for (int i = 4 ; i < args.length ; i += 1)
+        {
+            configurationFiles.add(new File(args[i]));
+        }
+        
+        return configurationFiles;
+    }
+    
+    /**
+     * Read a configuration file
+     * @param p_configurationFile the file
+     * @param p_shard the shard given on the command line, with priority over the one of the file, or null
+     * @return the configuration
+     * @throws IOException if the file cannot be read
+     */
+    private static OrderedProperties loadConfiguration(File p_configurationFile, String p_shard) throws IOException
+    {
+        OrderedProperties properties = new OrderedProperties();
+        try (Reader fileReader = new FileReader(p_configurationFile))
+        {
+            properties.load(fileReader);
+        }
+        if (p_shard != null)
+        {
+            properties.setProperty("shard", p_shard);
+        }
+        
+        return properties;
+    }
+    
+    /**
+     * Run several configurations at the same time, their starting positions sharing the workers, and print a summary once they have all ended
+     * The configurations sweeping some parameters are expanded in one configuration per combination. The electric fields used by several configurations are only read once. A configuration that cannot be read, or whose output folder is already used by another one, is reported and skipped.
+     * @param p_configurationFiles the configuration files
+     * @param p_shard the shard to calculate, or null
+     * @param p_merge true to merge the shards of each configuration instead of simulating
+     */
+    private void runBatch(List<File> p_configurationFiles, String p_shard, boolean p_merge)
+    {
+        Map<String, String> outcomes = new LinkedHashMap<>();
+        Map<String, OrderedProperties> configurations = new LinkedHashMap<>();
+        for (File configurationFile: p_configurationFiles)
+        {
+            String name = configurationFile.getPath();
+            try
+            {
+                OrderedProperties properties = loadConfiguration(configurationFile, p_shard);
+                if (ParameterSweep.isSweep(properties))
+                {
+                    ParameterSweep sweep = new ParameterSweep(name, properties);
+                    configurations.putAll(sweep.getVariants());
+                    for (Map.Entry<String, String> duplicate: sweep.getDuplicates().entrySet())
+                    {
+                        outcomes.put(duplicate.getKey(), "same results as "+duplicate.getValue()+", not simulated again");
+                    }
+                    System.out.println(name+" sweeps "+(sweep.getVariants().size() + sweep.getDuplicates().size())+" combinations, "+sweep.getVariants().size()+" of them giving different results. The folder of each combination is listed in "+ParameterSweep.INDEX_FILE+".");
+                }
+                else
+                {
+                    configurations.put(name, properties);
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                outcomes.put(name, "not run, the configuration cannot be read: "+ex);
+            }
+        }
+        
+        System.out.println("Running a batch of "+configurations.size()+" configurations.");
+        SimulationEngine engine = new SimulationEngine(MAXIMUM_CACHED_FIELDS);
+        Map<String, SimulationManager> simulations = new LinkedHashMap<>();
+        List<SimulationControl> controls = new ArrayList<>();
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        Set<String> outputFolders = new HashSet<>();
+        long startTime = System.nanoTime();
+        
+        for (Map.Entry<String, OrderedProperties> configuration: configurations.entrySet())
+        {
+            final String name = configuration.getKey();
+            OrderedProperties properties = configuration.getValue();
+            //each message is prefixed with its configuration, the simulations writing in the terminal at the same time
+            ProgressNotifierInterface notifier = new ProgressNotifierInterface()
+            {
+                @Override
+                public void updateProgress(int p_workerID, double p_workerProgress, double p_globalProgress)
+                {
+                }
+                
+                @Override
+                public void sendMessage(String p_message)
+                {
+                    for (String line: p_message.split("\n"))
+                    {
+                        if (!line.isEmpty())
+                        {
+                            System.out.println("["+name+"] "+line);
+                        }
+                    }
+                }
+            };
+            
+            try
+            {
+                CalculationConditions conditions = getCalculationConditions(properties);
+                SimulationOptions options = new SimulationOptions(properties.toJdkProperties());
+                String outputFolderAddress = properties.getProperty("output_folder");
+                //two simulations writing in the same folder would mix their results and their journal
+                if (!outputFolders.add(new File(outputFolderAddress).getCanonicalPath()))
+                {
+                    outcomes.put(name, "not run, its output folder is already used by another configuration of the batch");
+                    continue;
+                }
+                
+                if (p_merge)
+                {
+                    new ShardMerger(outputFolderAddress, conditions, options, notifier).run();
+                    outcomes.put(name, "merged");
+                }
+                else
+                {
+                    SimulationManager simulationLauncher = new SimulationManager(properties.getProperty("input_folder"), outputFolderAddress, conditions, options, notifier, engine);
+                    simulations.put(name, simulationLauncher);
+                    controls.add(simulationLauncher.getControl());
+                    futures.put(name, simulationLauncher.start());
+                    outcomes.put(name, null);
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                outcomes.put(name, "not run, the configuration cannot be read: "+ex);
+            }
+        }
+        
+        if (!futures.isEmpty())
+        {
+            listenToCommands(controls, new ArrayList<>(futures.values()));
+        }
+        for (Map.Entry<String, SimulationManager> simulation: simulations.entrySet())
+        {
+            try
+            {
+                futures.get(simulation.getKey()).get();
+                outcomes.put(simulation.getKey(), simulation.getValue().getOutcome());
+            }
+            catch (ExecutionException ex)
+            {
+                Logger.getLogger(ConsoleManager.class.getName()).log(Level.SEVERE, null, ex);
+                outcomes.put(simulation.getKey(), "failed: "+ex.getCause());
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                outcomes.put(simulation.getKey(), "interrupted");
+            }
+        }
+        engine.close();
+        
+        System.out.println(String.format("%nSummary of the batch (%.1f s):", (System.nanoTime() - startTime) / 1e9));
+        for (Map.Entry<String, String> outcome: outcomes.entrySet())
+        {
+            System.out.println("\t"+outcome.getKey()+": "+outcome.getValue());
+        }
+        System.out.println("\t"+engine.describe().replace("\n", "\n\t").trim());
     }
     
     @Override
     public void startOutput(String[] args)
     {
-        File propertiesFile = new File(args[0]);
+        String shard = args.length > 1 ? args[1] : null;
+        boolean merge = args.length > 2 && args[2] != null;
+        List<File> configurationFiles = listConfigurations(args);
+        
         try
         {
-            Reader fileReader = new FileReader(propertiesFile);
-            OrderedProperties properties = new OrderedProperties();
-            properties.load(fileReader);
+            //a single configuration without sweep is run alone, the other cases as a batch
+            OrderedProperties properties = configurationFiles.size() == 1 ? loadConfiguration(configurationFiles.get(0), shard) : null;
+            if (properties == null || ParameterSweep.isSweep(properties))
+            {
+                runBatch(configurationFiles, shard, merge);
+                return;
+            }
             
             CalculationConditions conditions = getCalculationConditions(properties);
+            SimulationOptions options = new SimulationOptions(properties.toJdkProperties());
             String inputFolderAddress = properties.getProperty("input_folder");
             String outputFolderAddress = properties.getProperty("output_folder");
             
-            SimulationManager simulationLauncher = new SimulationManager(inputFolderAddress, outputFolderAddress, conditions, this);
-            Thread simulationThread = new Thread(simulationLauncher);
-            simulationThread.start();
+            if (merge)
+            {
+                new ShardMerger(outputFolderAddress, conditions, options, this).run();
+            }
+            else
+            {
+                SimulationManager simulationLauncher = new SimulationManager(inputFolderAddress, outputFolderAddress, conditions, options, this);
+                Future<?> simulation = simulationLauncher.start();
+                listenToCommands(Collections.singletonList(simulationLauncher.getControl()), Collections.<Future<?>>singletonList(simulation));
+                //the simulation threads do not keep the program alive, so the console waits for the end of the simulation
+                simulation.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+            Logger.getLogger(ConsoleManager.class.getName()).log(Level.SEVERE, null, ex);
         }
         catch (FileNotFoundException ex)
         {
@@ -104,6 +530,11 @@ public class ConsoleManager implements OutputInterface
             System.err.println("Verify you have written a number in the sample size field, the buffer+window size field and the number of simulated particle field.");
             System.exit(0);
         }
+        catch (IllegalArgumentException ex)
+        {
+            System.err.println("Verify the value of the simulation options: "+ex.getMessage());
+            System.exit(0);
+        }
     }
     
     @Override
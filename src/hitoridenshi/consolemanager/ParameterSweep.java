@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.consolemanager;
+
+import hitoridenshi.simulationmanager.SimulationManager;
+import hitoridenshi.simulationmanager.SimulationOptions;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import nu.studer.java.util.OrderedProperties;
+
+/**
+ * Expands a configuration whose physical parameters are given as lists or ranges into one configuration per combination of their values
+ * The swept parameters accept values separated by semicolons, each of them being a single value or a range start:stop:step, the stop being included. The simulated particle accepts electron;hole, and the velocity sampling a list of its modes.
+ * Each combination writes its results in a subfolder of the output folder named after its values. The combinations giving the same results, like a bandgap sweep for holes or lifetimes giving the same number of steps, are only simulated once, and the index of the sweep tells in which folder the results of each combination are.
+ * @author Alban Lafuente
+ */
+class ParameterSweep
+{
+    static final List<String> SWEPT_PARAMETERS = Arrays.asList("simulated_particle", "effective_mass", "lifetime", "temperature", "velocity_sampling", "importance_shift", "random_seed", "mobility", "front_bandgap", "minimum_bandgap", "back_bandgap");
+    static final String INDEX_FILE = "Sweep.properties";
+    private static final int MAXIMUM_COMBINATIONS = 10000;
+    
+    //the configurations to simulate, by name
+    private final Map<String, OrderedProperties> m_variants = new LinkedHashMap<>();
+    //the combinations not simulated, with the name of the configuration giving their results
+    private final Map<String, String> m_duplicates = new LinkedHashMap<>();
+    
+    /**
+     * Expand a configuration and write the index of the sweep in its output folder
+     * @param p_name the name of the configuration
+     * @param p_properties the configuration, with some parameters swept
+     * @throws IOException if the index cannot be written
+     * @throws IllegalArgumentException if a value or a range cannot be read, or if the sweep is too large
+     */
+    ParameterSweep(String p_name, OrderedProperties p_properties) throws IOException, IllegalArgumentException
+    {
+        List<String> sweptParameters = new ArrayList<>();
+        List<List<String>> sweptValues = new ArrayList<>();
+        int numberOfCombinations = 1;
+        for (String parameter: SWEPT_PARAMETERS)
+        {
+            String property = p_properties.getProperty(parameter);
+            List<String> values = property != null ? parseValues(property) : new ArrayList<>();
+            if (values.size() > 1)
+            {
+                sweptParameters.add(parameter);
+                sweptValues.add(values);
+                numberOfCombinations *= values.size();
+                if (numberOfCombinations > MAXIMUM_COMBINATIONS)
+                {
+                    throw new IllegalArgumentException("the sweep has more than "+MAXIMUM_COMBINATIONS+" combinations");
+                }
+            }
+        }
+        
+        String outputFolder = p_properties.getProperty("output_folder");
+        Map<String, String> variantOfResults = new HashMap<>();
+        OrderedProperties index = new OrderedProperties();
+        //the combinations are numbered with the first swept parameter varying the slowest
+        for (int combination = 0 ; combination < numberOfCombinations ; combination += 1)
+        {
+            OrderedProperties variant = OrderedProperties.copyOf(p_properties);
+            StringBuilder label = new StringBuilder();
+            int remainder = combination;
+            for (int i = sweptParameters.size() - 1 ; i >= 0 ; i -= 1)
+            {
+                List<String> values = sweptValues.get(i);
+                variant.setProperty(sweptParameters.get(i), values.get(remainder % values.size()));
+                label.insert(0, (i > 0 ? "_" : "")+sweptParameters.get(i)+"-"+values.get(remainder % values.size()));
+                remainder /= values.size();
+            }
+            variant.setProperty("output_folder", new File(outputFolder, label.toString()).getPath());
+            
+            //everything the results depend on, the starting positions and the fields being the same for all the combinations
+            String results = SimulationManager.resultsIdentifier(ConsoleManager.getCalculationConditions(variant), new SimulationOptions(variant.toJdkProperties()));
+            String name = p_name+" ["+label+"]";
+            if (variantOfResults.containsKey(results))
+            {
+                m_duplicates.put(name, variantOfResults.get(results));
+                index.setProperty(label.toString(), new File(m_variants.get(variantOfResults.get(results)).getProperty("output_folder")).getName());
+            }
+            else
+            {
+                variantOfResults.put(results, name);
+                m_variants.put(name, variant);
+                index.setProperty(label.toString(), label.toString());
+            }
+        }
+        
+        File indexFile = new File(outputFolder, INDEX_FILE);
+        if (!indexFile.getParentFile().mkdirs() && !indexFile.getParentFile().isDirectory())
+        {
+            throw new IOException("Impossible to create the output folder "+outputFolder);
+        }
+        try (Writer indexWriter = new OutputStreamWriter(new FileOutputStream(indexFile), StandardCharsets.UTF_8))
+        {
+            index.store(indexWriter, "Subfolder of "+outputFolder+" containing the results of each combination of the swept parameters of "+p_name);
+        }
+    }
+    
+    /**
+     * @param p_properties a configuration
+     * @return true if one of the parameters of the configuration is given more than one value
+     */
+    static boolean isSweep(OrderedProperties p_properties)
+    {
+        boolean sweep = false;
+        
+        for (String parameter: SWEPT_PARAMETERS)
+        {
+            String property = p_properties.getProperty(parameter);
+            sweep |= property != null && (property.contains(";") || property.contains(":"));
+        }
+        
+        return sweep;
+    }
+    
+    /**
+     * Read the values of a swept parameter
+     * @param p_values values separated by semicolons, each of them being a single value or a range start:stop:step
+     * @return the values, the ranges being expanded with exact decimal steps
+     * @throws IllegalArgumentException if a range cannot be read or never reaches its stop
+     */
+    static List<String> parseValues(String p_values) throws IllegalArgumentException
+    {
+        List<String> values = new ArrayList<>();
+        
+        for (String element: p_values.strip().split("\\h*;\\h*"))
+        {
+            String[] range = element.split("\\h*:\\h*");
+            if (range.length == 1)
+            {
+                values.add(element);
+            }
+            else if (range.length == 3)
+            {
+                BigDecimal start = new BigDecimal(range[0]);
+                BigDecimal stop = new BigDecimal(range[1]);
+                BigDecimal step = new BigDecimal(range[2]);
+                if (step.signum() == 0 || stop.subtract(start).signum() * step.signum() < 0)
+                {
+                    throw new IllegalArgumentException("the range "+element+" never reaches its stop");
+                }
+                
+                for (BigDecimal value = start ; step.signum() > 0 ? value.compareTo(stop) <= 0 : value.compareTo(stop) >= 0 ; value = value.add(step))
+                {
+                    values.add(value.toPlainString());
+                    if (values.size() > MAXIMUM_COMBINATIONS)
+                    {
+                        throw new IllegalArgumentException("the range "+element+" has more than "+MAXIMUM_COMBINATIONS+" values");
+                    }
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException(element+" is neither a value nor a range start:stop:step");
+            }
+        }
+        
+        return values;
+    }
+    
+    /**
+     * @return the configurations to simulate, by name
+     */
+    Map<String, OrderedProperties> getVariants()
+    {
+        return m_variants;
+    }
+    
+    /**
+     * @return the combinations not simulated because another one gives the same results, with the name of this other one
+     */
+    Map<String, String> getDuplicates()
+    {
+        return m_duplicates;
+    }
+}
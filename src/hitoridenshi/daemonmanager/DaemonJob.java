@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.daemonmanager;
+
+import hitoridenshi.simulationmanager.CalculationConditions;
+import hitoridenshi.simulationmanager.ProgressNotifierInterface;
+import hitoridenshi.simulationmanager.SimulationControl;
+import hitoridenshi.simulationmanager.SimulationOptions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A simulation submitted to the daemon, with its state, its progress and its last messages
+ * @author Alban Lafuente
+ */
+class DaemonJob implements ProgressNotifierInterface
+{
+    enum State {QUEUED, RUNNING, FINISHED, FAILED, CANCELLED}
+    
+    //the messages of a job are kept for its status, the oldest ones being dropped
+    private static final int MAXIMUM_MESSAGES = 200;
+    
+    private final int m_id;
+    private final int m_priority;
+    private final String m_name;
+    private final CalculationConditions m_conditions;
+    private final SimulationOptions m_options;
+    private final String m_inputFolder;
+    private final String m_outputFolder;
+    private final long m_submissionTime = System.currentTimeMillis();
+    private final Deque<String> m_messages = new ArrayDeque<>();
+    private State m_state = State.QUEUED;
+    private SimulationControl m_control = null;
+    private long m_startTime = 0;
+    private long m_endTime = 0;
+    private volatile double m_progress = 0;
+    
+    /**
+     * @param p_id the number of the job, given in the order of submission
+     * @param p_priority the priority of the job, the jobs of higher priority being run first
+     * @param p_name the name of the job, given by the user
+     * @param p_conditions the conditions of the simulation
+     * @param p_options the options of the simulation
+     * @param p_inputFolder the folder containing the SCAPS files
+     * @param p_outputFolder the folder in which the results are written
+     */
+    DaemonJob(int p_id, int p_priority, String p_name, CalculationConditions p_conditions, SimulationOptions p_options, String p_inputFolder, String p_outputFolder)
+    {
+        m_id = p_id;
+        m_priority = p_priority;
+        m_name = p_name;
+        m_conditions = p_conditions;
+        m_options = p_options;
+        m_inputFolder = p_inputFolder;
+        m_outputFolder = p_outputFolder;
+    }
+    
+    int getID()
+    {
+        return m_id;
+    }
+    
+    int getPriority()
+    {
+        return m_priority;
+    }
+    
+    CalculationConditions getConditions()
+    {
+        return m_conditions;
+    }
+    
+    SimulationOptions getOptions()
+    {
+        return m_options;
+    }
+    
+    String getInputFolder()
+    {
+        return m_inputFolder;
+    }
+    
+    String getOutputFolder()
+    {
+        return m_outputFolder;
+    }
+    
+    synchronized State getState()
+    {
+        return m_state;
+    }
+    
+    /**
+     * Mark the job as running, unless it has been cancelled while queued
+     * @param p_control the control of the simulation of the job
+     * @return true if the simulation has to be run
+     */
+    synchronized boolean start(SimulationControl p_control)
+    {
+        boolean started = false;
+        
+        if (m_state == State.QUEUED)
+        {
+            m_state = State.RUNNING;
+            m_control = p_control;
+            m_startTime = System.currentTimeMillis();
+            started = true;
+        }
+        
+        return started;
+    }
+    
+    /**
+     * Mark the job as ended
+     * @param p_failed true if the simulation could not be run
+     */
+    synchronized void finish(boolean p_failed)
+    {
+        if (p_failed)
+        {
+            m_state = State.FAILED;
+        }
+        else
+        {
+            m_state = m_control != null && m_control.isCancelled() ? State.CANCELLED : State.FINISHED;
+        }
+        m_endTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Cancel the job: a queued job will not be run, a running one stops at the next step of its particles, its finished starting positions being written
+     * @return false if the job had already ended
+     */
+    synchronized boolean cancel()
+    {
+        boolean cancelled = true;
+        
+        if (m_state == State.QUEUED)
+        {
+            m_state = State.CANCELLED;
+            m_endTime = System.currentTimeMillis();
+        }
+        else if (m_state == State.RUNNING)
+        {
+            m_control.cancel();
+        }
+        else
+        {
+            cancelled = false;
+        }
+        
+        return cancelled;
+    }
+    
+    /**
+     * @return false if the job is not running
+     */
+    synchronized boolean pause()
+    {
+        if (m_state == State.RUNNING)
+        {
+            m_control.pause();
+        }
+        
+        return m_state == State.RUNNING;
+    }
+    
+    /**
+     * @return false if the job is not running
+     */
+    synchronized boolean resume()
+    {
+        if (m_state == State.RUNNING)
+        {
+            m_control.resume();
+        }
+        
+        return m_state == State.RUNNING;
+    }
+    
+    /**
+     * Describe the job, in the format of a properties file
+     * @param p_withMessages true to add the last messages of the simulation
+     * @return the description
+     */
+    synchronized String describe(boolean p_withMessages)
+    {
+        StringBuilder description = new StringBuilder();
+        description.append("id=").append(m_id).append("\n");
+        description.append("name=").append(m_name).append("\n");
+        description.append("priority=").append(m_priority).append("\n");
+        description.append("state=").append(m_state == State.RUNNING && m_control.getState() == SimulationControl.State.PAUSED ? "PAUSED" : m_state.toString()).append("\n");
+        description.append("progress=").append(String.format("%.1f", 100 * m_progress)).append("%\n");
+        description.append("output_folder=").append(m_outputFolder).append("\n");
+        description.append("waiting_time=").append(seconds((m_startTime != 0 ? m_startTime : (m_endTime != 0 ? m_endTime : System.currentTimeMillis())) - m_submissionTime)).append("\n");
+        if (m_startTime != 0)
+        {
+            description.append("running_time=").append(seconds((m_endTime != 0 ? m_endTime : System.currentTimeMillis()) - m_startTime)).append("\n");
+        }
+        
+        if (p_withMessages)
+        {
+            int messageNumber = 0;
+            for (String message: m_messages)
+            {
+                description.append("message.").append(messageNumber).append("=").append(message.replace("\n", " ").trim()).append("\n");
+                messageNumber += 1;
+            }
+        }
+        
+        return description.toString();
+    }
+    
+    private static String seconds(long p_milliseconds)
+    {
+        return String.format("%.1f s", p_milliseconds / 1000.0);
+    }
+    
+    @Override
+    public void updateProgress(int p_workerID, double p_workerProgress, double p_globalProgress)
+    {
+        m_progress = p_globalProgress;
+    }
+    
+    @Override
+    public synchronized void sendMessage(String p_message)
+    {
+        m_messages.addLast(p_message);
+        if (m_messages.size() > MAXIMUM_MESSAGES)
+        {
+            m_messages.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.daemonmanager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hitoridenshi.consolemanager.ConsoleManager;
+import hitoridenshi.executionmanager.OutputInterface;
+import hitoridenshi.simulationmanager.CalculationConditions;
+import hitoridenshi.simulationmanager.SimulationEngine;
+import hitoridenshi.simulationmanager.SimulationManager;
+import hitoridenshi.simulationmanager.SimulationOptions;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nu.studer.java.util.OrderedProperties;
+
+/**
+ * Runs the software as a daemon, simulating the configurations sent by other programs on the same machine
+ * The daemon listens on the loopback interface only. A configuration is submitted by sending the content of its properties file to /jobs, and queued: the jobs run one after the other, by decreasing priority then in the order of submission, each of them using all the processors.
+ * The daemon keeps its worker pools, the code compiled by the JVM and the electric fields already read between the jobs, so that short simulations do not pay for starting the software each time.
+ * @author Alban Lafuente
+ */
+public class DaemonManager implements OutputInterface
+{
+    public static final int DEFAULT_PORT = 8470;
+    private static final int MAXIMUM_CACHED_FIELDS = 64;
+    //the time given to the running job to write its finished starting positions when the daemon is stopped, in seconds
+    private static final long SHUTDOWN_TIMEOUT = 60;
+    
+    private final SimulationEngine m_engine = new SimulationEngine(MAXIMUM_CACHED_FIELDS);
+    private final PriorityBlockingQueue<DaemonJob> m_queue = new PriorityBlockingQueue<>(16, Comparator.comparingInt(DaemonJob::getPriority).reversed().thenComparingInt(DaemonJob::getID));
+    private final Map<Integer, DaemonJob> m_jobs = new LinkedHashMap<>();
+    private final CountDownLatch m_stopped = new CountDownLatch(1);
+    private final long m_startTime = System.currentTimeMillis();
+    private int m_nextID = 1;
+    private volatile boolean m_stopping = false;
+    private volatile DaemonJob m_runningJob = null;
+    
+    @Override
+    public void startOutput(String[] args)
+    {
+        int port = args.length > 3 && args[3] != null ? Integer.parseInt(args[3]) : DEFAULT_PORT;
+        
+        HttpServer server;
+        try
+        {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Impossible to listen on the port "+port+": "+ex.getMessage());
+            return;
+        }
+        server.createContext("/jobs", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange p_exchange) throws IOException
+            {
+                handleJobs(p_exchange);
+            }
+        });
+        server.createContext("/status", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange p_exchange) throws IOException
+            {
+                respond(p_exchange, 200, describe());
+            }
+        });
+        server.createContext("/shutdown", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange p_exchange) throws IOException
+            {
+                if (!p_exchange.getRequestMethod().equals("POST"))
+                {
+                    respond(p_exchange, 405, "error=use POST to stop the daemon\n");
+                    return;
+                }
+                respond(p_exchange, 200, "state=STOPPING\n");
+                stop();
+            }
+        });
+        server.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                stop();
+                try
+                {
+                    m_stopped.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "DaemonShutdown"));
+        
+        sendMessage("Daemon listening on http://"+InetAddress.getLoopbackAddress().getHostAddress()+":"+port+", submit a configuration with POST /jobs.");
+        try
+        {
+            runJobs();
+        }
+        finally
+        {
+            server.stop(0);
+            m_engine.close();
+            sendMessage("Daemon stopped.");
+            m_stopped.countDown();
+        }
+    }
+    
+    /**
+     * Run the queued jobs one after the other until the daemon is stopped
+     */
+    private void runJobs()
+    {
+        while (!m_stopping)
+        {
+            DaemonJob job;
+            try
+            {
+                job = m_queue.poll(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            if (job != null && !m_stopping)
+            {
+                SimulationManager simulation = new SimulationManager(job.getInputFolder(), job.getOutputFolder(), job.getConditions(), job.getOptions(), job, m_engine);
+                if (job.start(simulation.getControl()))
+                {
+                    m_runningJob = job;
+                    if (m_stopping)
+                    {
+                        job.cancel();
+                    }
+                    sendMessage("Job "+job.getID()+" started.");
+                    try
+                    {
+                        simulation.run();
+                        job.finish(false);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        Logger.getLogger(DaemonManager.class.getName()).log(Level.SEVERE, null, ex);
+                        job.sendMessage("The simulation failed: "+ex);
+                        job.finish(true);
+                    }
+                    m_runningJob = null;
+                    sendMessage("Job "+job.getID()+" ended: "+job.getState().toString().toLowerCase()+".");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stop the daemon: the queued jobs are cancelled, the running one stops once its finished starting positions are written
+     */
+    private void stop()
+    {
+        m_stopping = true;
+        
+        List<DaemonJob> queuedJobs = new ArrayList<>();
+        m_queue.drainTo(queuedJobs);
+        for (DaemonJob job: queuedJobs)
+        {
+            job.cancel();
+        }
+        
+        DaemonJob runningJob = m_runningJob;
+        if (runningJob != null)
+        {
+            runningJob.cancel();
+        }
+    }
+    
+    /**
+     * Answer the requests on the jobs:
+     * GET /jobs lists the jobs, POST /jobs submits a configuration (priority and name given in the query, 0 and the number of the job by default)
+     * GET /jobs/id gives the state of a job with its last messages, POST /jobs/id/cancel, /jobs/id/pause and /jobs/id/resume control it
+     * @param p_exchange the request
+     * @throws IOException
+     */
+    private void handleJobs(HttpExchange p_exchange) throws IOException
+    {
+        String[] path = p_exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+        String method = p_exchange.getRequestMethod();
+        
+        if (path.length == 1 && method.equals("GET"))
+        {
+            StringBuilder list = new StringBuilder();
+            synchronized (m_jobs)
+            {
+                for (DaemonJob job: m_jobs.values())
+                {
+                    list.append(job.describe(false)).append("\n");
+                }
+            }
+            respond(p_exchange, 200, list.toString());
+        }
+        else if (path.length == 1 && method.equals("POST"))
+        {
+            submit(p_exchange);
+        }
+        else if (path.length >= 2)
+        {
+            DaemonJob job;
+            try
+            {
+                synchronized (m_jobs)
+                {
+                    job = m_jobs.get(Integer.parseInt(path[1]));
+                }
+            }
+            catch (NumberFormatException ex)
+            {
+                job = null;
+            }
+            
+            if (job == null)
+            {
+                respond(p_exchange, 404, "error=no job "+path[1]+"\n");
+            }
+            else if (path.length == 2 && method.equals("GET"))
+            {
+                respond(p_exchange, 200, job.describe(true));
+            }
+            else if (path.length == 3 && method.equals("POST"))
+            {
+                boolean done;
+                switch (path[2])
+                {
+                    case "cancel":
+                        done = job.cancel();
+                        m_queue.remove(job);
+                        break;
+                    case "pause":
+                        done = job.pause();
+                        break;
+                    case "resume":
+                        done = job.resume();
+                        break;
+                    default:
+                        respond(p_exchange, 404, "error=unknown command "+path[2]+", use cancel, pause or resume\n");
+                        return;
+                }
+                respond(p_exchange, done ? 200 : 409, done ? job.describe(false) : "error=the job "+job.getID()+" is "+job.getState().toString().toLowerCase()+"\n");
+            }
+            else
+            {
+                respond(p_exchange, 405, "error=unsupported request\n");
+            }
+        }
+        else
+        {
+            respond(p_exchange, 405, "error=unsupported request\n");
+        }
+    }
+    
+    /**
+     * Queue the configuration sent in the body of a request, after checking it can be read
+     * @param p_exchange the request
+     * @throws IOException
+     */
+    private void submit(HttpExchange p_exchange) throws IOException
+    {
+        if (m_stopping)
+        {
+            respond(p_exchange, 503, "error=the daemon is stopping\n");
+            return;
+        }
+        
+        Map<String, String> query = parseQuery(p_exchange.getRequestURI().getRawQuery());
+        OrderedProperties properties = new OrderedProperties();
+        DaemonJob job;
+        try
+        {
+            properties.load(new InputStreamReader(p_exchange.getRequestBody(), StandardCharsets.UTF_8));
+            CalculationConditions conditions = ConsoleManager.getCalculationConditions(properties);
+            SimulationOptions options = new SimulationOptions(properties.toJdkProperties());
+            int priority = query.containsKey("priority") ? Integer.parseInt(query.get("priority")) : 0;
+            if (properties.getProperty("input_folder") == null || properties.getProperty("output_folder") == null)
+            {
+                throw new IllegalArgumentException("the input and output folders have to be given");
+            }
+            
+            synchronized (m_jobs)
+            {
+                int id = m_nextID;
+                m_nextID += 1;
+                job = new DaemonJob(id, priority, query.getOrDefault("name", "job"+id), conditions, options, properties.getProperty("input_folder"), properties.getProperty("output_folder"));
+                m_jobs.put(id, job);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            respond(p_exchange, 400, "error=invalid configuration: "+ex+"\n");
+            return;
+        }
+        
+        m_queue.add(job);
+        sendMessage("Job "+job.getID()+" queued with priority "+job.getPriority()+".");
+        respond(p_exchange, 201, job.describe(false));
+    }
+    
+    private static Map<String, String> parseQuery(String p_query)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        
+        if (p_query != null)
+        {
+            for (String parameter: p_query.split("&"))
+            {
+                String[] keyValue = parameter.split("=", 2);
+                if (keyValue.length == 2)
+                {
+                    parameters.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8), URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+                }
+            }
+        }
+        
+        return parameters;
+    }
+    
+    private static void respond(HttpExchange p_exchange, int p_code, String p_body) throws IOException
+    {
+        byte[] body = p_body.getBytes(StandardCharsets.UTF_8);
+        p_exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        p_exchange.sendResponseHeaders(p_code, body.length);
+        try (OutputStream output = p_exchange.getResponseBody())
+        {
+            output.write(body);
+        }
+    }
+    
+    /**
+     * @return the state of the daemon, in the format of a properties file
+     */
+    private String describe()
+    {
+        int queued = 0;
+        int ended = 0;
+        synchronized (m_jobs)
+        {
+            for (DaemonJob job: m_jobs.values())
+            {
+                queued += job.getState() == DaemonJob.State.QUEUED ? 1 : 0;
+                ended += job.getState() != DaemonJob.State.QUEUED && job.getState() != DaemonJob.State.RUNNING ? 1 : 0;
+            }
+        }
+        DaemonJob runningJob = m_runningJob;
+        
+        StringBuilder description = new StringBuilder();
+        description.append("state=").append(m_stopping ? "STOPPING" : "RUNNING").append("\n");
+        description.append("uptime=").append(String.format("%.1f s", (System.currentTimeMillis() - m_startTime) / 1000.0)).append("\n");
+        description.append("running_job=").append(runningJob != null ? runningJob.getID() : "none").append("\n");
+        description.append("queued_jobs=").append(queued).append("\n");
+        description.append("ended_jobs=").append(ended).append("\n");
+        description.append(m_engine.describe());
+        
+        return description.toString();
+    }
+    
+    @Override
+    public void updateProgress(int p_workerID, double p_workerProgress, double p_globalProgress)
+    {
+        //the progress of each job is kept in the job itself
+    }
+    
+    @Override
+    public void sendMessage(String p_message)
+    {
+        System.out.println(p_message);
+    }
+}
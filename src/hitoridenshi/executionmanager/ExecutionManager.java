@@ -17,7 +17,9 @@
 package hitoridenshi.executionmanager;
 
 import hitoridenshi.consolemanager.ConsoleManager;
+import hitoridenshi.daemonmanager.DaemonManager;
 import hitoridenshi.guimanager.GUIManager;
+import java.util.Arrays;
 import net.opentsdb.tools.ArgP;
 
 /**
@@ -33,10 +35,14 @@ public class ExecutionManager {
     {
         final ArgP argParser = new ArgP();
         argParser.addOption("--console-mode", "To execute in console, without loading the GUI.");
-        argParser.addOption("--file", "To give a properties file to load. As priority over -f.");
+        argParser.addOption("--file", "path", "To give a properties file to load, or a folder of them to run in console as a batch. As priority over -f. In console, other properties files can be given after the options.");
         argParser.addOption("--help", "The command you just used.");
+        argParser.addOption("--shard", "i/N", "To calculate only the shard i (from 0 to N-1) of a simulation split between N processes. Implies --console-mode.");
+        argParser.addOption("--merge", "To merge the part files written by the shards into the results, instead of simulating. Implies --console-mode.");
+        argParser.addOption("--daemon", "To run as a daemon simulating the configurations submitted over HTTP on the loopback interface.");
+        argParser.addOption("--port", "port", "The port on which the daemon listens, "+DaemonManager.DEFAULT_PORT+" by default.");
         argParser.addOption("-c", "eq. to --console-mode");
-        argParser.addOption("-f", "eq. to --file");
+        argParser.addOption("-f", "path", "eq. to --file");
         
         //parsing the args to get the options passed to the program
         try
@@ -57,7 +63,9 @@ public class ExecutionManager {
         }
         else
         {
-            String[] curratedArgument = new String[1];
+            //the file or folder to load, then the shard to calculate and the merge request, only used by the console, then the port of the daemon, then the other files of a batch
+            String[] curratedArgument = new String[4];
+            int firstOtherFile = 0;
             if (argParser.has("--file"))
             {
                 curratedArgument[0] = argParser.get("--file");
@@ -66,13 +74,36 @@ public class ExecutionManager {
             {
                 curratedArgument[0] = argParser.get("-f");
             }
+            else if (args.length > 0)
+            {
+                curratedArgument[0] = args[0];
+                firstOtherFile = 1;
+            }
             else
             {
                 curratedArgument[0] = "ConfigurationFiles/default.conf";
             }
+            if (argParser.has("--shard"))
+            {
+                curratedArgument[1] = argParser.get("--shard");
+            }
+            if (argParser.has("--merge"))
+            {
+                curratedArgument[2] = "merge";
+            }
+            if (argParser.has("--port"))
+            {
+                curratedArgument[3] = argParser.get("--port");
+            }
+            curratedArgument = Arrays.copyOf(curratedArgument, 4 + args.length - firstOtherFile);
+            System.arraycopy(args, firstOtherFile, curratedArgument, 4, args.length - firstOtherFile);
 
             OutputInterface appToLaunch;
-            if (argParser.has("--console-mode") || argParser.has("-c"))
+            if (argParser.has("--daemon"))
+            {
+                appToLaunch = new DaemonManager();
+            }
+            else if (argParser.has("--console-mode") || argParser.has("-c") || argParser.has("--shard") || argParser.has("--merge"))
             {
                 appToLaunch = new ConsoleManager();
             }
@@ -18,6 +18,7 @@ package hitoridenshi.guimanager;
 
 import hitoridenshi.simulationmanager.CalculationConditions;
 import hitoridenshi.simulationmanager.SimulationManager;
+import hitoridenshi.simulationmanager.SimulationOptions;
 import commonutils.PhysicsTools;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -74,6 +75,8 @@ public class FXMLParametersWindowController
     @FXML private TextField outputFolder;
     
     private MainWindowCall m_mainApp;
+    //the last loaded configuration, to keep the fields that have no counterpart in the window (such as the simulation options)
+    private OrderedProperties m_loadedProperties = new OrderedProperties();
     private PhysicsTools.UnitsPrefix m_previouslySelectedUnit = PhysicsTools.UnitsPrefix.UNITY;
     
     /**
@@ -322,10 +325,10 @@ public class FXMLParametersWindowController
             PhysicsTools.UnitsPrefix passedUnit = PhysicsTools.UnitsPrefix.selectPrefix((String) unitselec.getValue());
         
             CalculationConditions conditions = new CalculationConditions(isElectron, zeroFront, passedUnit, numberSimulatedParticle, effectiveMassDouble, lifetimeNumber, bufferWindowSize, totalSampleWidth, frontBangapNumber, notchBandgapNumber, backBangapNumber, biasVoltagesList, notchesList, initialPositionsList);
-            SimulationManager simulationLauncher = new SimulationManager(inputFolderAddress, outputFolderAddress, conditions, (ProgressNotifierInterface) m_mainApp);
-            m_mainApp.launchOnGoingSimulationWindow(simulationLauncher.getNumberOfWorker(), tempProp);
-            Thread simulationThread = new Thread(simulationLauncher);
-            simulationThread.start();
+            SimulationOptions options = new SimulationOptions(tempProp.toJdkProperties());
+            SimulationManager simulationLauncher = new SimulationManager(inputFolderAddress, outputFolderAddress, conditions, options, (ProgressNotifierInterface) m_mainApp);
+            m_mainApp.launchOnGoingSimulationWindow(simulationLauncher.getNumberOfWorker(), tempProp, simulationLauncher.getControl());
+            simulationLauncher.start();
         }
         catch (NumberFormatException ex)
         {
@@ -337,6 +340,10 @@ public class FXMLParametersWindowController
             System.err.println("Verify that each field is properly filled.");
 //            ex.printStackTrace();
         }
+        catch (IllegalArgumentException ex)
+        {
+            System.err.println("Verify the value of the simulation options: "+ex.getMessage());
+        }
     }
     
     /**
@@ -394,7 +401,7 @@ public class FXMLParametersWindowController
      */
     private OrderedProperties writeConfigToProperties ()
     {
-        OrderedProperties extractedProperties = new OrderedProperties();
+        OrderedProperties extractedProperties = OrderedProperties.copyOf(m_loadedProperties);
                 
         extractedProperties.setProperty("abscissa_unit", ((String) unitselec.getValue()));
         extractedProperties.setProperty("material",  ((String) materialselec.getValue()));
@@ -424,6 +431,8 @@ public class FXMLParametersWindowController
      */
     private void loadProperties (OrderedProperties p_properties)
     {
+        m_loadedProperties = p_properties;
+        
         unitselec.setValue(p_properties.getProperty("abscissa_unit"));
         materialselec.setValue(p_properties.getProperty("material"));
 
@@ -31,6 +31,7 @@ import javafx.scene.text.Font;
 import javafx.stage.Stage;
 import nu.studer.java.util.OrderedProperties;
 import hitoridenshi.executionmanager.OutputInterface;
+import hitoridenshi.simulationmanager.SimulationControl;
 
 /**
  *
@@ -96,7 +97,7 @@ public class GUIManager extends Application implements MainWindowCall, OutputInt
     }
     
     @Override
-    public void launchOnGoingSimulationWindow(int p_workerAmount, OrderedProperties p_tempConfigProperties)
+    public void launchOnGoingSimulationWindow(int p_workerAmount, OrderedProperties p_tempConfigProperties, SimulationControl p_control)
     {
         FXMLLoader simulationTrackerWindowLoader = new FXMLLoader(GUIManager.class.getResource("FXMLOnGoingSimulationWindow.fxml"));
         
@@ -105,9 +106,9 @@ public class GUIManager extends Application implements MainWindowCall, OutputInt
             Parent simulationWindowFxml = simulationTrackerWindowLoader.load();
             SimulationWindowController controller = simulationTrackerWindowLoader.getController();
             m_simulationWindowController = controller;
-            controller.initialize(p_tempConfigProperties, this, p_workerAmount);
+            controller.initialize(p_tempConfigProperties, this, p_workerAmount, p_control);
             int longestColumn = p_workerAmount - p_workerAmount / 2;
-            m_mainStage.setScene(new Scene(simulationWindowFxml, 800, 525+longestColumn*50));
+            m_mainStage.setScene(new Scene(simulationWindowFxml, 800, 575+longestColumn*50));
 	    m_mainStage.show();
         }
         catch (IOException ex)
@@ -116,18 +117,24 @@ public class GUIManager extends Application implements MainWindowCall, OutputInt
         }
     }
     
+    /**
+     * Store the progress to be shown in the simulation window at its next frame. Called from the simulation threads, it never touches the controls directly.
+     */
     @Override
     public void updateProgress (int p_workerID, double p_workerProgress, double p_globalProgress)
     {
-        m_simulationWindowController.updateProgressIndividual(p_workerID, p_workerProgress, p_globalProgress);
+        m_simulationWindowController.getUpdater().postProgress(p_workerID, p_workerProgress, p_globalProgress);
     }
     
+    /**
+     * Queue a message to be written in the simulation window at its next frame. Called from the simulation threads, it never touches the controls directly.
+     */
     @Override
     public void sendMessage (String p_message)
     {
         if (p_message != null)
         {
-            m_simulationWindowController.updateMessage(p_message);
+            m_simulationWindowController.getUpdater().postMessage(p_message);
         }
     }
 }
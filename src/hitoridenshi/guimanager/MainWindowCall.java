@@ -16,6 +16,7 @@
  */
 package hitoridenshi.guimanager;
 
+import hitoridenshi.simulationmanager.SimulationControl;
 import javafx.stage.Stage;
 import nu.studer.java.util.OrderedProperties;
 
@@ -37,6 +38,7 @@ public interface MainWindowCall
      * launch the window to track the simulation
      * @param p_workerAmount the number of core used by the simulation
      * @param p_tempConfigProperties a properties with the parameters of the simulation just launched
+     * @param p_control the control of the simulation, to pause, resume or cancel it from the window
      */
-    void launchOnGoingSimulationWindow(int p_workerAmount, OrderedProperties p_tempConfigProperties);
+    void launchOnGoingSimulationWindow(int p_workerAmount, OrderedProperties p_tempConfigProperties, SimulationControl p_control);
 }
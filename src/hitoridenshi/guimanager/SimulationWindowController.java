@@ -16,7 +16,12 @@
  */
 package hitoridenshi.guimanager;
 
+import hitoridenshi.simulationmanager.SimulationControl;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import javafx.fxml.FXML;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextArea;
@@ -37,10 +42,18 @@ public class SimulationWindowController
     @FXML private VBox mainpbarbox;
     @FXML private VBox workerpbarsleft;
     @FXML private VBox workerpbarsright;
+    @FXML private Button pausebutton;
+    @FXML private Button cancelbutton;
     
     private OrderedProperties m_tempConfigProp;
     private MainWindowCall m_mainWindow;
     private ProgressBar[] m_workerPBarArray;
+    private SimulationWindowUpdater m_updater;
+    private SimulationControl m_control;
+    
+    //the TextArea only keeps the last messages, the length of each of them being kept to remove the oldest ones
+    static final int MAX_LOG_MESSAGES = 5000;
+    private final Deque<Integer> m_logMessageLengths = new ArrayDeque<>();
     
     /**
      * initialize the window tracking the ongoing simulation and its controller
@@ -48,11 +61,13 @@ public class SimulationWindowController
      * @param p_tempConfigProperties properties containing the parameter window fields, for the callback
      * @param p_mainWindowCall the main stage, for callback
      * @param p_workerAmount the number of core used
+     * @param p_control the control of the simulation, for the pause and cancel buttons
      */
-    void initialize(OrderedProperties p_tempConfigProperties, MainWindowCall p_mainWindowCall, int p_workerAmount)
+    void initialize(OrderedProperties p_tempConfigProperties, MainWindowCall p_mainWindowCall, int p_workerAmount, SimulationControl p_control)
     {
         m_tempConfigProp = p_tempConfigProperties;
         m_mainWindow = p_mainWindowCall;
+        m_control = p_control;
         
         mainpbar.prefWidthProperty().bind(mainpbarbox.widthProperty());
         
@@ -87,35 +102,102 @@ public class SimulationWindowController
             workerpbarsright.getChildren().add(currentVBox);
             m_workerPBarArray[workerID] = currentPBar;
         }
+        
+        m_updater = new SimulationWindowUpdater(this, p_workerAmount);
+        m_updater.start();
     }
     
     /**
-     * Update the progress of one of the core (worker) once it finished one of its calculation
-     * @param p_workerID the id of the worker who finished the calculation
+     * @return the updater carrying the updates of the simulation threads to the window
+     */
+    SimulationWindowUpdater getUpdater()
+    {
+        return m_updater;
+    }
+    
+    /**
+     * Update the progress of one of the core (worker), on the JavaFX application thread
+     * @param p_workerID the id of the worker
      * @param p_workerProgress the progress of said worker
-     * @param p_globalProgress the general progress in the whole simulation
      */
-    void updateProgressIndividual (int p_workerID, double p_workerProgress, double p_globalProgress)
+    void updateWorkerProgress (int p_workerID, double p_workerProgress)
     {
-        mainpbar.setProgress(p_globalProgress);
         m_workerPBarArray[p_workerID].setProgress(p_workerProgress);
     }
     
     /**
-     * Write a message in the TextArea of the window
-     * @param p_message the message to be written
+     * Update the general progress in the whole simulation, on the JavaFX application thread
+     * @param p_globalProgress the general progress
+     */
+    void updateGlobalProgress (double p_globalProgress)
+    {
+        mainpbar.setProgress(p_globalProgress);
+    }
+    
+    /**
+     * Write messages in the TextArea of the window, on the JavaFX application thread
+     * Only the last MAX_LOG_MESSAGES messages are kept
+     * @param p_messages the messages to be written
+     */
+    void updateMessages (List<String> p_messages)
+    {
+        StringBuilder currentText = new StringBuilder();
+        for (String message: p_messages)
+        {
+            currentText.append(message).append("\n");
+            m_logMessageLengths.add(message.length() + 1);
+        }
+        consolewindow.appendText(currentText.toString());
+        
+        int removedLength = 0;
+        while (m_logMessageLengths.size() > MAX_LOG_MESSAGES)
+        {
+            removedLength += m_logMessageLengths.poll();
+        }
+        if (removedLength > 0)
+        {
+            consolewindow.deleteText(0, removedLength);
+        }
+    }
+    
+    /**
+     * pause the simulation, or resume it if it is paused
+     */
+    @FXML void togglePause ()
+    {
+        if (m_control.getState() == SimulationControl.State.PAUSED)
+        {
+            m_control.resume();
+            pausebutton.setText("Pause");
+            updateMessages(List.of("Simulation resumed."));
+        }
+        else if (m_control.getState() == SimulationControl.State.RUNNING)
+        {
+            m_control.pause();
+            pausebutton.setText("Resume");
+            updateMessages(List.of("Simulation paused, the workers stop at their next step."));
+        }
+    }
+    
+    /**
+     * cancel the simulation, the starting positions already finished being kept
      */
-    void updateMessage (String p_message)
+    @FXML void cancelSimulation ()
     {
-	String currentText = p_message+"\n";
-	consolewindow.appendText(currentText);
+        m_control.cancel();
+        pausebutton.setDisable(true);
+        cancelbutton.setDisable(true);
+        updateMessages(List.of("Cancelling the simulation, the finished starting positions are kept..."));
     }
     
     /**
      * set the stage to the configuration window, with the configuration saved previously
+     * the simulation still running is cancelled, so that it does not compete with the next one
      */
     @FXML void callparameterswindow ()
     {
+        m_control.cancel();
+        m_updater.stop();
         m_mainWindow.launchParametersWindow(m_tempConfigProp);
     }
     
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.guimanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javafx.animation.AnimationTimer;
+
+/**
+ * Carries the updates of the simulation from the simulation threads to the simulation window
+ * The simulation threads only store the updates: the progress is coalesced into the latest value of each bar, and the messages are queued in a bounded queue, the oldest being dropped when the window cannot keep up.
+ * The updates are applied on the JavaFX application thread, once per frame.
+ * @author Alban Lafuente
+ */
+class SimulationWindowUpdater extends AnimationTimer
+{
+    static final int MESSAGE_BACKLOG = 1000;
+    
+    private final SimulationWindowController m_controller;
+    //progress values, stored as the bits of a double, and a negative value when already applied
+    private final AtomicLongArray m_workerProgress;
+    private final AtomicLong m_globalProgress = new AtomicLong(-1);
+    private final BlockingQueue<String> m_messages = new ArrayBlockingQueue<>(MESSAGE_BACKLOG);
+    private final AtomicLong m_droppedMessages = new AtomicLong(0);
+    
+    /**
+     * @param p_controller the controller of the window to update
+     * @param p_workerAmount the number of worker progress bars
+     */
+    SimulationWindowUpdater(SimulationWindowController p_controller, int p_workerAmount)
+    {
+        m_controller = p_controller;
+        m_workerProgress = new AtomicLongArray(p_workerAmount);
+        for (int i = 0 ; i < p_workerAmount ; i += 1)
+        {
+            m_workerProgress.set(i, -1);
+        }
+    }
+    
+    /**
+     * Store the progress of a worker, replacing the one not yet shown. Can be called from any thread.
+     * @param p_workerID the id of the worker
+     * @param p_workerProgress the progress of the worker
+     * @param p_globalProgress the general progress in the whole simulation
+     */
+    void postProgress(int p_workerID, double p_workerProgress, double p_globalProgress)
+    {
+        m_workerProgress.set(p_workerID, Double.doubleToRawLongBits(p_workerProgress));
+        m_globalProgress.set(Double.doubleToRawLongBits(p_globalProgress));
+    }
+    
+    /**
+     * Queue a message to be written in the window, dropping the oldest one if the queue is full. Can be called from any thread.
+     * @param p_message the message to be written
+     */
+    void postMessage(String p_message)
+    {
+        while (!m_messages.offer(p_message))
+        {
+            if (m_messages.poll() != null)
+            {
+                m_droppedMessages.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Apply the pending updates to the window, called by JavaFX on its application thread at each frame
+     * @param p_now the time of the frame, in nanoseconds
+     */
+    @Override
+    public void handle(long p_now)
+    {
+        long globalProgress = m_globalProgress.getAndSet(-1);
+        for (int workerID = 0 ; workerID < m_workerProgress.length() ; workerID += 1)
+        {
+            long workerProgress = m_workerProgress.getAndSet(workerID, -1);
+            if (workerProgress >= 0)
+            {
+                m_controller.updateWorkerProgress(workerID, Double.longBitsToDouble(workerProgress));
+            }
+        }
+        if (globalProgress >= 0)
+        {
+            m_controller.updateGlobalProgress(Double.longBitsToDouble(globalProgress));
+        }
+        
+        List<String> messages = new ArrayList<>();
+        long dropped = m_droppedMessages.getAndSet(0);
+        if (dropped > 0)
+        {
+            messages.add("["+dropped+" messages skipped]");
+        }
+        m_messages.drainTo(messages);
+        if (!messages.isEmpty())
+        {
+            m_controller.updateMessages(messages);
+        }
+    }
+}
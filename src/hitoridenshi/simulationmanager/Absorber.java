@@ -22,12 +22,15 @@ import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.DataFormatException;
 
 /**
  * To store the data about the solar cell, especially the abscissa (one for the eb file, one for the gen file), and tell if a particle has been or not, as well as the collection side. Also store backAbscissa and frontAbscissa.
+ * The electric field is the sum of the internal field given by SCAPS, of the effective field of the notch for the electrons and of the field terms of the conditions, summed once in a FieldTable.
  * 
  * @author Alban Lafuente
  */
@@ -37,7 +40,7 @@ public class Absorber
     private final BigDecimal m_frontPosition;
     private final BigDecimal m_notchPosition;
     private final boolean m_zeroAtFront;
-    private final ContinuousFunction m_electricField;
+    private final FieldTable m_electricField;
     private final String m_bias;
     
     /**
@@ -50,7 +53,10 @@ public class Absorber
      */
     public Absorber(File p_electricField, String p_bias, CalculationConditions p_condition) throws DataFormatException, IOException
     {
-        m_electricField = ContinuousFunction.createElectricFieldFromSCAPS(p_electricField, p_condition.getAbscissaMultiplier());
+        List<FieldTerm> terms = new ArrayList<>();
+        terms.add(ContinuousFunction.createElectricFieldFromSCAPS(p_electricField, p_condition.getAbscissaMultiplier()));
+        terms.addAll(p_condition.getFieldTerms());
+        m_electricField = new FieldTable(terms);
         m_bias = p_bias;
         m_notchPosition = null;
         m_zeroAtFront = p_condition.isZeroAtFront();
@@ -77,12 +83,26 @@ public class Absorber
      * @throws IOException 
      */
     public Absorber(String p_fileElectricFields, String p_bias, BigDecimal p_notchPosition, CalculationConditions p_conditions) throws DataFormatException, IOException
+    {
+        this(ContinuousFunction.createElectricFieldFromSCAPS(new File(p_fileElectricFields), p_conditions.getAbscissaMultiplier()), p_bias, p_notchPosition, p_conditions);
+    }
+    
+    /**
+     * Constructor for an absorber with a notch, from an electric field already read from its SCAPS file
+     * @param p_internalElectricField the electric field given by SCAPS, which is not modified
+     * @param p_bias the bias voltage applied on the absorber
+     * @param p_notchPosition the position of the notch in the absorber
+     * @param p_conditions the condition of calculation
+     */
+    public Absorber(ContinuousFunction p_internalElectricField, String p_bias, BigDecimal p_notchPosition, CalculationConditions p_conditions)
     {
         m_bias = p_bias;
         m_notchPosition = p_notchPosition;
         
         
         Map<String, BigDecimal> bandgaps = new HashMap(p_conditions.getBandgaps());
+        List<FieldTerm> terms = new ArrayList<>();
+        terms.add(p_internalElectricField);
         BigDecimal absorberEnd;
         BigDecimal field0toNotch;
         BigDecimal fieldNotchtoEnd;
@@ -103,7 +123,7 @@ public class Absorber
         
         if (p_conditions.isElectron())
         {
-            ContinuousFunction internalElectricField = ContinuousFunction.createElectricFieldFromSCAPS(new File(p_fileElectricFields), p_conditions.getAbscissaMultiplier());
+            ContinuousFunction internalElectricField = p_internalElectricField;
             //À refactoriser ?
             if(m_zeroAtFront)
             {
@@ -142,18 +162,20 @@ public class Absorber
                 }
             }
 
-            ContinuousFunction notchEffectiveElectricField = new ContinuousFunction(internalElectricField.getAbscissa(), m_notchPosition, field0toNotch, fieldNotchtoEnd, absorberEnd);
-            m_electricField = internalElectricField.add(notchEffectiveElectricField);
-        }
-        else
-        {
-            m_electricField = ContinuousFunction.createElectricFieldFromSCAPS(new File(p_fileElectricFields), p_conditions.getAbscissaMultiplier());
+            terms.add(new ContinuousFunction(internalElectricField.getAbscissa(), m_notchPosition, field0toNotch, fieldNotchtoEnd, absorberEnd));
         }
+        terms.addAll(p_conditions.getFieldTerms());
+        
+        //all the terms are summed once, the particles only reading the table
+        m_electricField = new FieldTable(terms);
     }
     
-    public ContinuousFunction getElectricField()
+    /**
+     * @return the electric field in the absorber, shared by the particles and never modified
+     */
+    FieldTable getElectricField()
     {
-        return new ContinuousFunction(m_electricField);
+        return m_electricField;
     }
     
     /**
@@ -16,12 +16,12 @@
  */
 package hitoridenshi.simulationmanager;
 
-import commonutils.PCGGenerator;
 import commonutils.PhysicsTools;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,13 +33,30 @@ import java.util.function.Consumer;
  */
 public class CalculationConditions
 {    
-    //Temperature in K
+    //default temperature in K
     static final BigDecimal T = CalculationConditions.formatBigDecimal(new BigDecimal("300"));
     //calculation step, chosen as one each femtosecond
     static final BigDecimal DT = CalculationConditions.formatBigDecimal(PhysicsTools.UnitsPrefix.FEMTO.getMultiplier());
+    //default seed of the random streams
+    static final long SEED = 42;
+    //the random stream of the initial velocities, shared by all the starting positions so that their results are compared with the same particles
+    private static final long VELOCITY_STREAM = ParticleRandom.stream("velocity");
 
     private final boolean m_isZeroAtFront;
     private final int m_maxSteps;
+    private final BigDecimal m_temperature;
+    private final VelocitySampling m_velocitySampling;
+    private final double m_importanceShift;
+    private final long m_randomSeed;
+    private final int m_numberOfParticles;
+    //the shift of the drawn velocities, in thermal velocities and positive towards the growing abscissa
+    private final double m_drawnShift;
+    //the random offset of the quasirandom sequence
+    private final double m_sequenceOffset;
+    //the interval of equal probability of each particle with stratified sampling, null otherwise
+    private final int[] m_stratumOfParticle;
+    private final ScatteringModel m_scattering;
+    private final List<FieldTerm> m_fieldTerms;
     
     //All the following numbers have to be stocked with SI units
     private final BigDecimal m_bufferWindowSize;
@@ -48,12 +65,48 @@ public class CalculationConditions
     private final String[] m_biasVoltages;
     private final List<BigDecimal> m_notchPositions;
     private final List<BigDecimal> m_startingPositons;
-    private final List<BigDecimal> m_velocityList = new ArrayList<>();
+    private final BigDecimal m_thermalVelocity;
     private final Map<String, BigDecimal> m_particleParameters = new HashMap<>();
     private final Map<String, BigDecimal> m_bandgaps = new HashMap<>();
     
     public CalculationConditions (boolean p_isElectron, boolean p_isZeroAtFront, PhysicsTools.UnitsPrefix p_prefix, int p_numberSimulatedParticules, BigDecimal p_effectiveMass, BigDecimal p_lifeTime, BigDecimal p_bufferWindowSize, BigDecimal p_sampleSize, BigDecimal p_frontBandgap, BigDecimal p_notchBandgap, BigDecimal p_backBandgap, String p_biasVoltages, String p_notchPositions, String p_startingPositions)
     {
+        this(p_isElectron, p_isZeroAtFront, p_prefix, p_numberSimulatedParticules, p_effectiveMass, p_lifeTime, T, p_bufferWindowSize, p_sampleSize, p_frontBandgap, p_notchBandgap, p_backBandgap, p_biasVoltages, p_notchPositions, p_startingPositions);
+    }
+    
+    /**
+     * @param p_temperature the temperature of the sample in K, giving the thermal velocity of the particles
+     */
+    public CalculationConditions (boolean p_isElectron, boolean p_isZeroAtFront, PhysicsTools.UnitsPrefix p_prefix, int p_numberSimulatedParticules, BigDecimal p_effectiveMass, BigDecimal p_lifeTime, BigDecimal p_temperature, BigDecimal p_bufferWindowSize, BigDecimal p_sampleSize, BigDecimal p_frontBandgap, BigDecimal p_notchBandgap, BigDecimal p_backBandgap, String p_biasVoltages, String p_notchPositions, String p_startingPositions)
+    {
+        this(p_isElectron, p_isZeroAtFront, p_prefix, p_numberSimulatedParticules, p_effectiveMass, p_lifeTime, p_temperature, VelocitySampling.RANDOM, 0, SEED, ScatteringModel.NONE, new ArrayList<>(), p_bufferWindowSize, p_sampleSize, p_frontBandgap, p_notchBandgap, p_backBandgap, p_biasVoltages, p_notchPositions, p_startingPositions);
+    }
+    
+    /**
+     * @param p_temperature the temperature of the sample in K, giving the thermal velocity of the particles
+     * @param p_velocitySampling how the initial velocities are drawn from the thermal distribution
+     * @param p_importanceShift the shift of the mean of the drawn velocities, in thermal velocities, towards the back if positive and towards the front if negative, each particle then having the weight of its velocity in the thermal distribution; 0 for no importance sampling
+     * @param p_randomSeed the seed of the random streams of the particles
+     * @param p_scattering the collisions of the particles with the lattice, ScatteringModel.NONE for a ballistic motion
+     * @param p_fieldTerms the terms added to the electric field of each absorber, in SI units
+     */
+    public CalculationConditions (boolean p_isElectron, boolean p_isZeroAtFront, PhysicsTools.UnitsPrefix p_prefix, int p_numberSimulatedParticules, BigDecimal p_effectiveMass, BigDecimal p_lifeTime, BigDecimal p_temperature, VelocitySampling p_velocitySampling, double p_importanceShift, long p_randomSeed, ScatteringModel p_scattering, List<FieldTerm> p_fieldTerms, BigDecimal p_bufferWindowSize, BigDecimal p_sampleSize, BigDecimal p_frontBandgap, BigDecimal p_notchBandgap, BigDecimal p_backBandgap, String p_biasVoltages, String p_notchPositions, String p_startingPositions)
+    {
+        if (p_temperature.signum() <= 0)
+        {
+            throw new IllegalArgumentException("The temperature has to be positive.");
+        }
+        m_temperature = CalculationConditions.formatBigDecimal(p_temperature);
+        m_velocitySampling = p_velocitySampling;
+        if (Double.isNaN(p_importanceShift) || Double.isInfinite(p_importanceShift))
+        {
+            throw new IllegalArgumentException("The importance shift has to be a number.");
+        }
+        m_importanceShift = p_importanceShift;
+        m_randomSeed = p_randomSeed;
+        m_fieldTerms = new ArrayList<>(p_fieldTerms);
+        m_numberOfParticles = p_numberSimulatedParticules;
+        
         //to convert the abscissa from the unit given by SCAPS (micrometer or nanometer) into meter
         m_abscissaUnit = p_prefix;
         
@@ -84,18 +137,110 @@ public class CalculationConditions
             m_particleParameters.put("charge", CalculationConditions.formatBigDecimal(PhysicsTools.Q));
         }
         
+        m_scattering = new ScatteringModel(p_scattering, particleEffectiveMass.doubleValue(), m_particleParameters.get("charge").doubleValue(), m_temperature.doubleValue());
+        
         /**
-         * filling velocityList with as many velocities as they are particles from a Boltzman distribution
-         * we initialize the random generator with a seed in order to always get the same random list of speed, so the simulation can be stopped and started again later
+         * the velocities are not stored: the velocity of each particle is drawn from the thermal distribution when it is asked for, from the random stream of its index
+         * the streams always have the same seed, in order to always get the same velocities, so the simulation can be stopped and started again later
         */
-        BigDecimal vth = CalculationConditions.formatBigDecimal((PhysicsTools.KB.multiply(T).divide(particleEffectiveMass, MathContext.DECIMAL128)).sqrt(MathContext.DECIMAL128));
-        PCGGenerator randomGenerator = new PCGGenerator(42);
-        for (int i = 0; i < p_numberSimulatedParticules; i+=1)
+        m_thermalVelocity = CalculationConditions.formatBigDecimal((PhysicsTools.KB.multiply(m_temperature).divide(particleEffectiveMass, MathContext.DECIMAL128)).sqrt(MathContext.DECIMAL128));
+        //the velocities are positive towards the growing abscissa
+        m_drawnShift = m_isZeroAtFront ? m_importanceShift : -m_importanceShift;
+        m_sequenceOffset = new ParticleRandom(m_randomSeed, VELOCITY_STREAM, -1).nextDouble();
+        if (m_velocitySampling == VelocitySampling.STRATIFIED)
+        {
+            //the intervals are given to the particles in the van der Corput order so that the first particles already cover the whole distribution
+            Integer[] particleOfInterval = new Integer[p_numberSimulatedParticules];
+            for (int i = 0 ; i < p_numberSimulatedParticules ; i += 1)
+            {
+                particleOfInterval[i] = i;
+            }
+            Arrays.sort(particleOfInterval, Comparator.comparingDouble(CalculationConditions::radicalInverse));
+            m_stratumOfParticle = new int[p_numberSimulatedParticules];
+            for (int interval = 0 ; interval < p_numberSimulatedParticules ; interval += 1)
+            {
+                m_stratumOfParticle[particleOfInterval[interval]] = interval;
+            }
+        }
+        else
         {
-            m_velocityList.add(CalculationConditions.formatBigDecimal((new BigDecimal(randomGenerator.nextGaussian())).multiply(vth)));
+            m_stratumOfParticle = null;
         }
     }
     
+    /**
+     * Draw the velocity of a particle from the standard normal distribution, the velocities of the particles being in unit of the thermal velocity
+     * @param p_index the index of the particle
+     * @return the velocity, always the same for the same sampling, seed and number of particles
+     */
+    private double standardNormalVelocity(int p_index)
+    {
+        double velocity = 0;
+        
+        switch (m_velocitySampling)
+        {
+            case RANDOM:
+                velocity = new ParticleRandom(m_randomSeed, VELOCITY_STREAM, p_index).nextGaussian();
+                break;
+            case ANTITHETIC:
+                //each velocity is followed by its opposite, the mean of each pair being exactly 0
+                double drawn = new ParticleRandom(m_randomSeed, VELOCITY_STREAM, p_index / 2).nextGaussian();
+                velocity = p_index % 2 == 0 ? drawn : -drawn;
+                break;
+            case STRATIFIED:
+                //one velocity drawn in each of the intervals of equal probability
+                velocity = inverseNormal((m_stratumOfParticle[p_index] + new ParticleRandom(m_randomSeed, VELOCITY_STREAM, p_index).nextDouble()) / m_numberOfParticles);
+                break;
+            case QUASIRANDOM:
+                //the van der Corput sequence, which is the Sobol and Halton sequences in one dimension, shifted by a random offset modulo 1 so that the estimates are not biased
+                double point = radicalInverse(p_index) + m_sequenceOffset;
+                velocity = inverseNormal(point < 1 ? point : point - 1);
+                break;
+        }
+        
+        return velocity;
+    }
+    
+    /**
+     * @param p_index a non-negative integer
+     * @return the van der Corput radical inverse of the integer in base 2, its binary digits mirrored behind the point
+     */
+    private static double radicalInverse(int p_index)
+    {
+        return (Integer.reverse(p_index) >>> 1) / (double) (1L << 31);
+    }
+    
+    /**
+     * Give the quantile of the standard normal distribution with the rational approximation of Acklam, whose relative error is below 1.15e-9
+     * @param p_probability a probability, moved away from 0 and 1 so the quantile stays finite
+     * @return the value below which the standard normal distribution has the given probability
+     */
+    private static double inverseNormal(double p_probability)
+    {
+        final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+        final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+        double probability = Math.min(Math.max(p_probability, Double.MIN_NORMAL), Math.nextDown(1.0));
+        double quantile;
+        
+        if (probability < 0.02425 || probability > 1 - 0.02425)
+        {
+            //tails, the upper one by symmetry
+            double q = Math.sqrt(-2 * Math.log(Math.min(probability, 1 - probability)));
+            quantile = (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5]) / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+            quantile = probability < 0.5 ? quantile : -quantile;
+        }
+        else
+        {
+            double q = probability - 0.5;
+            double r = q * q;
+            quantile = (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5])*q / (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+        }
+        
+        return quantile;
+    }
+    
     /**
      * format a BigDecimal so it can be properly used for the simulation.
      * @param p_toBeFormatted
@@ -139,6 +284,11 @@ public class CalculationConditions
         return m_isZeroAtFront;
     }
     
+    public BigDecimal getTemperature()
+    {
+        return m_temperature;
+    }
+    
     public synchronized int getMaxSteps()
     {
         return m_maxSteps;
@@ -190,9 +340,85 @@ public class CalculationConditions
         return new ArrayList(m_startingPositons);
     }
     
-    public synchronized ArrayList<BigDecimal> getVelocityList()
+    public VelocitySampling getVelocitySampling()
+    {
+        return m_velocitySampling;
+    }
+    
+    /**
+     * @return the shift of the mean of the drawn velocities, in thermal velocities, towards the back if positive and towards the front if negative, 0 without importance sampling
+     */
+    public double getImportanceShift()
+    {
+        return m_importanceShift;
+    }
+    
+    /**
+     * @return the collisions of the particles with the lattice, for their mass and the temperature
+     */
+    public ScatteringModel getScattering()
+    {
+        return m_scattering;
+    }
+    
+    /**
+     * @return the terms added to the electric field of each absorber, on top of the field given by SCAPS and the notch
+     */
+    public List<FieldTerm> getFieldTerms()
+    {
+        return new ArrayList<>(m_fieldTerms);
+    }
+    
+    public long getRandomSeed()
     {
-        return new ArrayList(m_velocityList);
+        return m_randomSeed;
     }
     
+    public int getNumberOfParticles()
+    {
+        return m_numberOfParticles;
+    }
+    
+    /**
+     * Give the initial velocity of a particle, drawn when asked for so that the particles can be calculated in any order and on any thread
+     * @param p_index the index of the particle, from 0 to the number of particles
+     * @return the velocity in m/s, positive towards the growing abscissa
+     */
+    public BigDecimal getVelocity(int p_index)
+    {
+        return CalculationConditions.formatBigDecimal((new BigDecimal(standardNormalVelocity(p_index) + m_drawnShift)).multiply(m_thermalVelocity));
+    }
+    
+    /**
+     * @param p_halfWidth the half-width of the range, in thermal velocities
+     * @return the lowest and the highest velocity of the range centered on the mean of the drawn velocities, in m/s
+     */
+    double[] getVelocityRange(double p_halfWidth)
+    {
+        double thermalVelocity = m_thermalVelocity.doubleValue();
+        
+        return new double[] {(m_drawnShift - p_halfWidth) * thermalVelocity, (m_drawnShift + p_halfWidth) * thermalVelocity};
+    }
+    
+    /**
+     * With importance sampling, the velocities are drawn from the thermal distribution shifted towards the rare channel, and weighted by the ratio of the thermal distribution to the shifted one
+     * @param p_index the index of the particle, from 0 to the number of particles
+     * @return the weight of the particle, 1 without importance sampling
+     */
+    public double getVelocityWeight(int p_index)
+    {
+        return m_drawnShift == 0 ? 1 : Math.exp(m_drawnShift * (m_drawnShift / 2 - (standardNormalVelocity(p_index) + m_drawnShift)));
+    }
+    
+    /**
+     * How the initial velocities are drawn from the thermal distribution
+     * RANDOM: independent random velocities
+     * ANTITHETIC: independent random velocities, each of them followed by its opposite
+     * STRATIFIED: one random velocity in each interval of equal probability of the distribution
+     * QUASIRANDOM: a low-discrepancy sequence, randomly shifted
+     */
+    public enum VelocitySampling
+    {
+        RANDOM, ANTITHETIC, STRATIFIED, QUASIRANDOM
+    }
 }
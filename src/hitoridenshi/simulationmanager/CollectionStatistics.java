@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Counts the particles collected at the front, at the back and not collected, and the exit time of the collected ones, taking the weights of the particles into account
+ * A particle has a weight different from 1 when its velocity has been drawn by importance sampling. The fraction of a channel is estimated as the sum of the weights of its particles divided by the number of particles, which is unbiased whatever the sampling, and is the plain fraction when all the weights are 1.
+ * The mean exit time is the weighted mean of the exit times of the collected particles, its standard error using the effective number of particles of Kish. It is also given for the particles collected at each side.
+ * @author Alban Lafuente
+ */
+class CollectionStatistics
+{
+    private static final int NUMBER_OF_CHANNELS = Particle.CollectionState.values().length;
+    
+    private final int[] m_counts = new int[NUMBER_OF_CHANNELS];
+    private final double[] m_weights = new double[NUMBER_OF_CHANNELS];
+    private final double[] m_squaredWeights = new double[NUMBER_OF_CHANNELS];
+    //weighted sums of the exit times of the particles of each channel and of their squares, in steps
+    private final double[] m_exitSteps = new double[NUMBER_OF_CHANNELS];
+    private final double[] m_squaredExitSteps = new double[NUMBER_OF_CHANNELS];
+    
+    /**
+     * Count a particle
+     * @param p_channel where the particle has been collected
+     * @param p_exitSteps the number of steps of the particle
+     * @param p_weight the weight of the particle
+     */
+    void add(Particle.CollectionState p_channel, int p_exitSteps, double p_weight)
+    {
+        int channel = p_channel.ordinal();
+        m_counts[channel] += 1;
+        m_weights[channel] += p_weight;
+        m_squaredWeights[channel] += p_weight * p_weight;
+        if (p_channel != Particle.CollectionState.NOTCOLLECTED)
+        {
+            m_exitSteps[channel] += p_weight * p_exitSteps;
+            m_squaredExitSteps[channel] += p_weight * p_exitSteps * (double) p_exitSteps;
+        }
+    }
+    
+    /**
+     * Add the particles counted by other statistics to these ones
+     * @param p_other the statistics to add, which are not modified
+     */
+    void merge(CollectionStatistics p_other)
+    {
+        for (int i = 0 ; i < NUMBER_OF_CHANNELS ; i += 1)
+        {
+            m_counts[i] += p_other.m_counts[i];
+            m_weights[i] += p_other.m_weights[i];
+            m_squaredWeights[i] += p_other.m_squaredWeights[i];
+            m_exitSteps[i] += p_other.m_exitSteps[i];
+            m_squaredExitSteps[i] += p_other.m_squaredExitSteps[i];
+        }
+    }
+    
+    /**
+     * @return the number of particles counted
+     */
+    int getNumberParticle()
+    {
+        int numberParticle = 0;
+        
+        for (int count: m_counts)
+        {
+            numberParticle += count;
+        }
+        
+        return numberParticle;
+    }
+    
+    /**
+     * @param p_channel a collection channel
+     * @return the number of particles counted in the channel, without their weights
+     */
+    int getCount(Particle.CollectionState p_channel)
+    {
+        return m_counts[p_channel.ordinal()];
+    }
+    
+    /**
+     * @return the number of collected particles, without their weights
+     */
+    int getNumberCollected()
+    {
+        return getCount(Particle.CollectionState.FRONT) + getCount(Particle.CollectionState.BACK);
+    }
+    
+    /**
+     * @param p_channel a collection channel
+     * @return the sum of the weights of the particles of the channel, which is the number of particles sampling without weights would have put in it
+     */
+    double getWeight(Particle.CollectionState p_channel)
+    {
+        return m_weights[p_channel.ordinal()];
+    }
+    
+    /**
+     * @return true if some particles do not have a weight of 1
+     */
+    boolean isWeighted()
+    {
+        boolean weighted = false;
+        
+        for (int i = 0 ; i < NUMBER_OF_CHANNELS ; i += 1)
+        {
+            weighted |= m_weights[i] != m_counts[i] || m_squaredWeights[i] != m_counts[i];
+        }
+        
+        return weighted;
+    }
+    
+    /**
+     * @param p_channel a collection channel
+     * @return the estimated fraction of the particles collected in the channel
+     */
+    double getFraction(Particle.CollectionState p_channel)
+    {
+        int numberParticle = getNumberParticle();
+        
+        return numberParticle == 0 ? 0 : m_weights[p_channel.ordinal()] / numberParticle;
+    }
+    
+    /**
+     * @param p_channel a collection channel
+     * @return the standard error of the estimated fraction, for independent particles
+     */
+    double getFractionStandardError(Particle.CollectionState p_channel)
+    {
+        int numberParticle = getNumberParticle();
+        double fraction = getFraction(p_channel);
+        
+        return numberParticle == 0 ? 0 : Math.sqrt(Math.max(0, m_squaredWeights[p_channel.ordinal()] / numberParticle - fraction * fraction) / numberParticle);
+    }
+    
+    /**
+     * @return the weighted mean exit time of the collected particles, in steps, 0 if no particle has been collected
+     */
+    double getMeanExitSteps()
+    {
+        return meanExitSteps(Particle.CollectionState.FRONT, Particle.CollectionState.BACK);
+    }
+    
+    /**
+     * @param p_channel the front or the back
+     * @return the weighted mean exit time of the particles collected in the channel, in steps, 0 if no particle has been collected there
+     */
+    double getMeanExitSteps(Particle.CollectionState p_channel)
+    {
+        return meanExitSteps(p_channel);
+    }
+    
+    /**
+     * @return the weighted variance of the exit times of the collected particles, in squared steps, 0 if no particle has been collected
+     */
+    double getExitStepsVariance()
+    {
+        return exitStepsVariance(Particle.CollectionState.FRONT, Particle.CollectionState.BACK);
+    }
+    
+    /**
+     * @param p_channel the front or the back
+     * @return the weighted variance of the exit times of the particles collected in the channel, in squared steps, 0 if no particle has been collected there
+     */
+    double getExitStepsVariance(Particle.CollectionState p_channel)
+    {
+        return exitStepsVariance(p_channel);
+    }
+    
+    /**
+     * @return the standard error of the mean exit time, in steps, for independent particles, 0 with less than two collected particles
+     */
+    double getExitStepsStandardError()
+    {
+        return exitStepsStandardError(Particle.CollectionState.FRONT, Particle.CollectionState.BACK);
+    }
+    
+    /**
+     * @param p_channel the front or the back
+     * @return the standard error of the mean exit time of the particles collected in the channel, in steps, 0 with less than two particles collected there
+     */
+    double getExitStepsStandardError(Particle.CollectionState p_channel)
+    {
+        return exitStepsStandardError(p_channel);
+    }
+    
+    private double meanExitSteps(Particle.CollectionState... p_channels)
+    {
+        double weight = 0;
+        double exitSteps = 0;
+        
+        for (Particle.CollectionState channel: p_channels)
+        {
+            weight += m_weights[channel.ordinal()];
+            exitSteps += m_exitSteps[channel.ordinal()];
+        }
+        
+        return weight > 0 ? exitSteps / weight : 0;
+    }
+    
+    private double exitStepsVariance(Particle.CollectionState... p_channels)
+    {
+        double weight = 0;
+        double squaredExitSteps = 0;
+        double mean = meanExitSteps(p_channels);
+        
+        for (Particle.CollectionState channel: p_channels)
+        {
+            weight += m_weights[channel.ordinal()];
+            squaredExitSteps += m_squaredExitSteps[channel.ordinal()];
+        }
+        
+        return weight > 0 ? Math.max(0, squaredExitSteps / weight - mean * mean) : 0;
+    }
+    
+    private double exitStepsStandardError(Particle.CollectionState... p_channels)
+    {
+        int count = 0;
+        double weight = 0;
+        double squaredWeight = 0;
+        double error = 0;
+        
+        for (Particle.CollectionState channel: p_channels)
+        {
+            count += m_counts[channel.ordinal()];
+            weight += m_weights[channel.ordinal()];
+            squaredWeight += m_squaredWeights[channel.ordinal()];
+        }
+        if (count > 1)
+        {
+            //the effective number of particles is weight² / squaredWeight
+            error = Math.sqrt(exitStepsVariance(p_channels) * squaredWeight) / weight;
+        }
+        
+        return error;
+    }
+    
+    /**
+     * Write the exact state of the statistics
+     * @param p_output where the state is written
+     * @throws IOException
+     */
+    void write(DataOutput p_output) throws IOException
+    {
+        for (int i = 0 ; i < NUMBER_OF_CHANNELS ; i += 1)
+        {
+            p_output.writeInt(m_counts[i]);
+            p_output.writeDouble(m_weights[i]);
+            p_output.writeDouble(m_squaredWeights[i]);
+            p_output.writeDouble(m_exitSteps[i]);
+            p_output.writeDouble(m_squaredExitSteps[i]);
+        }
+    }
+    
+    /**
+     * Replace the state of the statistics with one written by write
+     * @param p_input where the state is read
+     * @throws IOException
+     */
+    void read(DataInput p_input) throws IOException
+    {
+        for (int i = 0 ; i < NUMBER_OF_CHANNELS ; i += 1)
+        {
+            m_counts[i] = p_input.readInt();
+            m_weights[i] = p_input.readDouble();
+            m_squaredWeights[i] = p_input.readDouble();
+            m_exitSteps[i] = p_input.readDouble();
+            m_squaredExitSteps[i] = p_input.readDouble();
+        }
+    }
+}
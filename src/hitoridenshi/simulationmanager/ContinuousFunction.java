@@ -38,7 +38,7 @@ import java.util.zip.DataFormatException;
  * To make up for the fact there is a finite number of abscissa, value in-between are approximated by doing a linear interpolation between the two closest points
  * @author Alban Lafuente
  */
-class ContinuousFunction
+class ContinuousFunction implements FieldTerm
 {
     //do not truncate values here: the field is also defined outside the absorber. Only the absorber knows if a particle exited itself. A ContinuousFunction can only say if a given position is in its range.
     private final Set<BigDecimal> m_abscissa;
@@ -58,6 +58,19 @@ class ContinuousFunction
        return new ContinuousFunction(p_inputFile, p_unitMultiplier, PhysicsTools.UnitsPrefix.CENTI.getMultiplier(), "eb", 23, new int[] {1,12});
     }
     
+    /**
+     * Create a continuous function representing an electric field given by the user, in a txt file of two columns separated by a tab
+     * @param p_inputFile the file containing the abscissa and the electric field in V/cm
+     * @param p_unitMultiplier the multiplier to convert the abscissa unit into metres
+     * @return a continuous function representing the electric field
+     * @throws DataFormatException
+     * @throws IOException
+     */
+    static ContinuousFunction createFieldFromProfile(File p_inputFile, BigDecimal p_unitMultiplier) throws DataFormatException, IOException
+    {
+       return new ContinuousFunction(p_inputFile, p_unitMultiplier, PhysicsTools.UnitsPrefix.CENTI.getMultiplier(), "txt", 2, new int[] {0,1});
+    }
+    
     public ContinuousFunction (ContinuousFunction p_passedFunction)
     {
         m_values = p_passedFunction.getValues();
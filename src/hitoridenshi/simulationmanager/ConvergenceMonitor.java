@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Follows the confidence intervals on the results of a starting position while its blocks of particles are added, to stop it once they are precise enough
+ * The fractions of particles exiting at the front, at the back and not collected use the Wilson score interval, which stays meaningful when a fraction is 0 or 1, widened to the normal interval of the weighted estimate with importance sampling. The mean exit time of the collected particles uses the normal interval, and is compared to the target relatively to the mean.
+ * @author Alban Lafuente
+ */
+class ConvergenceMonitor
+{
+    //quantile of the normal distribution for confidence intervals at 95%
+    private static final double Z = 1.959963984540054;
+    static final String CONVERGENCE_FILE = "Convergence.sim";
+    private static final Particle.CollectionState[] CHANNELS = {Particle.CollectionState.NOTCOLLECTED, Particle.CollectionState.FRONT, Particle.CollectionState.BACK};
+    private static final String[] CHANNEL_NAMES = {"Not accounted", "Front", "Back"};
+    
+    private final double m_targetPrecision;
+    private final CollectionStatistics m_statistics = new CollectionStatistics();
+    
+    /**
+     * @param p_targetPrecision the half-width the confidence intervals have to reach: absolute for the fractions, relative to the mean for the exit time
+     */
+    ConvergenceMonitor(double p_targetPrecision)
+    {
+        m_targetPrecision = p_targetPrecision;
+    }
+    
+    /**
+     * Add the particles of a block, before it is merged
+     * @param p_blockTracker the tracker of the block
+     */
+    void add(SimulationTracker p_blockTracker)
+    {
+        m_statistics.merge(p_blockTracker.getStatistics());
+    }
+    
+    /**
+     * @return the number of particles added so far
+     */
+    int getNumberParticle()
+    {
+        return m_statistics.getNumberParticle();
+    }
+    
+    /**
+     * @return true if all the confidence intervals are within the target precision
+     */
+    boolean hasConverged()
+    {
+        boolean converged = m_statistics.getNumberParticle() > 0 && exitTimeHalfWidth() <= m_targetPrecision * m_statistics.getMeanExitSteps();
+        
+        for (Particle.CollectionState channel: CHANNELS)
+        {
+            converged &= fractionHalfWidth(channel) <= m_targetPrecision;
+        }
+        
+        return converged;
+    }
+    
+    /**
+     * @param p_channel a collection channel
+     * @return the half-width of the confidence interval of the fraction of particles collected in the channel
+     */
+    private double fractionHalfWidth(Particle.CollectionState p_channel)
+    {
+        double n = m_statistics.getNumberParticle();
+        double fraction = m_statistics.getCount(p_channel) / n;
+        double halfWidth = Z / (1 + Z * Z / n) * Math.sqrt(fraction * (1 - fraction) / n + Z * Z / (4 * n * n));
+        
+        return m_statistics.isWeighted() ? Math.max(halfWidth, Z * m_statistics.getFractionStandardError(p_channel)) : halfWidth;
+    }
+    
+    /**
+     * @return the half-width of the confidence interval of the mean exit time, in steps: 0 if no particle has been collected, as there is no exit time to estimate, infinite with a single one
+     */
+    private double exitTimeHalfWidth()
+    {
+        int collected = m_statistics.getNumberCollected();
+        
+        return collected == 1 ? Double.POSITIVE_INFINITY : Z * m_statistics.getExitStepsStandardError();
+    }
+    
+    /**
+     * Write the estimated quantities and the half-width of their confidence interval
+     * @param p_resultFolder the folder of the results of the starting position
+     * @param p_dt the duration of a step, in seconds
+     * @throws IOException
+     */
+    void saveToFile(File p_resultFolder, BigDecimal p_dt) throws IOException
+    {
+        double dt = p_dt.doubleValue();
+        
+        try (BufferedWriter convergenceBuffer = new BufferedWriter(new FileWriter(new File(p_resultFolder, CONVERGENCE_FILE))))
+        {
+            convergenceBuffer.write("Quantity\tValue\tHalf-width (95%)");
+            convergenceBuffer.newLine();
+            convergenceBuffer.write("Simulated particles\t"+m_statistics.getNumberParticle()+"\t");
+            for (int i = 0 ; i < CHANNELS.length ; i += 1)
+            {
+                convergenceBuffer.newLine();
+                convergenceBuffer.write(CHANNEL_NAMES[i]+"\t"+m_statistics.getFraction(CHANNELS[i])+"\t"+fractionHalfWidth(CHANNELS[i]));
+            }
+            convergenceBuffer.newLine();
+            convergenceBuffer.write("Mean exit time (s)\t"+m_statistics.getMeanExitSteps() * dt+"\t"+exitTimeHalfWidth() * dt);
+            convergenceBuffer.newLine();
+            convergenceBuffer.write("Target reached\t"+hasConverged()+"\t");
+        }
+    }
+}
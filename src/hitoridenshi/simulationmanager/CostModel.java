@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Estimates the cost of the simulation of a starting position, as the mean number of steps of its particles, so that the longest ones can be launched first
+ * The cost is read from the statistics of a previous run in the same output folder when there is one, otherwise it is measured on a few pilot particles.
+ * The estimates only change the order in which the starting positions are calculated, never the results: outdated statistics only make the scheduling less efficient.
+ * @author Alban Lafuente
+ */
+class CostModel
+{
+    static final String STATISTICS_FILE = "RunCosts.properties";
+    //above this number of steps, a pilot particle is considered to stay in the absorber until the end of its lifetime
+    static final int PILOT_STEP_LIMIT = 20000;
+    
+    private final File m_statisticsFile;
+    private final Properties m_previousCosts = new Properties();
+    private final Properties m_measuredCosts = new Properties();
+    
+    /**
+     * Create the cost model, reading the statistics left by a previous run in the output folder if any
+     * @param p_outputFolder the output folder of the simulation
+     * @throws IOException if the statistics file exists but cannot be read
+     */
+    CostModel(String p_outputFolder) throws IOException
+    {
+        m_statisticsFile = new File(p_outputFolder, STATISTICS_FILE);
+        
+        if (m_statisticsFile.isFile())
+        {
+            try (FileReader reader = new FileReader(m_statisticsFile))
+            {
+                m_previousCosts.load(reader);
+            }
+        }
+    }
+    
+    /**
+     * Give the cost of a starting position from the previous run
+     * @param p_key the key of the starting position
+     * @return the mean number of steps of a particle during the previous run, or a negative number if it is unknown or unreadable
+     */
+    double getPreviousCost(String p_key)
+    {
+        double cost = -1;
+        
+        try
+        {
+            cost = Double.parseDouble(m_previousCosts.getProperty(p_key, "-1"));
+        }
+        catch (NumberFormatException ex)
+        {
+            cost = -1;
+        }
+        
+        return cost;
+    }
+    
+    /**
+     * Estimate the cost of a starting position by simulating a few of its particles, spread over the velocity list
+     * @param p_task the starting position to estimate
+     * @param p_numberOfPilots the number of particles to simulate
+     * @return the mean number of steps of the pilot particles
+     */
+    static double pilot(StartingPositionTask p_task, int p_numberOfPilots)
+    {
+        CalculationConditions conditions = p_task.getConditions();
+        HashMap<String, BigDecimal> particleParameters = p_task.getParticleParameters();
+        int maxSteps = conditions.getMaxSteps();
+        int stepLimit = Math.min(maxSteps, PILOT_STEP_LIMIT);
+        int numberOfPilots = Math.min(p_numberOfPilots, conditions.getNumberOfParticles());
+        double totalSteps = 0;
+        
+        for (int i = 0 ; i < numberOfPilots ; i += 1)
+        {
+            int index = (int) ((long) i * conditions.getNumberOfParticles() / numberOfPilots);
+            Particle pilot = new Particle(particleParameters, p_task.getInitialPosition(), conditions.getVelocity(index), null, !p_task.isExitOnly());
+            if (conditions.getScattering().isActive())
+            {
+                pilot.setScattering(conditions.getScattering(), p_task.getRandom(index), p_task.getEnergyGain());
+            }
+            
+            int numberOfSteps = 0;
+            while (!pilot.isCollected() && numberOfSteps < stepLimit)
+            {
+                p_task.getManager().getControl().checkpoint();
+                pilot.applyExteriorFields(p_task.getAbsorber(), CalculationConditions.DT);
+                numberOfSteps += 1;
+            }
+            
+            totalSteps += pilot.isCollected() ? numberOfSteps : maxSteps;
+        }
+        
+        return numberOfPilots > 0 ? totalSteps / numberOfPilots : 0;
+    }
+    
+    /**
+     * Record the cost measured during this run
+     * @param p_key the key of the starting position
+     * @param p_meanSteps the mean number of steps of its particles
+     */
+    synchronized void record(String p_key, double p_meanSteps)
+    {
+        m_measuredCosts.setProperty(p_key, String.valueOf(p_meanSteps));
+    }
+    
+    /**
+     * Save the costs measured during this run, keeping the ones of the previous runs for the starting positions not simulated this time
+     * @throws IOException
+     */
+    synchronized void save() throws IOException
+    {
+        Properties allCosts = new Properties();
+        allCosts.putAll(m_previousCosts);
+        allCosts.putAll(m_measuredCosts);
+        
+        if (m_statisticsFile.getParentFile().mkdirs() || m_statisticsFile.getParentFile().isDirectory())
+        {
+            try (FileWriter writer = new FileWriter(m_statisticsFile))
+            {
+                allCosts.store(writer, "Mean number of steps of the particles of each starting position, used to schedule the next runs");
+            }
+        }
+    }
+}
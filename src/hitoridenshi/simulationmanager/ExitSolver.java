@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The exits of the ballistic particles of an absorber, solved from the conservation of their energy instead of being simulated step by step
+ * Without collisions, the kinetic energy of a particle at a position is its initial one plus the work of the field since its start. The potential, integral of the acceleration given by the field table, is calculated once at the positions of the table; the field being linear between them, the potential is quadratic there and the turning points, where the kinetic energy vanishes, are found exactly within each interval.
+ * A particle going to an exit without turning back exits there. A particle turning back once goes the other way with the same energy, and is trapped between two turning points if it turns back again, never to be collected.
+ * The time of flight is the integral of dx/v, calculated by adaptive Simpson quadrature over each interval of the table. The position is changed to x = a + (b - a)(1 - cos t)/2, which removes the singularity of the velocity vanishing at the turning points.
+ * The solved exit times are exact for the tabulated field, and therefore differ slightly from those of the time steps of the simulation.
+ * The potential also bounds the energy the field can give to a particle between two collisions, from which the colliding particles choose their maximum collision rate.
+ * @author Alban Lafuente
+ */
+class ExitSolver
+{
+    //the absolute precision of the time of flight over an interval of the table, as a fraction of the time step
+    private static final double TIME_TOLERANCE = 1e-4;
+    private static final int MAXIMUM_DEPTH = 30;
+    
+    //the positions of the field table, the acceleration of the particle there and the slope of the acceleration between them
+    private final double[] m_positions;
+    private final double[] m_accelerations;
+    private final double[] m_slopes;
+    //the potential energy per unit mass at the positions of the table, 0 at the first one, in J/kg
+    private final double[] m_potentials;
+    
+    private final double m_lowestExit;
+    private final double m_highestExit;
+    private final Particle.CollectionState m_lowestChannel;
+    private final Particle.CollectionState m_highestChannel;
+    private final double m_timeStep;
+    private final int m_maxSteps;
+    
+    /**
+     * Calculate the potential of an absorber
+     * @param p_absorber the absorber
+     * @param p_conditions the conditions of the simulation
+     */
+    ExitSolver(Absorber p_absorber, CalculationConditions p_conditions)
+    {
+        HashMap<String, BigDecimal> parameters = p_conditions.getParticleParameters();
+        double chargeOverMass = parameters.get("charge").doubleValue() / parameters.get("mass").doubleValue();
+        double[] field = p_absorber.getElectricField().getValues();
+        double front = p_absorber.getFrontPosition().doubleValue();
+        double back = p_absorber.getBackPosition().doubleValue();
+        
+        m_positions = p_absorber.getElectricField().getPositions();
+        m_accelerations = new double[field.length];
+        for (int i = 0 ; i < field.length ; i += 1)
+        {
+            m_accelerations[i] = chargeOverMass * field[i];
+        }
+        m_slopes = new double[Math.max(m_positions.length - 1, 0)];
+        m_potentials = new double[m_positions.length];
+        for (int i = 0 ; i < m_slopes.length ; i += 1)
+        {
+            double length = m_positions[i + 1] - m_positions[i];
+            m_slopes[i] = (m_accelerations[i + 1] - m_accelerations[i]) / length;
+            m_potentials[i + 1] = m_potentials[i] - length * (m_accelerations[i] + m_accelerations[i + 1]) / 2;
+        }
+        
+        m_lowestExit = Math.min(front, back);
+        m_highestExit = Math.max(front, back);
+        m_lowestChannel = front < back ? Particle.CollectionState.FRONT : Particle.CollectionState.BACK;
+        m_highestChannel = front < back ? Particle.CollectionState.BACK : Particle.CollectionState.FRONT;
+        m_timeStep = CalculationConditions.DT.doubleValue();
+        m_maxSteps = p_conditions.getMaxSteps();
+    }
+    
+    /**
+     * Solve the exit of a particle
+     * @param p_position the initial position of the particle, in m
+     * @param p_velocity the initial velocity of the particle, in m/s
+     * @return the outcome of the particle, packed as in ExitMap, NOTCOLLECTED with the maximum number of steps if it does not exit within its lifetime, or ExitMap.NO_OUTCOME if it does not start between the exits or leaves the field table before reaching them
+     */
+    int getOutcome(double p_position, double p_velocity)
+    {
+        int outcome = ExitMap.NO_OUTCOME;
+        
+        if (p_position > m_lowestExit && p_position < m_highestExit)
+        {
+            double maximumTime = m_maxSteps * m_timeStep;
+            int direction = (int) Math.signum(p_velocity);
+            //a particle starting at rest is already at its turning point
+            boolean turned = direction == 0;
+            if (turned)
+            {
+                int restSegment = findSegment(p_position, 1);
+                direction = restSegment >= 0 && restSegment < m_slopes.length ? (int) Math.signum(acceleration(restSegment, p_position)) : 0;
+            }
+            
+            int segment = findSegment(p_position, direction);
+            double position = p_position;
+            double energy = segment >= 0 && segment < m_slopes.length ? p_velocity * p_velocity / 2 + potential(segment, position) : 0;
+            double time = 0;
+            while (outcome == ExitMap.NO_OUTCOME && direction != 0 && segment >= 0 && segment < m_slopes.length)
+            {
+                double end = direction > 0 ? Math.min(m_positions[segment + 1], m_highestExit) : Math.max(m_positions[segment], m_lowestExit);
+                //the kinetic energy is the lowest where the acceleration along the motion changes from negative to positive
+                double slowest = zeroOfAcceleration(segment);
+                double stop = Double.NaN;
+                if (direction * acceleration(segment, position) < 0 && (slowest - position) * direction > 0 && (end - slowest) * direction > 0 && energy <= potential(segment, slowest))
+                {
+                    stop = slowest;
+                }
+                else if (energy <= potential(segment, end))
+                {
+                    stop = end;
+                }
+                
+                if (Double.isNaN(stop))
+                {
+                    time += new Flight(segment, position, end, energy).getTime();
+                    position = end;
+                    if (end == m_highestExit && direction > 0 || end == m_lowestExit && direction < 0)
+                    {
+                        double steps = Math.ceil(time / m_timeStep);
+                        outcome = steps <= m_maxSteps ? ExitMap.outcome(direction > 0 ? m_highestChannel : m_lowestChannel, (int) steps) : ExitMap.outcome(Particle.CollectionState.NOTCOLLECTED, m_maxSteps);
+                    }
+                    else
+                    {
+                        segment += direction;
+                    }
+                }
+                else if (turned)
+                {
+                    //trapped between two turning points
+                    outcome = ExitMap.outcome(Particle.CollectionState.NOTCOLLECTED, m_maxSteps);
+                }
+                else
+                {
+                    double turningPoint = findTurningPoint(segment, position, stop, energy);
+                    time += new Flight(segment, position, turningPoint, energy).getTime();
+                    position = turningPoint;
+                    energy = potential(segment, position);
+                    //the particle goes back where the field pushes it
+                    direction = (int) Math.signum(acceleration(segment, position));
+                    turned = true;
+                }
+                
+                if (outcome == ExitMap.NO_OUTCOME && time > maximumTime)
+                {
+                    outcome = ExitMap.outcome(Particle.CollectionState.NOTCOLLECTED, m_maxSteps);
+                }
+            }
+            
+            //a particle stopping where the field vanishes never comes back
+            if (outcome == ExitMap.NO_OUTCOME && direction == 0 && segment >= 0 && segment < m_slopes.length)
+            {
+                outcome = ExitMap.outcome(Particle.CollectionState.NOTCOLLECTED, m_maxSteps);
+            }
+        }
+        
+        return outcome;
+    }
+    
+    /**
+     * @param p_position a position
+     * @param p_direction the direction of the motion from the position
+     * @return the index of the interval of the table the particle goes through from the position, -1 or the number of intervals if it is out of the table
+     */
+    private int findSegment(double p_position, int p_direction)
+    {
+        int index = Arrays.binarySearch(m_positions, p_position);
+        
+        return index >= 0 ? (p_direction < 0 ? index - 1 : index) : -index - 2;
+    }
+    
+    private double acceleration(int p_segment, double p_position)
+    {
+        return m_accelerations[p_segment] + m_slopes[p_segment] * (p_position - m_positions[p_segment]);
+    }
+    
+    private double potential(int p_segment, double p_position)
+    {
+        double distance = p_position - m_positions[p_segment];
+        
+        return m_potentials[p_segment] - distance * (m_accelerations[p_segment] + m_slopes[p_segment] * distance / 2);
+    }
+    
+    /**
+     * Give the largest kinetic energy a particle can gain from the field while it moves between the exits, whatever its direction: the difference between the highest and the lowest potential there
+     * @return the largest gain of kinetic energy per unit mass, in J/kg
+     */
+    double getLargestEnergyGain()
+    {
+        int first = Math.max(findSegment(m_lowestExit, 1), 0);
+        int last = Math.min(findSegment(m_highestExit, -1), m_slopes.length - 1);
+        double highest = Double.NEGATIVE_INFINITY;
+        double lowest = Double.POSITIVE_INFINITY;
+        
+        //the potential is quadratic in each interval, its extrema being at the ends of the interval or where the acceleration vanishes
+        for (int i = first ; i <= last ; i += 1)
+        {
+            double start = Math.max(m_positions[i], m_lowestExit);
+            double end = Math.min(m_positions[i + 1], m_highestExit);
+            double zero = zeroOfAcceleration(i);
+            for (double position: new double[] {start, end, zero > start && zero < end ? zero : start})
+            {
+                double potential = potential(i, position);
+                highest = Math.max(highest, potential);
+                lowest = Math.min(lowest, potential);
+            }
+        }
+        
+        return highest > lowest ? highest - lowest : 0;
+    }
+    
+    /**
+     * @return the position where the acceleration vanishes within the interval, NaN if it keeps the same sign
+     */
+    private double zeroOfAcceleration(int p_segment)
+    {
+        return m_accelerations[p_segment] * m_accelerations[p_segment + 1] < 0 ? m_positions[p_segment] - m_accelerations[p_segment] / m_slopes[p_segment] : Double.NaN;
+    }
+    
+    /**
+     * Find the turning point by bisection, the kinetic energy having a single zero between the two positions
+     * @param p_segment the interval of the table containing the two positions
+     * @param p_moving a position where the particle still moves
+     * @param p_stopped a position the particle does not reach
+     * @param p_energy the total energy of the particle per unit mass
+     * @return the turning point, where the kinetic energy is not positive
+     */
+    private double findTurningPoint(int p_segment, double p_moving, double p_stopped, double p_energy)
+    {
+        double moving = p_moving;
+        double stopped = p_stopped;
+        double middle = (moving + stopped) / 2;
+        
+        while (middle != moving && middle != stopped)
+        {
+            if (p_energy > potential(p_segment, middle))
+            {
+                moving = middle;
+            }
+            else
+            {
+                stopped = middle;
+            }
+            middle = (moving + stopped) / 2;
+        }
+        
+        return stopped;
+    }
+    
+    /**
+     * The flight of a particle through a part of an interval of the table, whose time is the integral of dx/v over the angle t of x = a + (b - a)(1 - cos t)/2
+     * At an end where the particle stops, the integrand tends to sqrt((b - a) / 2 / |acceleration|).
+     */
+    private class Flight
+    {
+        private final int m_segment;
+        private final double m_from;
+        private final double m_to;
+        private final double m_energy;
+        private final double m_halfLength;
+        
+        Flight(int p_segment, double p_from, double p_to, double p_energy)
+        {
+            m_segment = p_segment;
+            m_from = p_from;
+            m_to = p_to;
+            m_energy = p_energy;
+            m_halfLength = Math.abs(p_to - p_from) / 2;
+        }
+        
+        /**
+         * @return the time of flight from the first position to the second one, in s
+         */
+        double getTime()
+        {
+            double start = integrand(0);
+            double middle = integrand(Math.PI / 2);
+            double end = integrand(Math.PI);
+            
+            return simpson(0, Math.PI, start, middle, end, Math.PI / 6 * (start + 4 * middle + end), TIME_TOLERANCE * m_timeStep, MAXIMUM_DEPTH);
+        }
+        
+        private double integrand(double p_angle)
+        {
+            double position = m_from + (m_to - m_from) * (1 - Math.cos(p_angle)) / 2;
+            double kineticEnergy = m_energy - potential(m_segment, position);
+            double value;
+            
+            if (kineticEnergy > 0)
+            {
+                value = m_halfLength * Math.sin(p_angle) / Math.sqrt(2 * kineticEnergy);
+            }
+            else
+            {
+                //the particle is at rest at the closest end
+                value = Math.sqrt(m_halfLength / Math.abs(acceleration(m_segment, p_angle < Math.PI / 2 ? m_from : m_to)));
+            }
+            
+            return value;
+        }
+        
+        private double simpson(double p_start, double p_end, double p_startValue, double p_middleValue, double p_endValue, double p_whole, double p_tolerance, int p_depth)
+        {
+            double middle = (p_start + p_end) / 2;
+            double leftValue = integrand((p_start + middle) / 2);
+            double rightValue = integrand((middle + p_end) / 2);
+            double left = (middle - p_start) / 6 * (p_startValue + 4 * leftValue + p_middleValue);
+            double right = (p_end - middle) / 6 * (p_middleValue + 4 * rightValue + p_endValue);
+            double time;
+            
+            if (p_depth <= 0 || Math.abs(left + right - p_whole) <= 15 * p_tolerance)
+            {
+                time = left + right + (left + right - p_whole) / 15;
+            }
+            else
+            {
+                time = simpson(p_start, middle, p_startValue, leftValue, p_middleValue, left, p_tolerance / 2, p_depth - 1) + simpson(middle, p_end, p_middleValue, rightValue, p_endValue, right, p_tolerance / 2, p_depth - 1);
+            }
+            
+            return time;
+        }
+    }
+}
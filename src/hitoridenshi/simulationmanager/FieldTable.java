@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * The electric field of an absorber, sum of all its terms, in flat arrays read by the particles at each step
+ * The terms are summed once at the positions of all of them, within the range of the first one, and the slope of the linear interpolation of each interval is calculated beforehand. Reading the field is then a binary search and a multiplication, whatever the number of terms.
+ * @author Alban Lafuente
+ */
+class FieldTable
+{
+    private final BigDecimal[] m_positions;
+    private final BigDecimal[] m_values;
+    //the interpolation between the positions i and i+1 is m_slopes[i] * x + m_offsets[i]
+    private final BigDecimal[] m_slopes;
+    private final BigDecimal[] m_offsets;
+    
+    /**
+     * @param p_terms the terms of the field, the first one, usually the field given by SCAPS, giving the range of the table
+     */
+    FieldTable(List<FieldTerm> p_terms)
+    {
+        TreeSet<BigDecimal> abscissa = new TreeSet<>(p_terms.get(0).getAbscissa());
+        BigDecimal first = abscissa.first();
+        BigDecimal last = abscissa.last();
+        for (FieldTerm term: p_terms.subList(1, p_terms.size()))
+        {
+            //the positions already present are kept as they are, to only sample the first term where it is defined
+            abscissa.addAll(new TreeSet<>(term.getAbscissa()).subSet(first, true, last, true));
+        }
+        
+        m_positions = abscissa.toArray(new BigDecimal[0]);
+        m_values = new BigDecimal[m_positions.length];
+        for (int i = 0 ; i < m_positions.length ; i += 1)
+        {
+            BigDecimal value = p_terms.get(0).getValueAtPosition(m_positions[i]);
+            for (FieldTerm term: p_terms.subList(1, p_terms.size()))
+            {
+                try
+                {
+                    value = value.add(term.getValueAtPosition(m_positions[i]));
+                }
+                catch (NoSuchElementException ex)
+                {
+                    //the term is not defined there
+                }
+            }
+            m_values[i] = value;
+        }
+        
+        m_slopes = new BigDecimal[Math.max(m_positions.length - 1, 0)];
+        m_offsets = new BigDecimal[m_slopes.length];
+        for (int i = 0 ; i < m_slopes.length ; i += 1)
+        {
+            m_slopes[i] = (m_values[i + 1].subtract(m_values[i])).divide(m_positions[i + 1].subtract(m_positions[i]), MathContext.DECIMAL128);
+            m_offsets[i] = m_values[i].subtract(m_slopes[i].multiply(m_positions[i]));
+        }
+    }
+    
+    /**
+     * Give the field at the given position, linearly interpolated between the two closest positions of the table
+     * @param p_position a position, in m
+     * @return the field, in V/m
+     * @throws NoSuchElementException if the position is out of the table
+     */
+    BigDecimal getValueAtPosition(BigDecimal p_position) throws NoSuchElementException
+    {
+        int index = Arrays.binarySearch(m_positions, p_position);
+        BigDecimal value;
+        
+        if (index >= 0)
+        {
+            value = m_values[index];
+        }
+        else
+        {
+            //the interval containing the position starts at the position before its insertion point
+            int interval = -index - 2;
+            if (interval < 0 || interval >= m_slopes.length)
+            {
+                throw new NoSuchElementException("No field value for position:" + String.valueOf(p_position));
+            }
+            value = m_slopes[interval].multiply(p_position).add(m_offsets[interval]);
+        }
+        
+        return value;
+    }
+    
+    /**
+     * @return the positions of the table, in increasing order, in m
+     */
+    double[] getPositions()
+    {
+        double[] positions = new double[m_positions.length];
+        
+        for (int i = 0 ; i < m_positions.length ; i += 1)
+        {
+            positions[i] = m_positions[i].doubleValue();
+        }
+        
+        return positions;
+    }
+    
+    /**
+     * @return the field at each position of the table, in V/m
+     */
+    double[] getValues()
+    {
+        double[] values = new double[m_values.length];
+        
+        for (int i = 0 ; i < m_values.length ; i += 1)
+        {
+            values[i] = m_values[i].doubleValue();
+        }
+        
+        return values;
+    }
+}
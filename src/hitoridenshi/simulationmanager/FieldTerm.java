@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * A contribution to the electric field seen by the particles in the absorber: the internal field given by SCAPS, the effective field of the notch, a band grading, a quantum dot or a profile given by the user
+ * The terms of an absorber are summed once when it is built into a FieldTable, in which the particles read the field at each step, so that a term does not cost anything during the simulation.
+ * @author Alban Lafuente
+ */
+public interface FieldTerm
+{
+    /**
+     * @param p_position a position, in m
+     * @return the field of the term at the position, in V/m
+     * @throws NoSuchElementException if the term is not defined at the position, where it does not add anything to the field
+     */
+    BigDecimal getValueAtPosition(BigDecimal p_position) throws NoSuchElementException;
+    
+    /**
+     * @return the positions at which the term has to be sampled for the linear interpolation between them to follow it, in m
+     */
+    Set<BigDecimal> getAbscissa();
+    
+    /**
+     * Read a field profile given by the user
+     * @param p_file a txt file of two columns separated by a tab: the position, in the unit of the abscissa, and the field, in V/cm as in the SCAPS files
+     * @param p_abscissaMultiplier the multiplier to convert the positions into m
+     * @return the profile, linearly interpolated between its positions
+     * @throws DataFormatException if the file is not a txt file
+     * @throws IOException
+     */
+    static FieldTerm readProfile(File p_file, BigDecimal p_abscissaMultiplier) throws DataFormatException, IOException
+    {
+        return ContinuousFunction.createFieldFromProfile(p_file, p_abscissaMultiplier);
+    }
+}
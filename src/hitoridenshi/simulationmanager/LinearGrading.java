@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The effective electric field of a linear grading of the band of the particles between two positions, constant between them and null elsewhere
+ * @author Alban Lafuente
+ */
+public class LinearGrading implements FieldTerm
+{
+    //the width over which the field goes from 0 to its value at the edges of the grading, in m
+    private static final BigDecimal EDGE = new BigDecimal("1e-12");
+    
+    private final BigDecimal m_start;
+    private final BigDecimal m_end;
+    private final BigDecimal m_field;
+    
+    /**
+     * @param p_start a position of the grading, in m
+     * @param p_startEnergy the potential energy of the particles at p_start, in J
+     * @param p_end the other position of the grading, in m
+     * @param p_endEnergy the potential energy of the particles at p_end, in J
+     * @param p_charge the charge of the particles, in C
+     */
+    public LinearGrading(BigDecimal p_start, BigDecimal p_startEnergy, BigDecimal p_end, BigDecimal p_endEnergy, BigDecimal p_charge)
+    {
+        if (p_start.compareTo(p_end) == 0)
+        {
+            throw new IllegalArgumentException("A grading needs two different positions.");
+        }
+        
+        m_start = CalculationConditions.formatBigDecimal(p_start.min(p_end));
+        m_end = CalculationConditions.formatBigDecimal(p_start.max(p_end));
+        //the force is minus the slope of the potential energy
+        m_field = CalculationConditions.formatBigDecimal(p_endEnergy.subtract(p_startEnergy).divide(p_end.subtract(p_start), MathContext.DECIMAL128).divide(p_charge, MathContext.DECIMAL128).negate());
+    }
+    
+    @Override
+    public BigDecimal getValueAtPosition(BigDecimal p_position)
+    {
+        return p_position.compareTo(m_start) >= 0 && p_position.compareTo(m_end) <= 0 ? m_field : BigDecimal.ZERO;
+    }
+    
+    @Override
+    public Set<BigDecimal> getAbscissa()
+    {
+        Set<BigDecimal> abscissa = new TreeSet<>();
+        abscissa.add(CalculationConditions.formatBigDecimal(m_start.subtract(EDGE)));
+        abscissa.add(m_start);
+        abscissa.add(m_end);
+        abscissa.add(CalculationConditions.formatBigDecimal(m_end.add(EDGE)));
+        
+        return abscissa;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "grading("+m_start+","+m_end+","+m_field+")";
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Accumulates the mean and standard deviation, at each step or over each bucket of steps, of a quantity (position, velocity or acceleration) over a set of particles
+ * A particle whose history is shorter than the others is counted with its last value until the end, as a collected particle stays where it exited.
+ * Each particle has a weight, 1 unless its velocity has been drawn by importance sampling. The weights replace the counts of the particles, which gives exactly the same result when they are all 1.
+ * When the steps are gathered in buckets, the statistics of a bucket are the ones of all the values of the particles at its steps, and the minimum and maximum of these values are kept too. The arrays then have one element per bucket, and buckets of a single step give the statistics at each step.
+ *
+ * The accumulation uses the weighted version of Welford's algorithm in each bucket, and Chan's formula to combine two sets of particles. Only primitive arrays are used.
+ * Precision: with N values in a bucket bounded by |x|max, the error on the mean stays below N * 2^-53 * |x|max, and the error on the variance below N * 2^-53 times the variance multiplied by the condition number sqrt(1 + mean² / variance). A sum of the squares would multiply it by the square of the condition number instead, losing the spread of positions far from the origin.
+ * For a million particles, it is under 1e-10 relative to |x|max, while the files are written with a precision of DECIMAL32 (about 1e-7): the result is the same as with a BigDecimal accumulation with DECIMAL128 rounding.
+ *
+ * The padding of the short histories is not written down: the last values of the particles ending at a given bucket are gathered in a separate set, and added back when the result is computed. The last value of a particle ending in the middle of a bucket is added to this bucket once for each of its remaining steps.
+ * Adding a particle thus costs the length of its own history only, not the one of the longest particle.
+ * @author Alban Lafuente
+ */
+class MeanAccumulator
+{
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    //the number of steps gathered in each bucket
+    private final int m_bucketSteps;
+    
+    //statistics of the particles that are still moving in each bucket
+    private double[] m_weights = new double[INITIAL_CAPACITY];
+    private double[] m_means = new double[INITIAL_CAPACITY];
+    private double[] m_squaredDeviations = new double[INITIAL_CAPACITY];
+    private double[] m_minima = new double[INITIAL_CAPACITY];
+    private double[] m_maxima = new double[INITIAL_CAPACITY];
+    
+    //statistics of the last value of the particles, indexed by the first bucket in which they are only padding
+    private double[] m_endWeights = new double[INITIAL_CAPACITY];
+    private double[] m_endMeans = new double[INITIAL_CAPACITY];
+    private double[] m_endSquaredDeviations = new double[INITIAL_CAPACITY];
+    private double[] m_endMinima = new double[INITIAL_CAPACITY];
+    private double[] m_endMaxima = new double[INITIAL_CAPACITY];
+    
+    //the number of steps accumulated
+    private int m_length = 0;
+    private long m_numberOfSeries = 0;
+    
+    /**
+     * @param p_bucketSteps the number of steps gathered in each bucket, 1 to keep the statistics of each step
+     */
+    MeanAccumulator(int p_bucketSteps)
+    {
+        m_bucketSteps = p_bucketSteps;
+    }
+    
+    /**
+     * Add the value of a particle at a given step
+     * @param p_step the step number
+     * @param p_value the value of the particle at this step
+     * @param p_weight the weight of the particle
+     */
+    void addSample(int p_step, double p_value, double p_weight)
+    {
+        int bucket = p_step / m_bucketSteps;
+        ensureCapacity(bucket + 1);
+        m_length = Math.max(m_length, p_step + 1);
+        
+        addToBucket(bucket, p_value, p_weight);
+    }
+    
+    /**
+     * Tell that a particle history has ended, so its last value has to be used for all the following steps
+     * @param p_length the length of the particle history
+     * @param p_lastValue the last value of the particle
+     * @param p_weight the weight of the particle
+     */
+    void endSeries(int p_length, double p_lastValue, double p_weight)
+    {
+        int bucket = p_length / m_bucketSteps;
+        int stepsInBucket = p_length % m_bucketSteps;
+        ensureCapacity(bucket + (stepsInBucket > 0 ? 2 : 1));
+        m_numberOfSeries += 1;
+        
+        //the end of the bucket in which the history stops is padded right away
+        if (stepsInBucket > 0)
+        {
+            addToBucket(bucket, p_lastValue, p_weight * (m_bucketSteps - stepsInBucket));
+            bucket += 1;
+        }
+        
+        //a sample of weight 0, like a very unlikely velocity of the importance sampling, changes nothing
+        double weight = m_endWeights[bucket] + p_weight * m_bucketSteps;
+        if (weight > 0)
+        {
+            double deviation = p_lastValue - m_endMeans[bucket];
+            m_endMinima[bucket] = m_endWeights[bucket] > 0 ? Math.min(m_endMinima[bucket], p_lastValue) : p_lastValue;
+            m_endMaxima[bucket] = m_endWeights[bucket] > 0 ? Math.max(m_endMaxima[bucket], p_lastValue) : p_lastValue;
+            m_endWeights[bucket] = weight;
+            m_endMeans[bucket] += deviation * p_weight * m_bucketSteps / weight;
+            m_endSquaredDeviations[bucket] += p_weight * m_bucketSteps * deviation * (p_lastValue - m_endMeans[bucket]);
+        }
+    }
+    
+    /**
+     * Add a value to the statistics of the moving particles in a bucket
+     * @param p_bucket the bucket
+     * @param p_value the value
+     * @param p_weight the weight of the value, the weight of the particle times the number of steps at which it has this value
+     */
+    private void addToBucket(int p_bucket, double p_value, double p_weight)
+    {
+        double weight = m_weights[p_bucket] + p_weight;
+        
+        if (weight > 0)
+        {
+            double deviation = p_value - m_means[p_bucket];
+            m_minima[p_bucket] = m_weights[p_bucket] > 0 ? Math.min(m_minima[p_bucket], p_value) : p_value;
+            m_maxima[p_bucket] = m_weights[p_bucket] > 0 ? Math.max(m_maxima[p_bucket], p_value) : p_value;
+            m_weights[p_bucket] = weight;
+            m_means[p_bucket] += deviation * p_weight / weight;
+            m_squaredDeviations[p_bucket] += p_weight * deviation * (p_value - m_means[p_bucket]);
+        }
+    }
+    
+    /**
+     * Add all the particles of another accumulator to this one
+     * @param p_other the accumulator to add, with the same buckets
+     */
+    void merge(MeanAccumulator p_other)
+    {
+        int otherBuckets = p_other.getNumberOfBuckets();
+        ensureCapacity(Math.max(otherBuckets, p_other.m_endWeights.length));
+        m_length = Math.max(m_length, p_other.m_length);
+        m_numberOfSeries += p_other.m_numberOfSeries;
+        
+        for (int i = 0 ; i < otherBuckets ; i += 1)
+        {
+            double[] combined = combine(m_weights[i], m_means[i], m_squaredDeviations[i], p_other.m_weights[i], p_other.m_means[i], p_other.m_squaredDeviations[i]);
+            double[] extrema = combineExtrema(m_weights[i], m_minima[i], m_maxima[i], p_other.m_weights[i], p_other.m_minima[i], p_other.m_maxima[i]);
+            m_weights[i] += p_other.m_weights[i];
+            m_means[i] = combined[0];
+            m_squaredDeviations[i] = combined[1];
+            m_minima[i] = extrema[0];
+            m_maxima[i] = extrema[1];
+        }
+        
+        for (int i = 0 ; i < p_other.m_endWeights.length ; i += 1)
+        {
+            double[] combinedEnd = combine(m_endWeights[i], m_endMeans[i], m_endSquaredDeviations[i], p_other.m_endWeights[i], p_other.m_endMeans[i], p_other.m_endSquaredDeviations[i]);
+            double[] endExtrema = combineExtrema(m_endWeights[i], m_endMinima[i], m_endMaxima[i], p_other.m_endWeights[i], p_other.m_endMinima[i], p_other.m_endMaxima[i]);
+            m_endWeights[i] += p_other.m_endWeights[i];
+            m_endMeans[i] = combinedEnd[0];
+            m_endSquaredDeviations[i] = combinedEnd[1];
+            m_endMinima[i] = endExtrema[0];
+            m_endMaxima[i] = endExtrema[1];
+        }
+    }
+    
+    /**
+     * @return the number of steps accumulated, which is the length of the longest history
+     */
+    int getLength()
+    {
+        return m_length;
+    }
+    
+    /**
+     * @return the number of steps gathered in each bucket
+     */
+    int getBucketSteps()
+    {
+        return m_bucketSteps;
+    }
+    
+    /**
+     * @return the number of buckets covering the accumulated steps, the last one being possibly incomplete
+     */
+    int getNumberOfBuckets()
+    {
+        return (m_length + m_bucketSteps - 1) / m_bucketSteps;
+    }
+    
+    /**
+     * @return the number of particle histories accumulated
+     */
+    long getNumberOfSeries()
+    {
+        return m_numberOfSeries;
+    }
+    
+    /**
+     * Compute the mean, the standard deviation, the minimum and the maximum in each bucket
+     * @return an array with the means, the standard deviations, the minima and the maxima, each of them having an element per bucket
+     */
+    double[][] summarize()
+    {
+        int numberOfBuckets = getNumberOfBuckets();
+        double[] means = new double[numberOfBuckets];
+        double[] deviations = new double[numberOfBuckets];
+        double[] minima = new double[numberOfBuckets];
+        double[] maxima = new double[numberOfBuckets];
+        
+        //statistics of the particles that ended before the current bucket
+        double endedWeight = 0;
+        double endedMean = 0;
+        double endedSquaredDeviation = 0;
+        double endedMinimum = 0;
+        double endedMaximum = 0;
+        
+        for (int i = 0 ; i < numberOfBuckets ; i += 1)
+        {
+            double[] ended = combine(endedWeight, endedMean, endedSquaredDeviation, m_endWeights[i], m_endMeans[i], m_endSquaredDeviations[i]);
+            double[] endedExtrema = combineExtrema(endedWeight, endedMinimum, endedMaximum, m_endWeights[i], m_endMinima[i], m_endMaxima[i]);
+            endedWeight += m_endWeights[i];
+            endedMean = ended[0];
+            endedSquaredDeviation = ended[1];
+            endedMinimum = endedExtrema[0];
+            endedMaximum = endedExtrema[1];
+            
+            double[] total = combine(m_weights[i], m_means[i], m_squaredDeviations[i], endedWeight, endedMean, endedSquaredDeviation);
+            double[] totalExtrema = combineExtrema(m_weights[i], m_minima[i], m_maxima[i], endedWeight, endedMinimum, endedMaximum);
+            double totalWeight = m_weights[i] + endedWeight;
+            means[i] = total[0];
+            //with weights, the rounding can leave the sum of squared deviations slightly negative
+            deviations[i] = totalWeight > 1 ? Math.sqrt(Math.max(0, total[1]) / (totalWeight - 1)) : 0;
+            minima[i] = totalExtrema[0];
+            maxima[i] = totalExtrema[1];
+        }
+        
+        return new double[][] {means, deviations, minima, maxima};
+    }
+    
+    /**
+     * Combine the statistics of two sets of values with Chan's formula, the weights of the sets taking the place of their counts
+     * @return an array with the combined mean and the combined sum of weighted squared deviations
+     */
+    private static double[] combine(double p_weightA, double p_meanA, double p_squaredDeviationA, double p_weightB, double p_meanB, double p_squaredDeviationB)
+    {
+        double[] combined;
+        
+        if (p_weightB == 0)
+        {
+            combined = new double[] {p_meanA, p_squaredDeviationA};
+        }
+        else if (p_weightA == 0)
+        {
+            combined = new double[] {p_meanB, p_squaredDeviationB};
+        }
+        else
+        {
+            double weight = p_weightA + p_weightB;
+            double deviation = p_meanB - p_meanA;
+            combined = new double[] {p_meanA + deviation * p_weightB / weight, p_squaredDeviationA + p_squaredDeviationB + deviation * deviation * p_weightA * p_weightB / weight};
+        }
+        
+        return combined;
+    }
+    
+    /**
+     * Combine the extrema of two sets of values, an empty set having no extrema
+     * @return an array with the combined minimum and maximum
+     */
+    private static double[] combineExtrema(double p_weightA, double p_minimumA, double p_maximumA, double p_weightB, double p_minimumB, double p_maximumB)
+    {
+        double[] combined;
+        
+        if (p_weightB == 0)
+        {
+            combined = new double[] {p_minimumA, p_maximumA};
+        }
+        else if (p_weightA == 0)
+        {
+            combined = new double[] {p_minimumB, p_maximumB};
+        }
+        else
+        {
+            combined = new double[] {Math.min(p_minimumA, p_minimumB), Math.max(p_maximumA, p_maximumB)};
+        }
+        
+        return combined;
+    }
+    
+    /**
+     * Write the exact state of the accumulator, so that it can be merged in another process with the same result
+     * @param p_output where the state is written
+     * @throws IOException
+     */
+    void write(DataOutput p_output) throws IOException
+    {
+        int numberOfBuckets = getNumberOfBuckets();
+        p_output.writeInt(m_length);
+        p_output.writeLong(m_numberOfSeries);
+        for (int i = 0 ; i < numberOfBuckets ; i += 1)
+        {
+            p_output.writeDouble(m_weights[i]);
+            p_output.writeDouble(m_means[i]);
+            p_output.writeDouble(m_squaredDeviations[i]);
+            p_output.writeDouble(m_minima[i]);
+            p_output.writeDouble(m_maxima[i]);
+        }
+        
+        //the end statistics are only written up to the last ended history, the empty ones after it change nothing to a merge
+        int endLength = m_endWeights.length;
+        while (endLength > 0 && m_endWeights[endLength - 1] == 0)
+        {
+            endLength -= 1;
+        }
+        p_output.writeInt(endLength);
+        for (int i = 0 ; i < endLength ; i += 1)
+        {
+            p_output.writeDouble(m_endWeights[i]);
+            p_output.writeDouble(m_endMeans[i]);
+            p_output.writeDouble(m_endSquaredDeviations[i]);
+            p_output.writeDouble(m_endMinima[i]);
+            p_output.writeDouble(m_endMaxima[i]);
+        }
+    }
+    
+    /**
+     * Replace the state of the accumulator with one written by write, by an accumulator with the same buckets
+     * @param p_input where the state is read
+     * @throws IOException
+     */
+    void read(DataInput p_input) throws IOException
+    {
+        m_length = p_input.readInt();
+        m_numberOfSeries = p_input.readLong();
+        int numberOfBuckets = getNumberOfBuckets();
+        m_weights = new double[Math.max(numberOfBuckets, INITIAL_CAPACITY)];
+        m_means = new double[m_weights.length];
+        m_squaredDeviations = new double[m_weights.length];
+        m_minima = new double[m_weights.length];
+        m_maxima = new double[m_weights.length];
+        for (int i = 0 ; i < numberOfBuckets ; i += 1)
+        {
+            m_weights[i] = p_input.readDouble();
+            m_means[i] = p_input.readDouble();
+            m_squaredDeviations[i] = p_input.readDouble();
+            m_minima[i] = p_input.readDouble();
+            m_maxima[i] = p_input.readDouble();
+        }
+        
+        int endLength = p_input.readInt();
+        m_endWeights = new double[Math.max(endLength, INITIAL_CAPACITY)];
+        m_endMeans = new double[m_endWeights.length];
+        m_endSquaredDeviations = new double[m_endWeights.length];
+        m_endMinima = new double[m_endWeights.length];
+        m_endMaxima = new double[m_endWeights.length];
+        for (int i = 0 ; i < endLength ; i += 1)
+        {
+            m_endWeights[i] = p_input.readDouble();
+            m_endMeans[i] = p_input.readDouble();
+            m_endSquaredDeviations[i] = p_input.readDouble();
+            m_endMinima[i] = p_input.readDouble();
+            m_endMaxima[i] = p_input.readDouble();
+        }
+    }
+    
+    /**
+     * @param p_capacity the number of buckets needed
+     */
+    private void ensureCapacity(int p_capacity)
+    {
+        if (p_capacity > m_weights.length)
+        {
+            int newCapacity = Math.max(p_capacity, 2 * m_weights.length);
+            m_weights = Arrays.copyOf(m_weights, newCapacity);
+            m_means = Arrays.copyOf(m_means, newCapacity);
+            m_squaredDeviations = Arrays.copyOf(m_squaredDeviations, newCapacity);
+            m_minima = Arrays.copyOf(m_minima, newCapacity);
+            m_maxima = Arrays.copyOf(m_maxima, newCapacity);
+        }
+        if (p_capacity > m_endWeights.length)
+        {
+            int newCapacity = Math.max(p_capacity, 2 * m_endWeights.length);
+            m_endWeights = Arrays.copyOf(m_endWeights, newCapacity);
+            m_endMeans = Arrays.copyOf(m_endMeans, newCapacity);
+            m_endSquaredDeviations = Arrays.copyOf(m_endSquaredDeviations, newCapacity);
+            m_endMinima = Arrays.copyOf(m_endMinima, newCapacity);
+            m_endMaxima = Arrays.copyOf(m_endMaxima, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+/**
+ * Estimates the peak memory used by a simulation before it is launched, from the number of particles, their maximum number of steps and the number of trackers filled at the same time
+ * The estimation is an upper bound: it considers that the particles can live until the end of their lifetime, while most of them usually exit the absorber long before.
+ * Outside of the heap, the store of the simulation is created with the slots of the trackers filled at the same time and never grows: a tracker finding it fully reserved keeps its histories on the heap instead.
+ * @author Alban Lafuente
+ */
+public class MemoryEstimate
+{
+    //approximate size of a BigDecimal of the calculation (object, unscaled BigInteger and its array) plus the reference to it in a list
+    static final long BIGDECIMAL_SIZE = 112;
+    //a MeanAccumulator keeps a weight, a mean, a sum of squared deviations, a minimum and a maximum per bucket of steps, twice (moving and ended particles), and its arrays can be up to twice too big after growing
+    static final long ACCUMULATOR_SIZE_PER_BUCKET = 2 * 2 * 5 * Double.BYTES;
+    //a tracker has an accumulator for the position, velocity and acceleration of all, front and back particles
+    static final int ACCUMULATORS_PER_TRACKER = 9;
+    //a particle history has a position, a velocity and an acceleration per step
+    static final int VALUES_PER_STEP = 3;
+    
+    private final long m_accumulatorBytes;
+    private final long m_heapHistoryBytes;
+    private final long m_storeBytes;
+    private final long m_otherBytes;
+    private final int m_concurrentTrackers;
+    private final int m_totalTrackers;
+    private final boolean m_exitOnly;
+    
+    /**
+     * Estimate the memory needed by a simulation
+     * @param p_conditions the conditions of the simulation
+     * @param p_numberOfStartingPositions the number of starting positions simulated, over all absorbers, each of them giving a tracker
+     * @param p_concurrentTrackers the number of trackers being filled at the same time
+     * @param p_options the options of the simulation, telling if the trackers only count the exits of the particles and how the mean trajectories are averaged
+     */
+    MemoryEstimate(CalculationConditions p_conditions, int p_numberOfStartingPositions, int p_concurrentTrackers, SimulationOptions p_options)
+    {
+        long historyLength = (long) p_conditions.getMaxSteps() + 1;
+        int numberOfParticles = p_conditions.getNumberOfParticles();
+        
+        m_concurrentTrackers = p_concurrentTrackers;
+        m_totalTrackers = p_numberOfStartingPositions;
+        m_exitOnly = p_options.isExitOnly();
+        
+        long numberOfBuckets = (historyLength + p_options.getMeanBucketSteps() - 1) / p_options.getMeanBucketSteps();
+        m_accumulatorBytes = m_exitOnly ? 0 : ACCUMULATORS_PER_TRACKER * ACCUMULATOR_SIZE_PER_BUCKET * numberOfBuckets;
+        //four kept particles, the particle being simulated and the copy made when a particle is kept
+        m_heapHistoryBytes = m_exitOnly ? 0 : (SimulationTracker.STORE_SLOTS + 1) * VALUES_PER_STEP * BIGDECIMAL_SIZE * historyLength;
+        m_storeBytes = m_exitOnly ? 0 : TrajectoryStore.footprint(SimulationTracker.STORE_SLOTS, p_conditions.getMaxSteps());
+        //the velocities are drawn when needed, only the stratified sampling keeping the interval of each particle
+        m_otherBytes = p_conditions.getVelocitySampling() == CalculationConditions.VelocitySampling.STRATIFIED ? (long) numberOfParticles * Integer.BYTES : 0;
+    }
+    
+    /**
+     * @param p_storage where the particle histories are kept
+     * @return the peak memory taken on the Java heap, in bytes
+     */
+    public long getHeapBytes(SimulationOptions.TrajectoryStorage p_storage)
+    {
+        long perTracker = m_accumulatorBytes + (p_storage == SimulationOptions.TrajectoryStorage.HEAP ? m_heapHistoryBytes : 0);
+        
+        return perTracker * m_concurrentTrackers + m_otherBytes;
+    }
+    
+    /**
+     * @param p_storage where the particle histories are kept
+     * @return the peak memory taken outside of the Java heap, in bytes. For a MAPPED storage, this memory is backed by the scratch file and can be paged out by the system.
+     */
+    public long getOffHeapBytes(SimulationOptions.TrajectoryStorage p_storage)
+    {
+        return p_storage == SimulationOptions.TrajectoryStorage.HEAP ? 0 : m_storeBytes * m_concurrentTrackers;
+    }
+    
+    /**
+     * @return the number of slots of the store of the simulation, enough for all the trackers filled at the same time
+     */
+    int getStoreSlots()
+    {
+        return m_concurrentTrackers * SimulationTracker.STORE_SLOTS;
+    }
+    
+    /**
+     * @param p_storage where the particle histories are kept
+     * @return the peak memory that has to stay in RAM, in bytes
+     */
+    public long getResidentBytes(SimulationOptions.TrajectoryStorage p_storage)
+    {
+        return getHeapBytes(p_storage) + (p_storage == SimulationOptions.TrajectoryStorage.DIRECT ? getOffHeapBytes(p_storage) : 0);
+    }
+    
+    /**
+     * Choose where to keep the particle histories so that the simulation fits in the memory budget
+     * The requested storage is kept if it fits, otherwise the histories are spilled to a scratch file on the disk. Without a budget, the requested storage is always kept if possible.
+     * @param p_requested the storage requested in the options
+     * @param p_budget the memory budget, in bytes, Long.MAX_VALUE if no budget has been set
+     * @param p_heapLimit the maximum size of the Java heap, in bytes
+     * @return the storage to use, or null if the simulation cannot fit in the budget whatever the storage
+     */
+    public SimulationOptions.TrajectoryStorage chooseStorage(SimulationOptions.TrajectoryStorage p_requested, long p_budget, long p_heapLimit)
+    {
+        SimulationOptions.TrajectoryStorage[] candidates = {p_requested, SimulationOptions.TrajectoryStorage.MAPPED, SimulationOptions.TrajectoryStorage.HEAP};
+        SimulationOptions.TrajectoryStorage chosen = null;
+        
+        for (int i = 0 ; i < candidates.length && chosen == null ; i += 1)
+        {
+            if (isPossible(candidates[i]) && (p_budget == Long.MAX_VALUE || fits(candidates[i], p_budget, p_heapLimit)))
+            {
+                chosen = candidates[i];
+            }
+        }
+        
+        return chosen;
+    }
+    
+    /**
+     * @param p_storage where the particle histories are kept
+     * @return true if a whole particle history can be kept in that storage, a slot of a store being limited to 2GiB
+     */
+    public boolean isPossible(SimulationOptions.TrajectoryStorage p_storage)
+    {
+        return p_storage == SimulationOptions.TrajectoryStorage.HEAP || m_storeBytes / SimulationTracker.STORE_SLOTS <= Integer.MAX_VALUE;
+    }
+    
+    private boolean fits(SimulationOptions.TrajectoryStorage p_storage, long p_budget, long p_heapLimit)
+    {
+        return getHeapBytes(p_storage) <= Math.min(p_heapLimit, p_budget) && getResidentBytes(p_storage) <= p_budget;
+    }
+    
+    /**
+     * Format a number of bytes in a human readable way
+     * @param p_bytes the number of bytes
+     * @return the formatted string, in MiB or GiB
+     */
+    public static String formatBytes(long p_bytes)
+    {
+        String formatted;
+        
+        if (p_bytes >= 1L << 30)
+        {
+            formatted = String.format("%.2f GiB", p_bytes / (double) (1L << 30));
+        }
+        else
+        {
+            formatted = String.format("%.1f MiB", p_bytes / (double) (1L << 20));
+        }
+        
+        return formatted;
+    }
+    
+    /**
+     * Give a description of the estimation for the given storage, to be printed to the user
+     * @param p_storage where the particle histories are kept
+     * @return the description
+     */
+    public String describe(SimulationOptions.TrajectoryStorage p_storage)
+    {
+        String description = "Memory estimate: "+m_totalTrackers+" starting positions, up to "+m_concurrentTrackers+" trackers at a time, "+(m_exitOnly ? "without particle histories (exit statistics only)" : "with particle histories kept in "+p_storage.toString().toLowerCase()+" storage")+".\n";
+        description += "\tJava heap: "+formatBytes(getHeapBytes(p_storage));
+        if (p_storage != SimulationOptions.TrajectoryStorage.HEAP)
+        {
+            description += "\n\tOutside of the heap: "+formatBytes(getOffHeapBytes(p_storage))+(p_storage == SimulationOptions.TrajectoryStorage.MAPPED ? " (in a scratch file under the output folder)" : "");
+        }
+        
+        return description;
+    }
+}
@@ -24,6 +24,7 @@ import java.util.List;
 
 /**
  * Represent a particle with its current position and velocity, as well as its movement history
+ * The history is kept on the heap, or in a TrajectoryStore when one is given, or not kept at all when only the exit of the particle is needed
  * @author Alban Lafuente
  */
 public class Particle 
@@ -36,14 +37,30 @@ public class Particle
     private List<BigDecimal> m_velocityList = new ArrayList<>();
     private List<BigDecimal> m_accelerationList = new ArrayList<>();
     
+    //the store in which the history is written when it is not kept on the heap, and the slot reserved for this particle
+    private final TrajectoryStore m_store;
+    private final int m_slot;
+    private final boolean m_recordHistory;
+    private int m_numberOfSteps = 0;
+    
     private CollectionState m_collectionState = CollectionState.NOTCOLLECTED;
     
+    //the collisions of the particle, null for a ballistic motion
+    private ScatteringModel m_scattering = null;
+    private ParticleRandom m_random = null;
+    private double m_maximumRate = 0;
+    private double m_energyGain = 0;
+    private double m_timeToCollision = 0;
+    
     public Particle(BigDecimal p_charge, BigDecimal p_masse, BigDecimal p_position, BigDecimal p_velocity)
     {
         m_charge = CalculationConditions.formatBigDecimal(p_charge);
         m_masse = CalculationConditions.formatBigDecimal(p_masse);
         m_position = CalculationConditions.formatBigDecimal(p_position);
         m_velocity = CalculationConditions.formatBigDecimal(p_velocity);
+        m_store = null;
+        m_slot = -1;
+        m_recordHistory = true;
         
         m_trajectory.add(m_position);
         m_velocityList.add(m_velocity);
@@ -56,14 +73,71 @@ public class Particle
      * @param p_velocity 
      */
     public Particle(HashMap<String, BigDecimal> p_parameters, BigDecimal p_position, BigDecimal p_velocity)
+    {
+        this(p_parameters, p_position, p_velocity, null);
+    }
+    
+    /**
+     * Create a particle from a Hashmap containing its charge and mass, writing its history in the given store
+     * The slot reserved for the particle in the store has to be released by the one who uses the history, usually the SimulationTracker the particle is logged to
+     * @param p_parameters the hashmap containing the particle mass and charge
+     * @param p_position
+     * @param p_velocity
+     * @param p_store the store in which the history is written, or null to keep it on the heap
+     */
+    Particle(HashMap<String, BigDecimal> p_parameters, BigDecimal p_position, BigDecimal p_velocity, TrajectoryStore p_store)
+    {
+        this(p_parameters, p_position, p_velocity, p_store, true);
+    }
+    
+    /**
+     * Create a particle from a Hashmap containing its charge and mass, possibly without any history
+     * A particle without history only keeps its position, its velocity and its number of steps, its history length telling its exit time
+     * @param p_parameters the hashmap containing the particle mass and charge
+     * @param p_position
+     * @param p_velocity
+     * @param p_store the store in which the history is written, or null to keep it on the heap, ignored without history
+     * @param p_recordHistory false to not keep the history of the particle
+     */
+    Particle(HashMap<String, BigDecimal> p_parameters, BigDecimal p_position, BigDecimal p_velocity, TrajectoryStore p_store, boolean p_recordHistory)
     {
         m_charge = CalculationConditions.formatBigDecimal(p_parameters.get("charge"));
         m_masse = CalculationConditions.formatBigDecimal(p_parameters.get("mass"));
         m_position = CalculationConditions.formatBigDecimal(p_position);
         m_velocity = CalculationConditions.formatBigDecimal(p_velocity);
+        m_recordHistory = p_recordHistory;
+        m_store = m_recordHistory ? p_store : null;
         
-        m_trajectory.add(m_position);
-        m_velocityList.add(m_velocity);
+        if (m_store != null)
+        {
+            m_slot = m_store.acquireSlot();
+            m_store.write(m_slot, 0, m_position.doubleValue(), m_velocity.doubleValue(), Double.NaN);
+        }
+        else if (!m_recordHistory)
+        {
+            m_slot = -1;
+        }
+        else
+        {
+            m_slot = -1;
+            m_trajectory.add(m_position);
+            m_velocityList.add(m_velocity);
+        }
+    }
+    
+    /**
+     * Make the particle collide with the lattice during its motion
+     * @param p_scattering the collisions, given by CalculationConditions
+     * @param p_random the random stream of the particle, from which the collisions are drawn
+     * @param p_energyGain the largest kinetic energy per unit mass the field of the absorber can give to the particle between two collisions, in J/kg
+     */
+    void setScattering(ScatteringModel p_scattering, ParticleRandom p_random, double p_energyGain)
+    {
+        m_scattering = p_scattering;
+        m_random = p_random;
+        m_energyGain = p_energyGain;
+        m_maximumRate = m_scattering.getMaximumRate(m_velocity.doubleValue(), m_energyGain, 0);
+        m_timeToCollision = ScatteringModel.drawFlight(m_maximumRate, m_random);
     }
     
     /**
@@ -77,17 +151,44 @@ public class Particle
         
         //calculating acceleration
         BigDecimal currentAcceleration = CalculationConditions.formatBigDecimal(m_charge.multiply(electricFieldValueAtPosition).divide(m_masse, MathContext.DECIMAL128));
-        m_accelerationList.add(currentAcceleration);
         
         //calculating new velocity and a mean velocity that will be used to update the position
         BigDecimal newVelocity = CalculationConditions.formatBigDecimal(m_velocity.add(currentAcceleration.multiply(p_timeStep)));
         BigDecimal meanVelocity = CalculationConditions.formatBigDecimal((m_velocity.add(newVelocity)).divide(new BigDecimal("2", MathContext.DECIMAL128)));
         m_velocity = newVelocity;
-        m_velocityList.add(m_velocity);
         
         //calculating new position
         m_position = CalculationConditions.formatBigDecimal(m_position.add(meanVelocity.multiply(p_timeStep)));
-        m_trajectory.add(m_position);
+        
+        //the collisions happen at the end of the step in which their flight ends, the steps without collision only counting down the flight
+        if (m_scattering != null)
+        {
+            m_timeToCollision -= p_timeStep.doubleValue();
+            if (m_timeToCollision <= 0)
+            {
+                double velocity = m_velocity.doubleValue();
+                while (m_timeToCollision <= 0)
+                {
+                    velocity = m_scattering.collide(velocity, m_maximumRate, m_random);
+                    m_maximumRate = m_scattering.getMaximumRate(velocity, m_energyGain, m_maximumRate);
+                    m_timeToCollision += ScatteringModel.drawFlight(m_maximumRate, m_random);
+                }
+                m_velocity = CalculationConditions.formatBigDecimal(new BigDecimal(velocity));
+            }
+        }
+        
+        if (m_store != null)
+        {
+            m_store.writeAcceleration(m_slot, m_numberOfSteps, currentAcceleration.doubleValue());
+            m_store.write(m_slot, m_numberOfSteps + 1, m_position.doubleValue(), m_velocity.doubleValue(), Double.NaN);
+        }
+        else if (m_recordHistory)
+        {
+            m_accelerationList.add(currentAcceleration);
+            m_velocityList.add(m_velocity);
+            m_trajectory.add(m_position);
+        }
+        m_numberOfSteps += 1;
         
         m_collectionState = p_absorber.giveCollection(m_position);
     }
@@ -102,19 +203,115 @@ public class Particle
         return CalculationConditions.formatBigDecimal(m_position);
     }
     
+    /**
+     * @return the number of positions in the particle history, which is its number of steps plus one
+     */
+    public int getHistoryLength()
+    {
+        return m_numberOfSteps + 1;
+    }
+    
+    /**
+     * @param p_step the step number
+     * @return the position of the particle at the given step
+     */
+    public double getPositionAt(int p_step)
+    {
+        return m_store != null ? m_store.getPosition(m_slot, p_step) : m_trajectory.get(p_step).doubleValue();
+    }
+    
+    /**
+     * @param p_step the step number
+     * @return the velocity of the particle at the given step
+     */
+    public double getVelocityAt(int p_step)
+    {
+        return m_store != null ? m_store.getVelocity(m_slot, p_step) : m_velocityList.get(p_step).doubleValue();
+    }
+    
+    /**
+     * @param p_step the step number, lower than the number of steps
+     * @return the acceleration applied to the particle from the given step to the next one
+     */
+    public double getAccelerationAt(int p_step)
+    {
+        return m_store != null ? m_store.getAcceleration(m_slot, p_step) : m_accelerationList.get(p_step).doubleValue();
+    }
+    
     public ArrayList<BigDecimal> getTrajectory()
     {
-        return new ArrayList(m_trajectory);
+        ArrayList<BigDecimal> trajectory;
+        
+        if (m_store != null)
+        {
+            trajectory = new ArrayList<>();
+            for (int i = 0 ; i <= m_numberOfSteps ; i += 1)
+            {
+                trajectory.add(new BigDecimal(m_store.getPosition(m_slot, i)));
+            }
+        }
+        else
+        {
+            trajectory = new ArrayList(m_trajectory);
+        }
+        
+        return trajectory;
     }
     
     public ArrayList<BigDecimal> getVelocityList()
     {
-        return new ArrayList(m_velocityList);
+        ArrayList<BigDecimal> velocities;
+        
+        if (m_store != null)
+        {
+            velocities = new ArrayList<>();
+            for (int i = 0 ; i <= m_numberOfSteps ; i += 1)
+            {
+                velocities.add(new BigDecimal(m_store.getVelocity(m_slot, i)));
+            }
+        }
+        else
+        {
+            velocities = new ArrayList(m_velocityList);
+        }
+        
+        return velocities;
     }
     
     public ArrayList<BigDecimal> getAccelerationList()
     {
-        return new ArrayList(m_accelerationList);
+        ArrayList<BigDecimal> accelerations;
+        
+        if (m_store != null)
+        {
+            accelerations = new ArrayList<>();
+            for (int i = 0 ; i < m_numberOfSteps ; i += 1)
+            {
+                accelerations.add(new BigDecimal(m_store.getAcceleration(m_slot, i)));
+            }
+        }
+        else
+        {
+            accelerations = new ArrayList(m_accelerationList);
+        }
+        
+        return accelerations;
+    }
+    
+    /**
+     * @return the store in which the history of the particle is written, null if it is kept on the heap or not kept
+     */
+    TrajectoryStore getStore()
+    {
+        return m_store;
+    }
+    
+    /**
+     * @return the slot of the store in which the history of the particle is written, -1 if it is kept on the heap
+     */
+    int getSlot()
+    {
+        return m_slot;
     }
     
     public CollectionState getCollection ()
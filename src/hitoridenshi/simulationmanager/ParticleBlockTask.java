@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The simulation of the particles of a range of the velocity list, all starting from the same position in the same absorber
+ * A range bigger than the block size is cut in two halves calculated in parallel, whose trackers are then merged in the order of the velocity list.
+ * The blocks only depend on the number of particles and the block size, so the result does not depend on the number of threads or on the order in which the blocks are calculated.
+ * The control of the simulation is checked at each step, so that a pause or a cancellation is taken into account within a step.
+ * @author Alban Lafuente
+ */
+class ParticleBlockTask extends RecursiveTask<SimulationTracker>
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final StartingPositionTask m_unit;
+    private final int m_from;
+    private final int m_to;
+    
+    /**
+     * @param p_unit the task this block is part of
+     * @param p_from the index of the first velocity of the block in the velocity list
+     * @param p_to the index after the last velocity of the block
+     */
+    ParticleBlockTask(StartingPositionTask p_unit, int p_from, int p_to)
+    {
+        m_unit = p_unit;
+        m_from = p_from;
+        m_to = p_to;
+    }
+    
+    /**
+     * @return the number of particles of the block
+     */
+    int getNumberOfParticles()
+    {
+        return m_to - m_from;
+    }
+    
+    /**
+     * Give the blocks a range of particles is cut into, in the order of the velocity list
+     * @param p_from the index of the first particle of the range
+     * @param p_to the index after the last particle of the range
+     * @param p_blockSize the maximum number of particles in a block
+     * @return the first and last (excluded) index of each block
+     */
+    static List<int[]> leafBlocks(int p_from, int p_to, int p_blockSize)
+    {
+        List<int[]> blocks = new ArrayList<>();
+        
+        if (p_to - p_from <= p_blockSize)
+        {
+            blocks.add(new int[] {p_from, p_to});
+        }
+        else
+        {
+            int middle = (p_from + p_to) >>> 1;
+            blocks.addAll(leafBlocks(p_from, middle, p_blockSize));
+            blocks.addAll(leafBlocks(middle, p_to, p_blockSize));
+        }
+        
+        return blocks;
+    }
+    
+    /**
+     * Merge the trackers of the blocks of a range of particles in the same order as the calculation of the whole range does, so that the result is the same
+     * @param p_blockTrackers the trackers of the blocks given by leafBlocks, in their order. They cannot be used afterwards.
+     * @param p_from the index of the first particle of the range
+     * @param p_to the index after the last particle of the range
+     * @param p_blockSize the maximum number of particles in a block
+     * @return the tracker of the whole range
+     */
+    static SimulationTracker mergeBlocks(Iterator<SimulationTracker> p_blockTrackers, int p_from, int p_to, int p_blockSize)
+    {
+        SimulationTracker tracker;
+        
+        if (p_to - p_from <= p_blockSize)
+        {
+            tracker = p_blockTrackers.next();
+        }
+        else
+        {
+            int middle = (p_from + p_to) >>> 1;
+            tracker = mergeBlocks(p_blockTrackers, p_from, middle, p_blockSize);
+            tracker.merge(mergeBlocks(p_blockTrackers, middle, p_to, p_blockSize));
+        }
+        
+        return tracker;
+    }
+    
+    @Override
+    protected SimulationTracker compute()
+    {
+        SimulationTracker tracker;
+        
+        if (m_to - m_from <= m_unit.getBlockSize())
+        {
+            tracker = simulateBlock();
+        }
+        else
+        {
+            int middle = (m_from + m_to) >>> 1;
+            ParticleBlockTask second = new ParticleBlockTask(m_unit, middle, m_to);
+            second.fork();
+            try
+            {
+                tracker = new ParticleBlockTask(m_unit, m_from, middle).compute();
+            }
+            catch (RuntimeException ex)
+            {
+                //the second half is waited for, so that its tracker gives back its slots of the store
+                if (!second.tryUnfork())
+                {
+                    second.quietlyJoin();
+                    if (second.isCompletedNormally())
+                    {
+                        second.getRawResult().discard();
+                    }
+                }
+                throw ex;
+            }
+            try
+            {
+                tracker.merge(second.join());
+            }
+            catch (RuntimeException ex)
+            {
+                //the second half has been cancelled or has failed, the first one will never be saved
+                tracker.discard();
+                throw ex;
+            }
+        }
+        
+        return tracker;
+    }
+    
+    /**
+     * Wait while the simulation is paused, and stop the block if the simulation or its starting position is cancelled
+     * The starting position is cancelled by the scope of its absorber when another one fails, which does not interrupt the pool tasks already running.
+     * @param p_control the control of the simulation
+     * @throws CancellationException if the simulation or the starting position is cancelled
+     */
+    private void checkpoint(SimulationControl p_control) throws CancellationException
+    {
+        p_control.checkpoint();
+        if (m_unit.isCancelled())
+        {
+            throw new CancellationException("The starting position has been cancelled.");
+        }
+    }
+    
+    /**
+     * Simulate all the particles of the block, one after the other
+     * @return the tracker to which the particles have been logged
+     */
+    private SimulationTracker simulateBlock()
+    {
+        CalculationConditions conditions = m_unit.getConditions();
+        Absorber absorber = m_unit.getAbsorber();
+        BigDecimal initialPosition = m_unit.getInitialPosition();
+        HashMap<String, BigDecimal> particleParameters = m_unit.getParticleParameters();
+        int maxSteps = conditions.getMaxSteps();
+        ScatteringModel scattering = conditions.getScattering();
+        ExitMap exitMap = m_unit.getExitMap();
+        ExitSolver exitSolver = m_unit.getExitSolver();
+        SimulationControl control = m_unit.getManager().getControl();
+        
+        //a block not started yet does not create its tracker once the simulation is paused or cancelled
+        checkpoint(control);
+        
+        long startTime = System.nanoTime();
+        long blockSteps = 0;
+        SimulationTracker tracker = m_unit.createTracker(m_to - m_from);
+        //the particle being simulated, until it is logged to the tracker
+        Particle currentIndividual = null;
+        
+        try
+        {
+            for (int i = m_from ; i < m_to ; i += 1)
+            {
+                //the velocity is drawn once, its inverse normal being computed at each call
+                BigDecimal velocity = conditions.getVelocity(i);
+                
+                //the particles found in the map or solved are not simulated
+                int outcome = ExitMap.NO_OUTCOME;
+                if (exitSolver != null)
+                {
+                    outcome = exitSolver.getOutcome(initialPosition.doubleValue(), velocity.doubleValue());
+                }
+                else if (exitMap != null)
+                {
+                    outcome = exitMap.getOutcome(initialPosition.doubleValue(), velocity.doubleValue());
+                }
+                if (outcome != ExitMap.NO_OUTCOME)
+                {
+                    tracker.logExit(ExitMap.getChannel(outcome), ExitMap.getSteps(outcome), conditions.getVelocityWeight(i));
+                    m_unit.getManager().sendUpdate();
+                    continue;
+                }
+                
+                currentIndividual = new Particle(particleParameters, initialPosition, velocity, tracker.getTrajectoryStore(), !m_unit.isExitOnly());
+                if (scattering.isActive())
+                {
+                    currentIndividual.setScattering(scattering, m_unit.getRandom(i), m_unit.getEnergyGain());
+                }
+                
+                int numberOfSteps = 0;
+                while (!currentIndividual.isCollected() && numberOfSteps < maxSteps)
+                {
+                    checkpoint(control);
+                    currentIndividual.applyExteriorFields(absorber, CalculationConditions.DT);
+                    numberOfSteps += 1;
+                }
+                
+                tracker.logParticle(currentIndividual, absorber, conditions.getVelocityWeight(i));
+                currentIndividual = null;
+                blockSteps += numberOfSteps;
+                m_unit.getManager().sendUpdate();
+            }
+            tracker.closeBatch();
+        }
+        catch (RuntimeException ex)
+        {
+            //the store is shared by the whole simulation: the slots of the block are given back whatever stopped it
+            tracker.discard();
+            if (currentIndividual != null && currentIndividual.getStore() != null)
+            {
+                currentIndividual.getStore().releaseSlot(currentIndividual.getSlot());
+            }
+            throw ex;
+        }
+        finally
+        {
+            m_unit.addSteps(blockSteps);
+            m_unit.getManager().addBusyTime(System.nanoTime() - startTime);
+        }
+        
+        return tracker;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A counter-based random stream: the n-th number of the stream of a particle is a hash of the seed, of the stream, of the index of the particle and of n
+ * A particle therefore draws the same numbers whatever the particles calculated before it and the thread calculating it, so that the results do not depend on the number of workers nor on the order of the blocks.
+ * The hash is the finalizer of SplitMix64, applied to the key of the stream moved by n times the golden gamma, as in java.util.SplittableRandom.
+ * @author Alban Lafuente
+ */
+class ParticleRandom
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    
+    private final long m_key;
+    private long m_counter = 0;
+    
+    /**
+     * @param p_seed the seed of the simulation
+     * @param p_stream the stream, telling what the numbers are used for and where the particle is, see stream(String)
+     * @param p_index the index of the particle
+     */
+    ParticleRandom(long p_seed, long p_stream, long p_index)
+    {
+        m_key = mix64(mix64(mix64(p_seed) + p_stream) + p_index * GOLDEN_GAMMA);
+    }
+    
+    /**
+     * @param p_name the name of a stream, for instance the key of a starting position
+     * @return the 64 bits identifying the stream, from the FNV-1a hash of the name
+     */
+    static long stream(String p_name)
+    {
+        long hash = 0xcbf29ce484222325L;
+        
+        for (byte character: p_name.getBytes(StandardCharsets.UTF_8))
+        {
+            hash = (hash ^ (character & 0xff)) * 0x100000001b3L;
+        }
+        
+        return mix64(hash);
+    }
+    
+    /**
+     * The finalizer of SplitMix64, variant 13 of the mixers of David Stafford
+     */
+    private static long mix64(long p_value)
+    {
+        long value = (p_value ^ (p_value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+    
+    long nextLong()
+    {
+        m_counter += 1;
+        return mix64(m_key + m_counter * GOLDEN_GAMMA);
+    }
+    
+    /**
+     * @return a number uniformly drawn in [0, 1), with 53 random bits
+     */
+    double nextDouble()
+    {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+    
+    /**
+     * @return a number drawn from the standard normal distribution, with the Box-Muller transform of two uniform numbers
+     */
+    double nextGaussian()
+    {
+        //1 - u is in (0, 1], so its logarithm is finite
+        double radius = Math.sqrt(-2 * Math.log(1 - nextDouble()));
+        return radius * Math.cos(2 * Math.PI * nextDouble());
+    }
+}
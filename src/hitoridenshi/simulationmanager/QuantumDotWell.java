@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The effective electric field of a quantum dot, seen as a gaussian well of the potential energy of the particles
+ * @author Alban Lafuente
+ */
+public class QuantumDotWell implements FieldTerm
+{
+    //the well is sampled every quarter of its standard deviation, up to five standard deviations from its center
+    private static final int SAMPLES_PER_DEVIATION = 4;
+    private static final int SAMPLED_DEVIATIONS = 5;
+    
+    private final double m_position;
+    private final double m_depth;
+    private final double m_deviation;
+    private final double m_charge;
+    
+    /**
+     * @param p_position the center of the quantum dot, in m
+     * @param p_depth the depth of the well, in J
+     * @param p_width the full width at half maximum of the well, in m
+     * @param p_charge the charge of the particles, in C
+     */
+    public QuantumDotWell(BigDecimal p_position, BigDecimal p_depth, BigDecimal p_width, BigDecimal p_charge)
+    {
+        if (p_width.signum() <= 0)
+        {
+            throw new IllegalArgumentException("The width of a quantum dot has to be positive.");
+        }
+        
+        m_position = p_position.doubleValue();
+        m_depth = p_depth.doubleValue();
+        m_deviation = p_width.doubleValue() / (2 * Math.sqrt(2 * Math.log(2)));
+        m_charge = p_charge.doubleValue();
+    }
+    
+    @Override
+    public BigDecimal getValueAtPosition(BigDecimal p_position)
+    {
+        double distance = (p_position.doubleValue() - m_position) / m_deviation;
+        //the potential energy is -depth.exp(-distance^2/2), the force being minus its derivative
+        double force = -m_depth * distance / m_deviation * Math.exp(-distance * distance / 2);
+        
+        return CalculationConditions.formatBigDecimal(BigDecimal.valueOf(force / m_charge));
+    }
+    
+    @Override
+    public Set<BigDecimal> getAbscissa()
+    {
+        Set<BigDecimal> abscissa = new TreeSet<>();
+        
+        for (int i = -SAMPLES_PER_DEVIATION * SAMPLED_DEVIATIONS ; i <= SAMPLES_PER_DEVIATION * SAMPLED_DEVIATIONS ; i += 1)
+        {
+            abscissa.add(CalculationConditions.formatBigDecimal(BigDecimal.valueOf(m_position + i * m_deviation / SAMPLES_PER_DEVIATION)));
+        }
+        
+        return abscissa;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "dot("+m_position+","+m_depth+","+m_deviation+")";
+    }
+}
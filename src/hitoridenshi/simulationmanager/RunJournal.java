@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The journal of the runs made in an output folder, recording the starting positions whose results have been written, with the hash of the inputs they were calculated from
+ * A new run in the same output folder skips the starting positions whose inputs did not change since their results were written, so that an interrupted sweep (cancelled, killed or stopped by a reboot) resumes where it stopped, and a sweep to which a notch or a starting position is added only calculates the new ones.
+ * A starting position is only recorded once its files are written and flushed to the disk, so a line cut by a crash is simply ignored and the position calculated again. The latest line of a starting position is the one that counts.
+ * @author Alban Lafuente
+ */
+class RunJournal implements AutoCloseable
+{
+    static final String JOURNAL_FILE = "RunJournal.txt";
+    //to be changed each time the calculation of the particles changes, so that the results of the previous versions are calculated again
+    static final String INTEGRATOR_VERSION = "explicit-euler-bigdecimal-1";
+    private static final String COMPLETED_LINE = "completed ";
+    
+    private final File m_journalFile;
+    private final Map<String, String> m_completed = new HashMap<>();
+    private final FileOutputStream m_journalStream;
+    private final Writer m_journalWriter;
+    
+    /**
+     * Open the journal of the output folder, reading the starting positions completed by the previous runs
+     * @param p_outputFolder the output folder of the simulation
+     * @param p_resume false to ignore the previous runs, everything being calculated again
+     * @throws IOException if the journal cannot be read or written
+     */
+    RunJournal(String p_outputFolder, boolean p_resume) throws IOException
+    {
+        m_journalFile = new File(p_outputFolder, JOURNAL_FILE);
+        
+        if (p_resume && m_journalFile.isFile())
+        {
+            try (BufferedReader reader = new BufferedReader(new FileReader(m_journalFile, StandardCharsets.UTF_8)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    String[] fields = line.split(" ");
+                    //lines of another format, or cut by a crash, are ignored
+                    if (line.startsWith(COMPLETED_LINE) && fields.length == 3)
+                    {
+                        m_completed.put(fields[1], fields[2]);
+                    }
+                }
+            }
+        }
+        
+        if (!m_journalFile.getParentFile().mkdirs() && !m_journalFile.getParentFile().isDirectory())
+        {
+            throw new IOException("Impossible to create the output folder "+m_journalFile.getParent());
+        }
+        m_journalStream = new FileOutputStream(m_journalFile, p_resume);
+        m_journalWriter = new OutputStreamWriter(m_journalStream, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Give the hash of everything the results of the starting positions depend on, apart from their electric field and their position
+     * @param p_conditions the conditions of the simulation
+     * @param p_options the options of the simulation
+     * @return the hash, as an hexadecimal string
+     */
+    static String conditionsHash(CalculationConditions p_conditions, SimulationOptions p_options)
+    {
+        StringBuilder description = new StringBuilder();
+        description.append("integrator=").append(INTEGRATOR_VERSION);
+        description.append(";dt=").append(CalculationConditions.DT);
+        description.append(";electron=").append(p_conditions.isElectron());
+        description.append(";zeroAtFront=").append(p_conditions.isZeroAtFront());
+        description.append(";maxSteps=").append(p_conditions.getMaxSteps());
+        description.append(";unit=").append(p_conditions.getAbscissaScale());
+        description.append(";bufferWindow=").append(p_conditions.getBufferAndWindowSize());
+        description.append(";sample=").append(p_conditions.getSolarCellSize());
+        description.append(";particle=").append(new TreeMap<String, BigDecimal>(p_conditions.getParticleParameters()));
+        //the bandgaps only create the effective field of the notch seen by the electrons
+        if (p_conditions.isElectron())
+        {
+            description.append(";bandgaps=").append(new TreeMap<String, BigDecimal>(p_conditions.getBandgaps()));
+        }
+        //the velocities are drawn from the thermal distribution of the temperature by the seeded streams of the particles
+        description.append(";velocities=").append(p_conditions.getVelocitySampling()).append(",").append(p_conditions.getNumberOfParticles()).append(",").append(p_conditions.getTemperature()).append(",").append(p_conditions.getImportanceShift()).append(",").append(p_conditions.getRandomSeed());
+        //a ballistic simulation keeps the hash it had before the collisions
+        if (p_conditions.getScattering().isActive())
+        {
+            description.append(";scattering=").append(p_conditions.getScattering());
+        }
+        if (!p_conditions.getFieldTerms().isEmpty())
+        {
+            description.append(";fieldTerms=").append(p_conditions.getFieldTerms());
+        }
+        //the blocks change the order in which the particles are merged, hence the written results
+        description.append(";blockSize=").append(p_options.getVelocityBlockSize());
+        //the target precision changes the particles used, a simulation of all the particles keeping the hash it had before
+        if (p_options.getTargetPrecision() > 0)
+        {
+            description.append(";targetPrecision=").append(p_options.getTargetPrecision());
+        }
+        //the exit statistics only do not write the same files
+        if (p_options.isExitOnly())
+        {
+            description.append(";exitOnly");
+            //the map is not used with collisions
+            if (p_options.isExitMap() && !p_conditions.getScattering().isActive())
+            {
+                description.append(",exitMap");
+            }
+            else if (p_options.isExitSolver() && !p_conditions.getScattering().isActive())
+            {
+                description.append(",exitSolver");
+            }
+        }
+        else if (p_options.getMeanBucketSteps() > 1)
+        {
+            description.append(";meanBucket=").append(p_options.getMeanBucketSteps());
+        }
+        
+        return digest(description.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Give the hash of the inputs of a starting position
+     * @param p_conditionsHash the hash of the conditions of the simulation
+     * @param p_fieldHash the hash of the content of the electric field file
+     * @param p_key the key of the starting position, giving its bias, notch and position
+     * @return the hash, as an hexadecimal string
+     */
+    static String inputHash(String p_conditionsHash, String p_fieldHash, String p_key)
+    {
+        return digest(("conditions="+p_conditionsHash+";field="+p_fieldHash+";position="+p_key).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * @param p_file a file
+     * @return the hash of the content of the file, as an hexadecimal string
+     * @throws IOException if the file cannot be read
+     */
+    static String fileHash(File p_file) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        
+        try (InputStream input = new FileInputStream(p_file))
+        {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = input.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        
+        return toHexadecimal(digest.digest());
+    }
+    
+    private static String digest(byte[] p_content)
+    {
+        return toHexadecimal(newDigest().digest(p_content));
+    }
+    
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            //every Java runtime provides SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static String toHexadecimal(byte[] p_hash)
+    {
+        StringBuilder hexadecimal = new StringBuilder();
+        for (byte value: p_hash)
+        {
+            hexadecimal.append(String.format("%02x", value));
+        }
+        
+        return hexadecimal.toString();
+    }
+    
+    /**
+     * @return the number of starting positions completed by the previous runs
+     */
+    int getNumberOfCompleted()
+    {
+        return m_completed.size();
+    }
+    
+    /**
+     * @param p_key the key of a starting position
+     * @param p_inputHash the hash of the current inputs of the starting position
+     * @return true if the results of the starting position have been written by a previous run from the same inputs
+     */
+    boolean isUpToDate(String p_key, String p_inputHash)
+    {
+        return p_inputHash.equals(m_completed.get(p_key));
+    }
+    
+    /**
+     * Record that the results of a starting position have been written, once they are on the disk
+     * @param p_key the key of the starting position
+     * @param p_inputHash the hash of the inputs the results were calculated from
+     * @throws IOException if the journal cannot be written
+     */
+    synchronized void markCompleted(String p_key, String p_inputHash) throws IOException
+    {
+        m_journalWriter.write(COMPLETED_LINE+p_key+" "+p_inputHash+"\n");
+        m_journalWriter.flush();
+        m_journalStream.getFD().sync();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException
+    {
+        m_journalWriter.close();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import commonutils.PhysicsTools;
+
+/**
+ * The collisions of the particles with the lattice, interrupting their ballistic flight in the electric field
+ * Three mechanisms can be combined: a relaxation time given by a constant mobility, after which the velocity is drawn again from the thermal distribution; the elastic acoustic phonons, which only randomize the direction of the velocity; and the optical phonons, absorbed or emitted with their energy. The phonon rates are given at the thermal energy and grow as the square root of the kinetic energy, as the density of states of the particles.
+ * The free flights are drawn with the self-scattering technique: the particles collide at a constant maximum rate, a collision being real with the probability of the real rate at the kinetic energy of the particle over this maximum, so that the loop only counts down the time of flight at each step. The maximum is the rate at the highest energy the particle can reach before its next collision, its energy after its last collision plus the largest energy the field of the absorber can give, so that it never has to be checked during the flights.
+ * @author Alban Lafuente
+ */
+public class ScatteringModel
+{
+    //the ballistic motion, without any collision
+    public static final ScatteringModel NONE = new ScatteringModel(0, 0, 0, 0);
+    
+    private final double m_mobility;
+    private final double m_acousticRate;
+    private final double m_opticalRate;
+    private final double m_opticalPhononEnergy;
+    
+    //the values depending on the particle and the temperature, set by CalculationConditions
+    private final double m_mass;
+    private final double m_thermalEnergy;
+    private final double m_relaxationRate;
+    private final double m_phononOccupation;
+    
+    /**
+     * @param p_mobility the mobility of the particles in cm2/V/s giving the relaxation time, 0 for no relaxation
+     * @param p_acousticRate the rate of the acoustic phonon collisions at the thermal energy, in 1/s
+     * @param p_opticalRate the rate of the optical phonon collisions at the thermal energy, in 1/s, before the occupation of the phonon modes
+     * @param p_opticalPhononEnergy the energy of the optical phonons, in eV
+     */
+    public ScatteringModel(double p_mobility, double p_acousticRate, double p_opticalRate, double p_opticalPhononEnergy)
+    {
+        if (!(p_mobility >= 0 && p_acousticRate >= 0 && p_opticalRate >= 0 && p_opticalPhononEnergy >= 0) || Double.isInfinite(p_mobility + p_acousticRate + p_opticalRate + p_opticalPhononEnergy))
+        {
+            throw new IllegalArgumentException("The mobility, the scattering rates and the phonon energy have to be positive numbers.");
+        }
+        if (p_opticalRate > 0 && p_opticalPhononEnergy == 0)
+        {
+            throw new IllegalArgumentException("The optical phonon collisions need the energy of the phonons.");
+        }
+        
+        m_mobility = p_mobility;
+        m_acousticRate = p_acousticRate;
+        m_opticalRate = p_opticalRate;
+        m_opticalPhononEnergy = p_opticalPhononEnergy * PhysicsTools.EV.doubleValue();
+        m_mass = 0;
+        m_thermalEnergy = 0;
+        m_relaxationRate = 0;
+        m_phononOccupation = 0;
+    }
+    
+    /**
+     * The model applied to a particle at a temperature
+     * @param p_model the parameters of the collisions
+     * @param p_mass the effective mass of the particle, in kg
+     * @param p_charge the charge of the particle, in C
+     * @param p_temperature the temperature, in K
+     */
+    ScatteringModel(ScatteringModel p_model, double p_mass, double p_charge, double p_temperature)
+    {
+        m_mobility = p_model.m_mobility;
+        m_acousticRate = p_model.m_acousticRate;
+        m_opticalRate = p_model.m_opticalRate;
+        m_opticalPhononEnergy = p_model.m_opticalPhononEnergy;
+        m_mass = p_mass;
+        m_thermalEnergy = PhysicsTools.KB.doubleValue() * p_temperature;
+        //the mobility is q.tau/m, converted from cm2/V/s into m2/V/s
+        m_relaxationRate = m_mobility == 0 ? 0 : Math.abs(p_charge) / (m_mobility * 1e-4 * m_mass);
+        m_phononOccupation = m_opticalRate == 0 ? 0 : 1 / Math.expm1(m_opticalPhononEnergy / m_thermalEnergy);
+    }
+    
+    /**
+     * @return false for the ballistic motion
+     */
+    public boolean isActive()
+    {
+        return m_mobility > 0 || m_acousticRate > 0 || m_opticalRate > 0;
+    }
+    
+    /**
+     * @param p_energy the kinetic energy of the particle, in J
+     * @return the total rate of the real collisions, in 1/s
+     */
+    private double getRate(double p_energy)
+    {
+        double rate = m_relaxationRate + m_acousticRate * Math.sqrt(p_energy / m_thermalEnergy);
+        
+        if (m_opticalRate > 0)
+        {
+            rate += m_opticalRate * m_phononOccupation * Math.sqrt((p_energy + m_opticalPhononEnergy) / m_thermalEnergy);
+            if (p_energy > m_opticalPhononEnergy)
+            {
+                rate += m_opticalRate * (m_phononOccupation + 1) * Math.sqrt((p_energy - m_opticalPhononEnergy) / m_thermalEnergy);
+            }
+        }
+        
+        return rate;
+    }
+    
+    /**
+     * Give the maximum rate of the collisions drawn by a particle, real or not
+     * Without phonons the rate does not depend on the energy and no collision is fictitious. Otherwise the maximum is the real rate at the highest energy the particle can reach before its next collision, and is only raised at the collisions giving the particle more energy.
+     * @param p_velocity the velocity of the particle at its start or after a collision, in m/s
+     * @param p_energyGain the largest kinetic energy per unit mass the field can give to the particle, in J/kg
+     * @param p_maximumRate the maximum rate used until now, 0 for a new particle
+     * @return the maximum rate to use for the next flight, in 1/s
+     */
+    double getMaximumRate(double p_velocity, double p_energyGain, double p_maximumRate)
+    {
+        double rate = getRate(m_mass * (p_velocity * p_velocity / 2 + p_energyGain));
+        
+        if (m_acousticRate > 0 || m_opticalRate > 0)
+        {
+            rate = Math.max(rate, p_maximumRate);
+        }
+        
+        return rate;
+    }
+    
+    /**
+     * @param p_maximumRate the maximum rate of the collisions
+     * @param p_random the random stream of the particle
+     * @return the time until the next collision, real or not, in s
+     */
+    static double drawFlight(double p_maximumRate, ParticleRandom p_random)
+    {
+        return -Math.log(1 - p_random.nextDouble()) / p_maximumRate;
+    }
+    
+    /**
+     * Draw the mechanism of a collision and its effect on the particle
+     * @param p_velocity the velocity of the particle before the collision, in m/s
+     * @param p_maximumRate the maximum rate of the collisions of the particle
+     * @param p_random the random stream of the particle
+     * @return the velocity after the collision, unchanged for a fictitious collision
+     */
+    double collide(double p_velocity, double p_maximumRate, ParticleRandom p_random)
+    {
+        double energy = m_mass * p_velocity * p_velocity / 2;
+        double acoustic = m_acousticRate * Math.sqrt(energy / m_thermalEnergy);
+        double absorption = m_opticalRate == 0 ? 0 : m_opticalRate * m_phononOccupation * Math.sqrt((energy + m_opticalPhononEnergy) / m_thermalEnergy);
+        double emission = m_opticalRate == 0 || energy <= m_opticalPhononEnergy ? 0 : m_opticalRate * (m_phononOccupation + 1) * Math.sqrt((energy - m_opticalPhononEnergy) / m_thermalEnergy);
+        //the energy bound is the one of the tabulated field: a particle taken slightly over it by the time steps collides at its real rate
+        double draw = p_random.nextDouble() * Math.max(p_maximumRate, m_relaxationRate + acoustic + absorption + emission);
+        double direction = p_random.nextDouble() < 0.5 ? -1 : 1;
+        double velocity = p_velocity;
+        
+        if (draw < m_relaxationRate)
+        {
+            //the particle forgets its velocity
+            velocity = Math.sqrt(m_thermalEnergy / m_mass) * p_random.nextGaussian();
+        }
+        else if (draw < m_relaxationRate + acoustic)
+        {
+            //elastic and isotropic
+            velocity = direction * Math.abs(p_velocity);
+        }
+        else if (draw < m_relaxationRate + acoustic + absorption)
+        {
+            velocity = direction * Math.sqrt(2 * (energy + m_opticalPhononEnergy) / m_mass);
+        }
+        else if (draw < m_relaxationRate + acoustic + absorption + emission)
+        {
+            velocity = direction * Math.sqrt(2 * (energy - m_opticalPhononEnergy) / m_mass);
+        }
+        //otherwise the collision is fictitious, the self-scattering keeping the total rate constant
+        
+        return velocity;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "mobility="+m_mobility+",acoustic="+m_acousticRate+",optical="+m_opticalRate+",phononEnergy="+m_opticalPhononEnergy;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges the part files written by the shards of a simulation into the result files of each starting position
+ * The blocks are merged in the same order as a simulation run in a single process, so the result files are the same. The shards only have to share the output folder, or to have their part files copied in it.
+ * The merged starting positions are recorded in the run journal, so that a later run of the same configuration in the output folder does not calculate them again. A starting position missing some blocks is left for a later merge.
+ * @author Alban Lafuente
+ */
+public class ShardMerger implements Runnable
+{
+    private final CalculationConditions m_conditions;
+    private final SimulationOptions m_options;
+    private final String m_outputFolder;
+    private final ProgressNotifierInterface m_guiApp;
+    
+    /**
+     * @param p_outputFolder the output folder shared by the shards
+     * @param p_conditions the conditions of the simulation, the same as the ones of the shards
+     * @param p_options the options of the simulation, the velocity block size being the same as the one of the shards
+     * @param p_guiApp the terminal to which the messages are sent
+     */
+    public ShardMerger(String p_outputFolder, CalculationConditions p_conditions, SimulationOptions p_options, ProgressNotifierInterface p_guiApp)
+    {
+        m_conditions = p_conditions;
+        m_options = p_options;
+        m_outputFolder = p_outputFolder;
+        m_guiApp = p_guiApp;
+    }
+    
+    @Override
+    public void run()
+    {
+        ShardPlan plan = new ShardPlan(m_conditions, m_options);
+        int numberOfParticles = m_conditions.getNumberOfParticles();
+        int numberOfMerged = 0;
+        int numberOfUpToDate = 0;
+        int numberOfIncomplete = 0;
+        
+        try (RunJournal journal = new RunJournal(m_outputFolder, true))
+        {
+            for (ShardPlan.Unit unit: plan.getUnits())
+            {
+                final File partFolder = ShardPlan.getPartFolder(m_outputFolder, unit.getKey());
+                final List<int[]> blocks = plan.getBlocks();
+                
+                int numberOfMissing = 0;
+                for (int[] block: blocks)
+                {
+                    numberOfMissing += ShardPlan.getPartFile(partFolder, block).isFile() ? 0 : 1;
+                }
+                if (numberOfMissing > 0)
+                {
+                    numberOfIncomplete += 1;
+                    m_guiApp.sendMessage(unit.getKey()+": "+numberOfMissing+" of the "+blocks.size()+" blocks are missing, not merged.");
+                    continue;
+                }
+                
+                final String inputHash = ShardPlan.readPartInputHash(ShardPlan.getPartFile(partFolder, blocks.get(0)));
+                File resultFolder = StartingPositionTask.getResultFolder(m_outputFolder, unit.getBias(), unit.getNotch(), unit.getInitialPosition());
+                if (journal.isUpToDate(unit.getKey(), inputHash) && StartingPositionTask.hasUpToDateResults(resultFolder, inputHash))
+                {
+                    numberOfUpToDate += 1;
+                    continue;
+                }
+                
+                //the parts are read one after the other while they are merged, so that only the trackers of the current branch of the merge are in memory
+                Iterator<SimulationTracker> blockTrackers = new Iterator<SimulationTracker>()
+                {
+                    private int m_nextBlock = 0;
+                    
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return m_nextBlock < blocks.size();
+                    }
+                    
+                    @Override
+                    public SimulationTracker next()
+                    {
+                        int[] block = blocks.get(m_nextBlock);
+                        m_nextBlock += 1;
+                        try
+                        {
+                            ShardPlan.Part part = ShardPlan.readPart(ShardPlan.getPartFile(partFolder, block), block);
+                            if (!part.getInputHash().equals(inputHash))
+                            {
+                                throw new IOException("The block "+block[0]+"-"+block[1]+" has been calculated from other inputs than the first block.");
+                            }
+                            
+                            return part.getTracker();
+                        }
+                        catch (IOException ex)
+                        {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                };
+                
+                try
+                {
+                    SimulationTracker tracker = ParticleBlockTask.mergeBlocks(blockTrackers, 0, numberOfParticles, plan.getBlockSize());
+                    StartingPositionTask.writeResults(tracker, m_outputFolder, unit.getBias(), unit.getNotch(), unit.getInitialPosition(), m_conditions.getAbscissaScale(), inputHash);
+                    journal.markCompleted(unit.getKey(), inputHash);
+                    numberOfMerged += 1;
+                    m_guiApp.sendMessage(unit.getKey()+": merged.");
+                }
+                catch (UncheckedIOException ex)
+                {
+                    numberOfIncomplete += 1;
+                    m_guiApp.sendMessage(unit.getKey()+": not merged, "+ex.getCause().getMessage());
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(ShardMerger.class.getName()).log(Level.SEVERE, null, ex);
+            m_guiApp.sendMessage("The merge stopped because of an error: "+ex);
+        }
+        
+        m_guiApp.sendMessage("\nEnd of the merge: "+numberOfMerged+" starting positions merged, "+numberOfUpToDate+" already up to date, "+numberOfIncomplete+" left for a later merge.");
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The partition of a simulation between several processes, each of them being a shard calculating a part of the blocks of particles
+ * The work items are the blocks of particles of every starting position, numbered in a fixed order: bias voltages, then notch positions, then starting positions as written in the configuration, then blocks in the order of the velocity list. The shard i of N calculates the items whose number modulo N is i.
+ * The partition only depends on the configuration, so the shards can run on different nodes without talking to each other. Each shard writes the tracker of its blocks in part files under the output folder, which are merged once all the shards are done.
+ * @author Alban Lafuente
+ */
+class ShardPlan
+{
+    static final String SHARD_FOLDER = "shards";
+    private static final int PART_MAGIC = 0x48445054;
+    private static final int PART_VERSION = 6;
+    
+    private final int m_shardIndex;
+    private final int m_shardCount;
+    private final int m_blockSize;
+    private final List<int[]> m_blocks;
+    private final List<Unit> m_units = new ArrayList<>();
+    private final Map<String, Integer> m_unitNumbers = new HashMap<>();
+    
+    /**
+     * @param p_conditions the conditions of the simulation
+     * @param p_options the options of the simulation, giving the shard and the block size
+     */
+    ShardPlan(CalculationConditions p_conditions, SimulationOptions p_options)
+    {
+        m_shardIndex = p_options.getShardIndex();
+        m_shardCount = p_options.getShardCount();
+        m_blockSize = p_options.getVelocityBlockSize();
+        m_blocks = ParticleBlockTask.leafBlocks(0, p_conditions.getNumberOfParticles(), m_blockSize);
+        
+        List<BigDecimal> startingPositions = p_conditions.getStartingPositionList();
+        for (String bias: p_conditions.getBiasVoltageArray())
+        {
+            for (BigDecimal notch: p_conditions.getNotchPositionArray())
+            {
+                List<BigDecimal> initialPositionWithNotch = new ArrayList<>(startingPositions);
+                if (!initialPositionWithNotch.contains(notch))
+                {
+                    initialPositionWithNotch.add(notch);
+                }
+                
+                for (BigDecimal initialPosition: initialPositionWithNotch)
+                {
+                    Unit unit = new Unit(bias, notch, initialPosition);
+                    m_unitNumbers.put(unit.getKey(), m_units.size());
+                    m_units.add(unit);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true if the simulation is split between several shards
+     */
+    boolean isSharded()
+    {
+        return m_shardCount > 1;
+    }
+    
+    /**
+     * @return the name of the shard, used to name its files
+     */
+    String getShardName()
+    {
+        return m_shardIndex+"of"+m_shardCount;
+    }
+    
+    int getBlockSize()
+    {
+        return m_blockSize;
+    }
+    
+    /**
+     * @return the blocks of particles of a starting position, in the order of the velocity list
+     */
+    List<int[]> getBlocks()
+    {
+        return m_blocks;
+    }
+    
+    /**
+     * @return the starting positions of the whole simulation, in the order used to number the work items
+     */
+    List<Unit> getUnits()
+    {
+        return m_units;
+    }
+    
+    /**
+     * Give the blocks of a starting position calculated by this shard
+     * @param p_key the key of the starting position
+     * @return the blocks of the shard, in the order of the velocity list, possibly none
+     */
+    List<int[]> getOwnedBlocks(String p_key)
+    {
+        List<int[]> ownedBlocks = new ArrayList<>();
+        long firstItem = (long) m_unitNumbers.get(p_key) * m_blocks.size();
+        
+        for (int i = 0 ; i < m_blocks.size() ; i += 1)
+        {
+            if ((firstItem + i) % m_shardCount == m_shardIndex)
+            {
+                ownedBlocks.add(m_blocks.get(i));
+            }
+        }
+        
+        return ownedBlocks;
+    }
+    
+    /**
+     * @param p_outputFolder the output folder of the simulation
+     * @param p_key the key of a starting position
+     * @return the folder in which the shards write the part files of the starting position
+     */
+    static File getPartFolder(String p_outputFolder, String p_key)
+    {
+        return new File(new File(p_outputFolder, SHARD_FOLDER), p_key);
+    }
+    
+    /**
+     * @param p_partFolder the part folder of a starting position
+     * @param p_block the first and last (excluded) index of a block
+     * @return the part file of the block
+     */
+    static File getPartFile(File p_partFolder, int[] p_block)
+    {
+        return new File(p_partFolder, "block-"+p_block[0]+"-"+p_block[1]+".part");
+    }
+    
+    /**
+     * Write the tracker of a block in its part file, and make sure it is on the disk
+     * @param p_partFile the file to write
+     * @param p_inputHash the hash of the inputs of the starting position, checked when merging
+     * @param p_block the first and last (excluded) index of the block
+     * @param p_tracker the tracker of the block
+     * @throws IOException
+     */
+    static void writePart(File p_partFile, String p_inputHash, int[] p_block, SimulationTracker p_tracker) throws IOException
+    {
+        //written aside and renamed, so that a part file is either complete or absent
+        File temporaryFile = new File(p_partFile.getPath()+".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(temporaryFile))
+        {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+            output.writeInt(PART_MAGIC);
+            output.writeInt(PART_VERSION);
+            output.writeUTF(p_inputHash);
+            output.writeInt(p_block[0]);
+            output.writeInt(p_block[1]);
+            p_tracker.writePartial(output);
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        
+        if (!temporaryFile.renameTo(p_partFile))
+        {
+            throw new IOException("Impossible to write the part file "+p_partFile);
+        }
+    }
+    
+    /**
+     * Read the hash of the inputs a part file has been calculated from, without reading its tracker
+     * @param p_partFile the file to read
+     * @return the hash of the inputs of the starting position
+     * @throws IOException if the file cannot be read
+     */
+    static String readPartInputHash(File p_partFile) throws IOException
+    {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(p_partFile))))
+        {
+            if (input.readInt() != PART_MAGIC || input.readInt() != PART_VERSION)
+            {
+                throw new IOException(p_partFile+" is not a part file of this version of the software.");
+            }
+            
+            return input.readUTF();
+        }
+    }
+    
+    /**
+     * Read the tracker of a block from its part file
+     * @param p_partFile the file to read
+     * @param p_block the first and last (excluded) index of the block expected in the file
+     * @return the part, with its tracker keeping the histories on the heap
+     * @throws IOException if the file cannot be read or does not contain the expected block
+     */
+    static Part readPart(File p_partFile, int[] p_block) throws IOException
+    {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(p_partFile))))
+        {
+            if (input.readInt() != PART_MAGIC || input.readInt() != PART_VERSION)
+            {
+                throw new IOException(p_partFile+" is not a part file of this version of the software.");
+            }
+            String inputHash = input.readUTF();
+            if (input.readInt() != p_block[0] || input.readInt() != p_block[1])
+            {
+                throw new IOException(p_partFile+" does not contain the expected block of particles.");
+            }
+            
+            return new Part(inputHash, SimulationTracker.readPartial(input));
+        }
+    }
+    
+    /**
+     * A starting position of the simulation
+     */
+    static class Unit
+    {
+        private final String m_bias;
+        private final BigDecimal m_notch;
+        private final BigDecimal m_initialPosition;
+        
+        Unit(String p_bias, BigDecimal p_notch, BigDecimal p_initialPosition)
+        {
+            m_bias = p_bias;
+            m_notch = p_notch;
+            m_initialPosition = p_initialPosition;
+        }
+        
+        String getBias()
+        {
+            return m_bias;
+        }
+        
+        BigDecimal getNotch()
+        {
+            return m_notch;
+        }
+        
+        BigDecimal getInitialPosition()
+        {
+            return m_initialPosition;
+        }
+        
+        String getKey()
+        {
+            return StartingPositionTask.key(m_bias, m_notch, m_initialPosition);
+        }
+    }
+    
+    /**
+     * The content of a part file
+     */
+    static class Part
+    {
+        private final String m_inputHash;
+        private final SimulationTracker m_tracker;
+        
+        Part(String p_inputHash, SimulationTracker p_tracker)
+        {
+            m_inputHash = p_inputHash;
+            m_tracker = p_tracker;
+        }
+        
+        String getInputHash()
+        {
+            return m_inputHash;
+        }
+        
+        SimulationTracker getTracker()
+        {
+            return m_tracker;
+        }
+    }
+}
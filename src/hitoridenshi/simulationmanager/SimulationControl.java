@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets the user pause, resume or cancel a running simulation
+ * The calculations check the state of the control at each step of a particle: while the simulation runs, the check is a single read of a volatile field. A paused calculation waits at its next check, a cancelled one stops there.
+ * A cancelled simulation still writes the results of the starting positions that were already finished.
+ * @author Alban Lafuente
+ */
+public class SimulationControl
+{
+    public enum State {RUNNING, PAUSED, CANCELLED}
+    
+    private final Object m_lock = new Object();
+    private volatile State m_state = State.RUNNING;
+    
+    public State getState()
+    {
+        return m_state;
+    }
+    
+    public boolean isCancelled()
+    {
+        return m_state == State.CANCELLED;
+    }
+    
+    /**
+     * Pause the simulation, the calculations waiting at their next step. Does nothing if the simulation is cancelled.
+     */
+    public void pause()
+    {
+        synchronized (m_lock)
+        {
+            if (m_state == State.RUNNING)
+            {
+                m_state = State.PAUSED;
+            }
+        }
+    }
+    
+    /**
+     * Resume a paused simulation
+     */
+    public void resume()
+    {
+        synchronized (m_lock)
+        {
+            if (m_state == State.PAUSED)
+            {
+                m_state = State.RUNNING;
+                m_lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Cancel the simulation, including when it is paused. The calculations stop at their next step, the finished starting positions are still written.
+     */
+    public void cancel()
+    {
+        synchronized (m_lock)
+        {
+            m_state = State.CANCELLED;
+            m_lock.notifyAll();
+        }
+    }
+    
+    /**
+     * Called by the calculations between two steps: returns at once while the simulation runs, waits while it is paused
+     * @throws CancellationException if the simulation is cancelled, or if the calculation is interrupted while paused
+     */
+    void checkpoint() throws CancellationException
+    {
+        if (m_state != State.RUNNING)
+        {
+            waitWhilePaused();
+        }
+    }
+    
+    private void waitWhilePaused() throws CancellationException
+    {
+        synchronized (m_lock)
+        {
+            while (m_state == State.PAUSED)
+            {
+                try
+                {
+                    m_lock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Calculation interrupted while the simulation was paused.");
+                }
+            }
+            
+            if (m_state == State.CANCELLED)
+            {
+                throw new CancellationException("The simulation has been cancelled.");
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.zip.DataFormatException;
+
+/**
+ * The resources kept alive between the simulations run by a long-running process: the worker pools and the electric fields already read
+ * A simulation given an engine runs its calculations in the pool of the engine having its number of workers instead of creating its own, and takes its electric fields from the cache when their file did not change, so that the following simulations do not pay for starting the threads and reading the SCAPS files again.
+ * The fields are identified by the hash of the content of their file, an edited file being read again. A file asked for by several simulations at the same time is read once, the other ones waiting for it. The least recently used fields are dropped once the cache is full.
+ * @author Alban Lafuente
+ */
+public class SimulationEngine implements AutoCloseable
+{
+    private final Map<Integer, ForkJoinPool> m_pools = new HashMap<>();
+    private final Map<String, FutureTask<ContinuousFunction>> m_fields;
+    private int m_fieldHits = 0;
+    private int m_fieldMisses = 0;
+    
+    /**
+     * @param p_maximumCachedFields the maximum number of electric fields kept in memory
+     */
+    public SimulationEngine(final int p_maximumCachedFields)
+    {
+        m_fields = new LinkedHashMap<String, FutureTask<ContinuousFunction>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<ContinuousFunction>> p_eldest)
+            {
+                return size() > p_maximumCachedFields;
+            }
+        };
+    }
+    
+    /**
+     * @return the number of workers of the pool shared by the simulations that are not limited by their memory budget, one per processor
+     */
+    int getSharedParallelism()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Give the pool running the calculations of the simulations with the given number of workers, created the first time it is asked for
+     * @param p_numberOfWorker the number of workers of the simulation
+     * @return the pool, which is shut down when the engine is closed
+     */
+    synchronized ForkJoinPool getPool(int p_numberOfWorker)
+    {
+        ForkJoinPool pool = m_pools.get(p_numberOfWorker);
+        if (pool == null)
+        {
+            pool = new ForkJoinPool(p_numberOfWorker);
+            m_pools.put(p_numberOfWorker, pool);
+        }
+        
+        return pool;
+    }
+    
+    /**
+     * Give the electric field of a SCAPS file, read only if the cache does not already contain it
+     * @param p_file the SCAPS file
+     * @param p_fileHash the hash of the content of the file
+     * @param p_abscissaMultiplier the unit of the abscissa used by the simulation
+     * @return the electric field, shared between the simulations and never modified
+     * @throws DataFormatException
+     * @throws IOException
+     * @throws InterruptedException if interrupted while waiting for another simulation to read the file
+     */
+    ContinuousFunction getElectricField(final File p_file, String p_fileHash, final BigDecimal p_abscissaMultiplier) throws DataFormatException, IOException, InterruptedException
+    {
+        String key = p_fileHash+"@"+p_abscissaMultiplier.toString();
+        FutureTask<ContinuousFunction> reading;
+        boolean isReader = false;
+        
+        synchronized (m_fields)
+        {
+            reading = m_fields.get(key);
+            if (reading == null)
+            {
+                reading = new FutureTask<>(new Callable<ContinuousFunction>()
+                {
+                    @Override
+                    public ContinuousFunction call() throws DataFormatException, IOException
+                    {
+                        return ContinuousFunction.createElectricFieldFromSCAPS(p_file, p_abscissaMultiplier);
+                    }
+                });
+                m_fields.put(key, reading);
+                isReader = true;
+                m_fieldMisses += 1;
+            }
+            else
+            {
+                m_fieldHits += 1;
+            }
+        }
+        
+        //the files are read outside of the lock, so that different files are still read in parallel
+        if (isReader)
+        {
+            reading.run();
+        }
+        
+        try
+        {
+            return reading.get();
+        }
+        catch (ExecutionException ex)
+        {
+            //a file that could not be read is not kept, so that it is read again by the next simulation
+            synchronized (m_fields)
+            {
+                m_fields.remove(key, reading);
+            }
+            
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof DataFormatException)
+            {
+                throw (DataFormatException) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+    
+    /**
+     * @return a description of the state of the engine, for the status of the process
+     */
+    public String describe()
+    {
+        StringBuilder description = new StringBuilder();
+        
+        synchronized (this)
+        {
+            for (Map.Entry<Integer, ForkJoinPool> pool: m_pools.entrySet())
+            {
+                description.append("pool.").append(pool.getKey()).append("=").append(pool.getValue().getPoolSize()).append(" threads alive, ").append(pool.getValue().getActiveThreadCount()).append(" active\n");
+            }
+        }
+        synchronized (m_fields)
+        {
+            description.append("cached_fields=").append(m_fields.size()).append("\n");
+            description.append("field_cache_hits=").append(m_fieldHits).append("\n");
+            description.append("field_cache_misses=").append(m_fieldMisses).append("\n");
+        }
+        
+        return description.toString();
+    }
+    
+    @Override
+    public synchronized void close()
+    {
+        for (ForkJoinPool pool: m_pools.values())
+        {
+            pool.shutdownNow();
+        }
+        m_pools.clear();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors running the stages of the simulation that wait most of the time: reading the electric fields, waiting for the calculations and writing the result files
+ * These stages run on virtual threads, one per task, when the Java runtime provides them (Java 21 and later), and on a cached pool of platform threads otherwise. The calculations themselves always run on the bounded ForkJoinPool of the SimulationManager.
+ * The software being built for Java 11, the virtual thread executor is looked up by reflection.
+ * @author Alban Lafuente
+ */
+public class SimulationExecutors
+{
+    private static final Method NEW_VIRTUAL_EXECUTOR;
+    
+    static
+    {
+        Method newVirtualExecutor;
+        try
+        {
+            newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException | RuntimeException ex)
+        {
+            newVirtualExecutor = null;
+        }
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+    }
+    
+    /**
+     * @return true if the Java runtime provides virtual threads
+     */
+    public static boolean areVirtualThreadsAvailable()
+    {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+    
+    /**
+     * Create an executor for the waiting stages of the simulation
+     * @param p_mode the kind of threads requested
+     * @param p_name the name given to the platform threads
+     * @return the executor, running each task on a virtual thread if requested and available, on a daemon platform thread otherwise
+     */
+    static ExecutorService newWaitingExecutor(SimulationOptions.IOExecutor p_mode, String p_name)
+    {
+        ExecutorService executor = null;
+        
+        if (p_mode != SimulationOptions.IOExecutor.PLATFORM && areVirtualThreadsAvailable())
+        {
+            try
+            {
+                executor = (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            }
+            catch (ReflectiveOperationException | RuntimeException ex)
+            {
+                executor = null;
+            }
+        }
+        
+        if (executor == null)
+        {
+            final AtomicInteger threadCounter = new AtomicInteger(0);
+            executor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable p_runnable)
+                {
+                    Thread thread = new Thread(p_runnable, p_name+"-"+threadCounter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        return executor;
+    }
+}
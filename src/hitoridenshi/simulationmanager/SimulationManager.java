@@ -17,13 +17,31 @@
 package hitoridenshi.simulationmanager;
 
 import commonutils.PhysicsTools;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.file.FileSystemException;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -35,42 +53,244 @@ import java.util.zip.DataFormatException;
 public class SimulationManager implements Runnable
 {
     private final CalculationConditions m_conditions;
+    private final SimulationOptions m_options;
     private final ProgressNotifierInterface m_guiApp;
     private final int m_numberOfWorker;
+    private final int m_maximumWorker;
     private final List<BigDecimal> m_notchPositions;
     private final String m_inputFolder;
     private final String m_outputFolder;
     private final String[] m_biasVoltages;
-    
-    private double m_progress = 0;
-    private int m_totalCalculations = 0;
+    private final MemoryEstimate m_memoryEstimate;
+    private final SimulationOptions.TrajectoryStorage m_trajectoryStorage;
+    //the starting positions completed by a previous run are removed from the total once the journal is read
+    private volatile int m_totalCalculations;
+    private final WorkerCounters m_workerCalculations;
+    private final WorkerCounters m_workerBusyTime;
+    //the counters of the workers are given to the threads of the pool at their first count, the pool indices not being contiguous and the pool being shared with the other simulations
+    private final AtomicInteger m_nextWorker = new AtomicInteger(0);
+    private final ThreadLocal<Integer> m_workerOfThread = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            //only a pool compensating for blocked threads runs more threads than workers, the extra ones sharing the counters
+            return m_nextWorker.getAndIncrement() % m_numberOfWorker;
+        }
+    };
+    //the number of calculations of each worker last sent to the terminal, only used by the reporter
+    private final long[] m_reportedCalculations;
+    private final SimulationControl m_control = new SimulationControl();
+    //the pools and electric fields shared with the other simulations of the process, null if the simulation has its own
+    private final SimulationEngine m_engine;
+    //how the simulation ended, for the summary of a batch
+    private volatile String m_outcome = "not launched";
     
     
     public SimulationManager (String p_folderElectricFields, String p_outputFolder, CalculationConditions p_conditions, ProgressNotifierInterface p_guiApp)
     {
+        this(p_folderElectricFields, p_outputFolder, p_conditions, new SimulationOptions(), p_guiApp);
+    }
+    
+    public SimulationManager (String p_folderElectricFields, String p_outputFolder, CalculationConditions p_conditions, SimulationOptions p_options, ProgressNotifierInterface p_guiApp)
+    {
+        this(p_folderElectricFields, p_outputFolder, p_conditions, p_options, p_guiApp, null);
+    }
+    
+    /**
+     * @param p_folderElectricFields the folder containing the SCAPS files
+     * @param p_outputFolder the folder in which the results are written
+     * @param p_conditions the conditions of the simulation
+     * @param p_options the options of the simulation
+     * @param p_guiApp the terminal to which the progress and the messages are sent
+     * @param p_engine the engine whose pools and electric fields are used, or null for the simulation to create its own pool and read its fields
+     */
+    public SimulationManager (String p_folderElectricFields, String p_outputFolder, CalculationConditions p_conditions, SimulationOptions p_options, ProgressNotifierInterface p_guiApp, SimulationEngine p_engine)
+    {
+        m_engine = p_engine;
         m_conditions = p_conditions;
+        m_options = p_options;
         m_biasVoltages = m_conditions.getBiasVoltageArray();
         m_notchPositions = m_conditions.getNotchPositionArray();
         m_inputFolder = p_folderElectricFields;
         m_outputFolder = p_outputFolder;
         m_guiApp = p_guiApp;
         
-        //calculating the number of worker used to run the simulation
-        int nAvailableCore = Runtime.getRuntime().availableProcessors();
-        int nIndependantCalculation = m_biasVoltages.length * m_notchPositions.size();
-        m_numberOfWorker = (nAvailableCore < nIndependantCalculation) ? nAvailableCore : nIndependantCalculation;
+        //counting the starting positions simulated, the notch position being added when it is not already a starting position
+        List<BigDecimal> startingPositions = m_conditions.getStartingPositionList();
+        int numberOfParticles = m_conditions.getNumberOfParticles();
+        int numberOfStartingPositions = 0;
+        for (BigDecimal notch: m_notchPositions)
+        {
+            numberOfStartingPositions += startingPositions.contains(notch) ? startingPositions.size() : startingPositions.size() + 1;
+        }
+        numberOfStartingPositions *= m_biasVoltages.length;
+        m_totalCalculations = numberOfStartingPositions * numberOfParticles;
+        
+        //calculating the number of worker used to run the simulation: the parallelism is only bounded by the number of blocks of particles
+        //with an engine, the pool is shared with the other simulations of the process, so its size does not depend on the blocks of this one
+        int blockSize = m_options.getVelocityBlockSize();
+        int nIndependantCalculation = numberOfStartingPositions * countBlocks(numberOfParticles, blockSize);
+        int nAvailableCore = p_engine != null ? p_engine.getSharedParallelism() : Runtime.getRuntime().availableProcessors();
+        m_maximumWorker = Math.max(1, p_engine != null ? nAvailableCore : Math.min(nAvailableCore, nIndependantCalculation));
+        int numberOfWorker = m_maximumWorker;
+        
+        //each worker can hold a partial tracker for each level of the splitting of the blocks, the peak memory is reached when all of them are at their longest
+        //if the simulation does not fit in the memory budget, less workers are used
+        int trackersPerWorker = splittingDepth(numberOfParticles, blockSize) + 1;
+        MemoryEstimate estimate = new MemoryEstimate(m_conditions, numberOfStartingPositions, numberOfWorker * trackersPerWorker, m_options);
+        SimulationOptions.TrajectoryStorage storage = estimate.chooseStorage(m_options.getTrajectoryStorage(), m_options.getMemoryBudget(), Runtime.getRuntime().maxMemory());
+        while (storage == null && numberOfWorker > 1)
+        {
+            numberOfWorker -= 1;
+            estimate = new MemoryEstimate(m_conditions, numberOfStartingPositions, numberOfWorker * trackersPerWorker, m_options);
+            storage = estimate.chooseStorage(m_options.getTrajectoryStorage(), m_options.getMemoryBudget(), Runtime.getRuntime().maxMemory());
+        }
+        
+        m_numberOfWorker = numberOfWorker;
+        m_memoryEstimate = estimate;
+        m_trajectoryStorage = storage;
+        m_workerCalculations = new WorkerCounters(m_numberOfWorker);
+        m_workerBusyTime = new WorkerCounters(m_numberOfWorker);
+        m_reportedCalculations = new long[m_numberOfWorker];
+    }
+    
+    /**
+     * Give the number of blocks a ParticleBlockTask cuts its range of particles into
+     * @param p_numberOfParticles the number of particles in the range
+     * @param p_blockSize the maximum number of particles in a block
+     * @return the number of blocks
+     */
+    static int countBlocks(int p_numberOfParticles, int p_blockSize)
+    {
+        int numberOfBlocks = 1;
+        
+        if (p_numberOfParticles > p_blockSize)
+        {
+            int half = p_numberOfParticles / 2;
+            numberOfBlocks = countBlocks(half, p_blockSize) + countBlocks(p_numberOfParticles - half, p_blockSize);
+        }
+        
+        return numberOfBlocks;
+    }
+    
+    /**
+     * Give the number of times a ParticleBlockTask cuts its range of particles in two before reaching the block size
+     * @param p_numberOfParticles the number of particles in the range
+     * @param p_blockSize the maximum number of particles in a block
+     * @return the depth of the splitting
+     */
+    static int splittingDepth(int p_numberOfParticles, int p_blockSize)
+    {
+        int depth = 0;
+        int size = p_numberOfParticles;
+        
+        while (size > p_blockSize)
+        {
+            size -= size / 2;
+            depth += 1;
+        }
+        
+        return depth;
+    }
+    
+    /**
+     * @return the ID of the worker running the calling thread, 0 if it is not a thread of the pool
+     */
+    private int currentWorker()
+    {
+        int workerID = 0;
+        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+        {
+            workerID = m_workerOfThread.get();
+        }
+        
+        return workerID;
+    }
+    
+    /**
+     * Function for the class of the package to count a simulated particle for the calling worker
+     * It never calls the terminal chosen for the execution: the progress is sent to it by the reporter thread, at a fixed rate
+     */
+    void sendUpdate ()
+    {
+        m_workerCalculations.add(currentWorker(), 1);
+    }
+    
+    /**
+     * Count as done the particles of a starting position that will not be simulated, its results having reached the target precision before
+     * @param p_numberOfParticles the number of particles not simulated
+     */
+    void skipCalculations(int p_numberOfParticles)
+    {
+        m_workerCalculations.add(currentWorker(), p_numberOfParticles);
     }
     
     /**
-     * Function for the class of the package to send an update on their progress to the terminal chosen for the execution
-     * @param p_workerID the ID of the worker sending the message
-     * @param p_workerProgress the progress of the worker
+     * Send the progress of the workers whose count changed since the last report to the terminal chosen for the execution
      */
-    void sendUpdate (int p_workerID, double p_workerProgress)
+    private synchronized void reportProgress ()
     {
-        m_progress += 1.0 / m_totalCalculations;
+        double globalProgress = (double) m_workerCalculations.sum() / m_totalCalculations;
         
-        m_guiApp.updateProgress(p_workerID, p_workerProgress, m_progress);
+        for (int workerID = 0 ; workerID < m_numberOfWorker ; workerID += 1)
+        {
+            long workerCalculations = m_workerCalculations.get(workerID);
+            if (workerCalculations != m_reportedCalculations[workerID])
+            {
+                m_reportedCalculations[workerID] = workerCalculations;
+                //the work is not statically shared anymore, so the progress of a worker is measured against an even share of the calculations
+                double workerProgress = Math.min(1.0, workerCalculations * (double) m_numberOfWorker / m_totalCalculations);
+                m_guiApp.updateProgress(workerID, workerProgress, globalProgress);
+            }
+        }
+    }
+    
+    /**
+     * Start the thread sending the progress to the terminal at the rate given in the options
+     * @return the executor running the reporter, to be shut down at the end of the simulation
+     */
+    private ScheduledExecutorService startReporter ()
+    {
+        ScheduledThreadPoolExecutor reporter = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable p_runnable)
+            {
+                Thread reporterThread = new Thread(p_runnable, "ProgressReporter");
+                reporterThread.setDaemon(true);
+                return reporterThread;
+            }
+        });
+        
+        long period = Math.max(1, Math.round(1e6 / m_options.getProgressUpdateRate()));
+        reporter.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    reportProgress();
+                }
+                catch (RuntimeException ex)
+                {
+                    //an exception would cancel the next reports
+                    Logger.getLogger(SimulationManager.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }, period, period, TimeUnit.MICROSECONDS);
+        
+        return reporter;
+    }
+    
+    /**
+     * Count the time the calling worker spent simulating particles
+     * @param p_nanoseconds the time spent, in nanoseconds
+     */
+    void addBusyTime (long p_nanoseconds)
+    {
+        m_workerBusyTime.add(currentWorker(), p_nanoseconds);
     }
     
     /**
@@ -82,84 +302,531 @@ public class SimulationManager implements Runnable
         m_guiApp.sendMessage(p_message);
     }
     
-    //put more of this into the constructor (such as the creation of the absorber, and possibly the one of the worker too
     @Override
     public void run()
     {      
+        if (m_trajectoryStorage == null)
+        {
+            sendMessage(m_memoryEstimate.describe(SimulationOptions.TrajectoryStorage.MAPPED));
+            sendMessage("The simulation needs more memory than the budget ("+MemoryEstimate.formatBytes(Math.min(m_options.getMemoryBudget(), Runtime.getRuntime().maxMemory()))+"), even with the particle histories spilled to the disk and a single worker. Reduce the lifetime of the particle or the number of simulated particles, or raise the budget. Simulation not launched.");
+            m_outcome = "not launched, over the memory budget";
+            return;
+        }
+        
+        sendMessage(m_memoryEstimate.describe(m_trajectoryStorage));
+        String requestedStorage = m_options.getTrajectoryStorage().toString().toLowerCase();
+        if (!m_memoryEstimate.isPossible(m_options.getTrajectoryStorage()))
+        {
+            sendMessage("The particle lifetime is too long to keep the histories in "+requestedStorage+" storage, they will be kept in "+m_trajectoryStorage.toString().toLowerCase()+" storage instead.");
+        }
+        else if (m_trajectoryStorage != m_options.getTrajectoryStorage())
+        {
+            sendMessage("The simulation would go over the memory budget with "+requestedStorage+" storage, the particle histories will be spilled to a scratch file under the output folder.");
+        }
+        if (m_options.getMemoryBudget() == Long.MAX_VALUE && m_memoryEstimate.getHeapBytes(m_trajectoryStorage) > Runtime.getRuntime().maxMemory())
+        {
+            sendMessage("Warning: if particles stay in the absorber until the end of their lifetime, the simulation can need more than the maximum Java heap ("+MemoryEstimate.formatBytes(Runtime.getRuntime().maxMemory())+"). Set memory_budget for the simulation to adapt to the available memory.");
+        }
+        if (m_numberOfWorker < m_maximumWorker)
+        {
+            sendMessage("To stay in the memory budget, the simulation runs on "+m_numberOfWorker+" workers instead of "+m_maximumWorker+".");
+        }
+        
         sendMessage("Launching simulation...\n");
+        if (m_options.getIOExecutor() == SimulationOptions.IOExecutor.VIRTUAL && !SimulationExecutors.areVirtualThreadsAvailable())
+        {
+            sendMessage("Virtual threads are not available in this Java runtime, platform threads are used instead.");
+        }
+        ForkJoinPool pool = m_engine != null ? m_engine.getPool(m_numberOfWorker) : new ForkJoinPool(m_numberOfWorker);
+        ExecutorService waitingExecutor = SimulationExecutors.newWaitingExecutor(m_options.getIOExecutor(), "SimulationIO");
+        ScheduledExecutorService reporter = startReporter();
+        List<TaskScope> absorberScopes = new ArrayList<>();
+        RunJournal journal = null;
+        TrajectoryStore store = null;
         try
         {
-            //preparing the absorbers on which the simulation will be run
-            Set<Absorber> absorberList = new HashSet<>();
-            //all the values in p_conditions are in SI units
-            for (String bias: m_biasVoltages)
+            //preparing the absorbers on which the simulation will be run, with the hash of their electric field
+            Map<Absorber, String> fieldHashes = new ConcurrentHashMap<>();
+            List<Absorber> absorberList = loadAbsorbers(waitingExecutor, fieldHashes);
+            String conditionsHash = RunJournal.conditionsHash(m_conditions, m_options);
+            ShardPlan shardPlan = new ShardPlan(m_conditions, m_options);
+            if (shardPlan.isSharded())
             {
-                for (BigDecimal notch: m_notchPositions)
-                {
-                    String notchPositionNanometer = String.valueOf(notch.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue());
-                    absorberList.add(new Absorber(m_inputFolder+"/E"+bias+"V_N"+notchPositionNanometer+"nm.eb", bias, notch, m_conditions));
-                }
+                sendMessage("Calculating the shard "+m_options.getShardIndex()+" of "+m_options.getShardCount()+": its blocks of particles are written under "+m_outputFolder+"/"+ShardPlan.SHARD_FOLDER+", to be merged once all the shards are done.");
+            }
+            if (m_options.getTargetPrecision() > 0)
+            {
+                sendMessage("Each starting position stops once the confidence intervals of its results are within "+m_options.getTargetPrecision()+", with at most "+m_conditions.getNumberOfParticles()+" particles.");
             }
             
-            //int division casting to an int truncate it
-            int nAbsorbers = absorberList.size();
-            int chunkSize = nAbsorbers / m_numberOfWorker;
-            int nSupplementaryAbsorber = nAbsorbers % m_numberOfWorker;
-            Iterator<Absorber> absorberListIterator = absorberList.iterator();
-            Thread[] workerArray = new Thread[m_numberOfWorker];
+            //a single store keeps the particle histories of the whole simulation, with the slots of the memory estimate
+            store = m_options.isExitOnly() ? null : TrajectoryStore.create(m_trajectoryStorage, new File(m_outputFolder, ".scratch"), m_memoryEstimate.getStoreSlots(), m_conditions.getMaxSteps());
             
-            for (int workerCounter = 0 ; workerCounter < m_numberOfWorker ; workerCounter +=1)
+            //one task per absorber and starting position, each of them splitting its particles in blocks
+            List<BigDecimal> startingPositions = m_conditions.getStartingPositionList();
+            List<StartingPositionTask> startingPositionTasks = new ArrayList<>();
+            //each absorber has its own scope: if one of its starting positions fails, its other ones are cancelled, while the other absorbers go on
+            Map<Absorber, TaskScope> scopeOfAbsorber = new HashMap<>();
+            for (Absorber absorber: absorberList)
             {
-                Set<Absorber> currentChunk = new HashSet<>();
-                int currentChunkSize = chunkSize;
-                if (nSupplementaryAbsorber > 0)
+                List<BigDecimal> initialPositionWithNotch = new ArrayList<>(startingPositions);
+                if (!initialPositionWithNotch.contains(absorber.getNotchPosition()))
                 {
-                    currentChunkSize += 1;
-                    nSupplementaryAbsorber -= 1;
+                    initialPositionWithNotch.add(absorber.getNotchPosition());
                 }
                 
-                //adding the required number of Absorber to the current chunk
-                for (int eltsCounter = 0 ; eltsCounter < currentChunkSize ; eltsCounter += 1)
+                for (BigDecimal initialPosition: initialPositionWithNotch)
                 {
-                    currentChunk.add(absorberListIterator.next());
+                    String key = StartingPositionTask.key(absorber.getBias(), absorber.getNotchPosition(), initialPosition);
+                    String inputHash = RunJournal.inputHash(conditionsHash, fieldHashes.get(absorber), key);
+                    StartingPositionTask task = new StartingPositionTask(this, m_conditions, absorber, initialPosition, m_outputFolder, store, m_options.isExitOnly(), m_options.getMeanBucketSteps(), m_options.getVelocityBlockSize(), inputHash);
+                    if (shardPlan.isSharded())
+                    {
+                        List<int[]> ownedBlocks = shardPlan.getOwnedBlocks(key);
+                        if (ownedBlocks.isEmpty())
+                        {
+                            continue;
+                        }
+                        task.setShard(ownedBlocks, shardPlan.getShardName());
+                    }
+                    if (m_options.getTargetPrecision() > 0)
+                    {
+                        task.setTargetPrecision(m_options.getTargetPrecision());
+                    }
+                    startingPositionTasks.add(task);
                 }
                 
-                //starting a thread with the current chunk
-                SimulationWorker currentWorker = new SimulationWorker(workerCounter, m_outputFolder, (HashSet) currentChunk, m_conditions, this);
-                m_totalCalculations += currentWorker.getNumberCalculations();
-                Thread currentThread = new Thread(currentWorker);
-                currentThread.start();
-                workerArray[workerCounter] = currentThread;
+                TaskScope scope = new TaskScope("E_bias = "+absorber.getBias()+", x_notch = "+absorber.getNotchPosition().divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue()+"nm", waitingExecutor, true);
+                absorberScopes.add(scope);
+                scopeOfAbsorber.put(absorber, scope);
             }
             
-            //waiting for the threads to finish
-            for (int threadWalker = 0 ; threadWalker < m_numberOfWorker ; threadWalker += 1)
+            //the starting positions whose results have been written by a previous run from the same inputs are not calculated again
+            journal = new RunJournal(m_outputFolder, m_options.isResume());
+            int numberOfSkipped = 0;
+            int numberOfCalculations = 0;
+            for (int i = startingPositionTasks.size() - 1 ; i >= 0 ; i -= 1)
             {
-                workerArray[threadWalker].join();
+                StartingPositionTask task = startingPositionTasks.get(i);
+                if (journal.isUpToDate(task.getJournalKey(), task.getInputHash()) && task.hasUpToDateResults())
+                {
+                    startingPositionTasks.remove(i);
+                    numberOfSkipped += 1;
+                }
+                else
+                {
+                    numberOfCalculations += task.getNumberOfParticles();
+                }
+            }
+            m_totalCalculations = Math.max(1, numberOfCalculations);
+            if (numberOfSkipped > 0)
+            {
+                sendMessage(numberOfSkipped+" starting positions whose inputs did not change since a previous run are skipped, "+startingPositionTasks.size()+" remain to be calculated.");
             }
+            final RunJournal runJournal = journal;
             
-            sendMessage("\nEnd of simulation!");
-        }
-        catch (DataFormatException ex)
-        {
-            Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, ex);
+            //the most expensive starting positions are launched first, so that they do not end alone on a few workers
+            CostModel costModel = new CostModel(m_outputFolder);
+            estimateCosts(startingPositionTasks, costModel, pool);
+            if (m_options.isExitMap())
+            {
+                buildExitMaps(startingPositionTasks, pool);
+            }
+            else if (m_options.isExitSolver())
+            {
+                buildExitSolvers(startingPositionTasks);
+            }
+            Collections.sort(startingPositionTasks, Comparator.comparingDouble(StartingPositionTask::getEstimatedCost).reversed());
+            
+            //the calculations are submitted to the pool in that order, while the waiting for their result and the writing of the files is done outside of it
+            //a starting position is written as soon as it is finished, so that its result is kept even if the simulation is cancelled afterwards
+            final AtomicInteger savedPositions = new AtomicInteger(0);
+            long startTime = System.nanoTime();
+            for (final StartingPositionTask task: startingPositionTasks)
+            {
+                final ForkJoinTask<SimulationTracker> calculation = pool.submit(task);
+                TaskScope scope = scopeOfAbsorber.get(task.getAbsorber());
+                scope.register(calculation);
+                scope.fork(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        SimulationTracker tracker;
+                        try
+                        {
+                            tracker = calculation.get();
+                        }
+                        catch (CancellationException ex)
+                        {
+                            //cancelled by the scope of the absorber: the result is discarded here if the calculation has ended, by the calculation otherwise
+                            task.dropResult();
+                            return null;
+                        }
+                        catch (ExecutionException ex)
+                        {
+                            if (ex.getCause() instanceof CancellationException)
+                            {
+                                return null;
+                            }
+                            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                        }
+                        task.save(tracker);
+                        runJournal.markCompleted(task.getJournalKey(), task.getInputHash());
+                        savedPositions.incrementAndGet();
+                        return null;
+                    }
+                });
+            }
+            
+            //waiting for the tasks to finish
+            int numberOfFailures = absorberList.size() < m_biasVoltages.length * m_notchPositions.size() ? m_biasVoltages.length * m_notchPositions.size() - absorberList.size() : 0;
+            for (TaskScope scope: absorberScopes)
+            {
+                Throwable failure = scope.join();
+                if (failure != null)
+                {
+                    numberOfFailures += 1;
+                    sendMessage("The simulation failed for "+scope.getName()+", its remaining starting positions have been cancelled: "+failure);
+                    Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, failure);
+                }
+            }
+            long wallTime = System.nanoTime() - startTime;
+            
+            for (StartingPositionTask task: startingPositionTasks)
+            {
+                if (task.isCompletedNormally())
+                {
+                    costModel.record(task.getKey(), task.getMeanSteps());
+                }
+            }
+            costModel.save();
+            sendMessage(utilizationReport(wallTime));
+            
+            if (m_control.isCancelled())
+            {
+                sendMessage("\nSimulation cancelled. The results of the "+savedPositions.get()+" starting positions finished out of "+startingPositionTasks.size()+" have been written, a new run in the same output folder calculates the other ones.");
+                m_outcome = "cancelled, "+savedPositions.get()+" of "+startingPositionTasks.size()+" starting positions written";
+            }
+            else
+            {
+                sendMessage(numberOfFailures == 0 ? "\nEnd of simulation!" : "\nEnd of simulation, "+numberOfFailures+" absorbers could not be simulated.");
+                m_outcome = "finished, "+savedPositions.get()+" starting positions written, "+numberOfSkipped+" up to date"+(numberOfFailures == 0 ? "" : ", "+numberOfFailures+" absorbers failed")+String.format(", %.1f s", wallTime / 1e9);
+                if (shardPlan.isSharded())
+                {
+                    sendMessage("Once all the shards are done, merge them by running the same configuration with --merge to write the results.");
+                }
+            }
         }
-        catch (FileSystemException ex)
+        catch (CancellationException ex)
         {
-            System.err.println("Erreur with the file "+ex.getFile()+": "+ex.getReason());
+            //cancelled while estimating the costs, before any starting position was launched
+            sendMessage("\nSimulation cancelled before the launch of the calculations.");
+            m_outcome = "cancelled before the launch of the calculations";
         }
         catch (IOException ex)
         {
             Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, ex);
-        } 
+            m_outcome = "failed: "+ex;
+        }
         catch (InterruptedException ex)
         {
-            Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, ex);
+            sendMessage("Simulation interrupted.");
+            m_outcome = "interrupted";
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            //no task outlives the simulation
+            for (TaskScope scope: absorberScopes)
+            {
+                scope.close();
+            }
+            reporter.shutdownNow();
+            reportProgress();
+            if (m_engine == null)
+            {
+                pool.shutdownNow();
+            }
+            waitingExecutor.shutdownNow();
+            if (store != null)
+            {
+                //given back once the trackers of the calculations still stopping have released their slots
+                store.free();
+            }
+            if (journal != null)
+            {
+                try
+                {
+                    journal.close();
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Start the simulation on a thread of its own, a virtual thread if available
+     * @return the future of the simulation, done once it has ended
+     */
+    public Future<?> start()
+    {
+        ExecutorService launcher = SimulationExecutors.newWaitingExecutor(m_options.getIOExecutor(), "SimulationManager");
+        Future<?> simulation = launcher.submit(this);
+        launcher.shutdown();
+        
+        return simulation;
+    }
+    
+    /**
+     * Read the electric fields of the absorbers in parallel
+     * An absorber whose file cannot be read is skipped, the user being told why
+     * @param p_executor the executor on which the files are read
+     * @param p_fieldHashes filled with the hash of the content of the file of each absorber
+     * @return the absorbers that have been read
+     * @throws InterruptedException
+     */
+    private List<Absorber> loadAbsorbers(ExecutorService p_executor, final Map<Absorber, String> p_fieldHashes) throws InterruptedException
+    {
+        List<Absorber> absorberList = new ArrayList<>();
+        List<String> fileList = new ArrayList<>();
+        List<Future<Absorber>> futureList = new ArrayList<>();
+        
+        try (TaskScope scope = new TaskScope("absorbers", p_executor, false))
+        {
+            //all the values in p_conditions are in SI units
+            for (final String bias: m_biasVoltages)
+            {
+                for (final BigDecimal notch: m_notchPositions)
+                {
+                    String notchPositionNanometer = String.valueOf(notch.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue());
+                    final String fileName = m_inputFolder+"/E"+bias+"V_N"+notchPositionNanometer+"nm.eb";
+                    fileList.add(fileName);
+                    futureList.add(scope.fork(new Callable<Absorber>()
+                    {
+                        @Override
+                        public Absorber call() throws DataFormatException, IOException, InterruptedException
+                        {
+                            String fieldHash = RunJournal.fileHash(new File(fileName));
+                            ContinuousFunction field = m_engine != null ? m_engine.getElectricField(new File(fileName), fieldHash, m_conditions.getAbscissaMultiplier()) : ContinuousFunction.createElectricFieldFromSCAPS(new File(fileName), m_conditions.getAbscissaMultiplier());
+                            Absorber absorber = new Absorber(field, bias, notch, m_conditions);
+                            p_fieldHashes.put(absorber, fieldHash);
+                            return absorber;
+                        }
+                    }));
+                }
+            }
+            scope.join();
+        }
+        
+        for (int i = 0 ; i < futureList.size() ; i += 1)
+        {
+            try
+            {
+                absorberList.add(futureList.get(i).get());
+            }
+            catch (ExecutionException ex)
+            {
+                Throwable cause = ex.getCause();
+                if (cause instanceof FileSystemException)
+                {
+                    System.err.println("Erreur with the file "+((FileSystemException) cause).getFile()+": "+((FileSystemException) cause).getReason());
+                }
+                else
+                {
+                    Logger.getLogger(SimulationManager.class.getName()).log(Level.SEVERE, null, cause);
+                }
+                sendMessage("Impossible to read the electric field "+fileList.get(i)+", this absorber is skipped: "+cause);
+            }
+        }
+        
+        return absorberList;
+    }
+    
+    /**
+     * Estimate the cost of each starting position, from the previous runs or with pilot particles simulated in parallel
+     * @param p_tasks the starting positions to estimate
+     * @param p_costModel the cost model containing the statistics of the previous runs
+     * @param p_pool the pool in which the pilot particles are simulated
+     */
+    private void estimateCosts(List<StartingPositionTask> p_tasks, CostModel p_costModel, ForkJoinPool p_pool)
+    {
+        List<StartingPositionTask> unknownTasks = new ArrayList<>();
+        
+        for (StartingPositionTask task: p_tasks)
+        {
+            double previousCost = p_costModel.getPreviousCost(task.getKey());
+            if (previousCost >= 0)
+            {
+                task.setEstimatedCost(previousCost);
+            }
+            else
+            {
+                unknownTasks.add(task);
+            }
+        }
+        
+        int numberOfPilots = m_options.getPilotParticles();
+        if (!unknownTasks.isEmpty() && numberOfPilots > 0)
+        {
+            sendMessage("Estimating the cost of "+unknownTasks.size()+" starting positions with "+numberOfPilots+" pilot particles each...");
+            
+            List<ForkJoinTask<Double>> pilots = new ArrayList<>();
+            for (final StartingPositionTask task: unknownTasks)
+            {
+                pilots.add(p_pool.submit(new Callable<Double>()
+                {
+                    @Override
+                    public Double call()
+                    {
+                        return CostModel.pilot(task, numberOfPilots);
+                    }
+                }));
+            }
+            for (int i = 0 ; i < unknownTasks.size() ; i += 1)
+            {
+                unknownTasks.get(i).setEstimatedCost(pilots.get(i).join());
+            }
+        }
+    }
+    
+    /**
+     * Calculate the exit map of each absorber having starting positions to calculate, the maps of the absorbers being calculated in parallel
+     * @param p_tasks the starting positions to calculate, which are given the map of their absorber
+     * @param p_pool the pool in which the maps are calculated
+     */
+    private void buildExitMaps(List<StartingPositionTask> p_tasks, ForkJoinPool p_pool)
+    {
+        if (m_conditions.getScattering().isActive())
+        {
+            sendMessage("The particles collide with the lattice, their exits depend on more than their initial position and velocity: the exit maps are not used.");
+        }
+        else
+        {
+            Map<Absorber, ForkJoinTask<ExitMap>> maps = new LinkedHashMap<>();
+            for (StartingPositionTask task: p_tasks)
+            {
+                final Absorber absorber = task.getAbsorber();
+                if (!maps.containsKey(absorber))
+                {
+                    maps.put(absorber, p_pool.submit(new Callable<ExitMap>()
+                    {
+                        @Override
+                        public ExitMap call()
+                        {
+                            return new ExitMap(absorber, m_conditions, m_control);
+                        }
+                    }));
+                }
+            }
+            
+            if (!maps.isEmpty())
+            {
+                sendMessage("Calculating the exit maps of "+maps.size()+" absorbers...");
+                int numberOfNodes = 0;
+                for (StartingPositionTask task: p_tasks)
+                {
+                    task.setExitMap(maps.get(task.getAbsorber()).join());
+                }
+                for (ForkJoinTask<ExitMap> map: maps.values())
+                {
+                    numberOfNodes += map.join().getNumberOfNodes();
+                }
+                sendMessage("Exit maps calculated from "+numberOfNodes+" particles.");
+            }
         }
     }
     
+    /**
+     * Calculate the potential of each absorber having starting positions to calculate, from which the exits of their particles are solved
+     * @param p_tasks the starting positions to calculate, which are given the solver of their absorber
+     */
+    private void buildExitSolvers(List<StartingPositionTask> p_tasks)
+    {
+        if (m_conditions.getScattering().isActive())
+        {
+            sendMessage("The particles collide with the lattice, their energy is not conserved: the exits are simulated step by step.");
+        }
+        else
+        {
+            Map<Absorber, ExitSolver> solvers = new LinkedHashMap<>();
+            for (StartingPositionTask task: p_tasks)
+            {
+                if (!solvers.containsKey(task.getAbsorber()))
+                {
+                    solvers.put(task.getAbsorber(), new ExitSolver(task.getAbsorber(), m_conditions));
+                }
+                task.setExitSolver(solvers.get(task.getAbsorber()));
+            }
+        }
+    }
+    
+    /**
+     * Describe how much of the simulation time each worker spent simulating particles
+     * @param p_wallTime the duration of the simulation, in nanoseconds
+     * @return the report, to be printed to the user
+     */
+    private String utilizationReport(long p_wallTime)
+    {
+        String report = "Simulation time: "+String.format("%.1f", p_wallTime / 1e9)+" s. Worker utilization:";
+        long totalBusyTime = 0;
+        
+        for (int i = 0 ; i < m_numberOfWorker ; i += 1)
+        {
+            long busyTime = m_workerBusyTime.get(i);
+            totalBusyTime += busyTime;
+            report += "\n\tSimulationWorker-"+i+": "+String.format("%.1f", 100.0 * busyTime / Math.max(1, p_wallTime))+"%";
+        }
+        report += "\n\tOverall: "+String.format("%.1f", 100.0 * totalBusyTime / Math.max(1, p_wallTime * m_numberOfWorker))+"%";
+        
+        return report;
+    }
+    
+    /**
+     * Give an identifier of everything the results of a simulation depend on, apart from its electric fields and its starting positions
+     * @param p_conditions the conditions of the simulation
+     * @param p_options the options of the simulation
+     * @return the identifier, the same for two simulations giving the same results on the same fields
+     */
+    public static String resultsIdentifier(CalculationConditions p_conditions, SimulationOptions p_options)
+    {
+        return RunJournal.conditionsHash(p_conditions, p_options);
+    }
+    
+    /**
+     * @return how the simulation ended, or "not launched" while it has not ended
+     */
+    public String getOutcome()
+    {
+        return m_outcome;
+    }
+    
+    /**
+     * @return the control to pause, resume or cancel the simulation
+     */
+    public SimulationControl getControl()
+    {
+        return m_control;
+    }
+    
     public int getNumberOfWorker()
     {
         return m_numberOfWorker;
     }
+    
+    public MemoryEstimate getMemoryEstimate()
+    {
+        return m_memoryEstimate;
+    }
+    
+    /**
+     * @return where the particle histories will be kept, once the memory budget is taken into account, or null if the simulation does not fit in the budget
+     */
+    public SimulationOptions.TrajectoryStorage getTrajectoryStorage()
+    {
+        return m_trajectoryStorage;
+    }
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import commonutils.PhysicsTools;
+import java.math.BigDecimal;
+import java.util.Properties;
+
+/**
+ * Represents the settings of the simulation engine, that change how the simulation is run but not its physics
+ * Every setting is optional in the properties file, a missing field taking its default value
+ * @author Alban Lafuente
+ */
+public class SimulationOptions
+{
+    private final TrajectoryStorage m_trajectoryStorage;
+    private final boolean m_exitOnly;
+    private final boolean m_exitMap;
+    private final boolean m_exitSolver;
+    private final int m_meanBucketSteps;
+    private final long m_memoryBudget;
+    private final int m_velocityBlockSize;
+    private final int m_pilotParticles;
+    private final double m_progressUpdateRate;
+    private final IOExecutor m_ioExecutor;
+    private final boolean m_resume;
+    private final int m_shardIndex;
+    private final int m_shardCount;
+    private final double m_targetPrecision;
+    
+    /**
+     * Create the default options
+     */
+    public SimulationOptions()
+    {
+        this(new Properties());
+    }
+    
+    /**
+     * Create the options from the fields of a properties file
+     * @param p_properties the properties containing the options
+     * @throws IllegalArgumentException if one of the fields has an unknown value
+     */
+    public SimulationOptions(Properties p_properties) throws IllegalArgumentException
+    {
+        m_trajectoryStorage = TrajectoryStorage.valueOf(p_properties.getProperty("trajectory_storage", "heap").strip().toUpperCase());
+        m_exitOnly = parseBoolean(p_properties.getProperty("exit_only", "false"), "exit_only");
+        m_exitMap = parseBoolean(p_properties.getProperty("exit_map", "false"), "exit_map");
+        //the map only gives the exits of the particles, not their trajectories
+        if (m_exitMap && !m_exitOnly)
+        {
+            throw new IllegalArgumentException("exit_map can only be used with exit_only.");
+        }
+        m_exitSolver = parseBoolean(p_properties.getProperty("exit_solver", "false"), "exit_solver");
+        if (m_exitSolver && !m_exitOnly)
+        {
+            throw new IllegalArgumentException("exit_solver can only be used with exit_only.");
+        }
+        if (m_exitSolver && m_exitMap)
+        {
+            throw new IllegalArgumentException("exit_map and exit_solver cannot be used together.");
+        }
+        m_meanBucketSteps = parseBucket(p_properties.getProperty("mean_time_bucket", "1"), "mean_time_bucket");
+        m_memoryBudget = parseBytes(p_properties.getProperty("memory_budget", ""), "memory_budget");
+        m_velocityBlockSize = Integer.parseInt(p_properties.getProperty("velocity_block_size", "250").strip());
+        if (m_velocityBlockSize <= 0)
+        {
+            throw new IllegalArgumentException("velocity_block_size has to be positive.");
+        }
+        m_pilotParticles = Integer.parseInt(p_properties.getProperty("pilot_particles", "8").strip());
+        if (m_pilotParticles < 0)
+        {
+            throw new IllegalArgumentException("pilot_particles cannot be negative.");
+        }
+        m_progressUpdateRate = Double.parseDouble(p_properties.getProperty("progress_update_rate", "10").strip());
+        if (!(m_progressUpdateRate > 0) || Double.isInfinite(m_progressUpdateRate))
+        {
+            throw new IllegalArgumentException("progress_update_rate has to be a positive number.");
+        }
+        m_ioExecutor = IOExecutor.valueOf(p_properties.getProperty("io_executor", "auto").strip().toUpperCase());
+        m_resume = parseBoolean(p_properties.getProperty("resume", "true"), "resume");
+        
+        String[] shard = p_properties.getProperty("shard", "0/1").strip().split("/");
+        if (shard.length != 2)
+        {
+            throw new IllegalArgumentException("shard has to be written i/N.");
+        }
+        m_shardIndex = Integer.parseInt(shard[0].strip());
+        m_shardCount = Integer.parseInt(shard[1].strip());
+        if (m_shardCount <= 0 || m_shardIndex < 0 || m_shardIndex >= m_shardCount)
+        {
+            throw new IllegalArgumentException("shard has to be written i/N, with N positive and i between 0 and N-1.");
+        }
+        
+        m_targetPrecision = Double.parseDouble(p_properties.getProperty("target_precision", "0").strip());
+        if (!(m_targetPrecision >= 0 && m_targetPrecision < 1))
+        {
+            throw new IllegalArgumentException("target_precision has to be between 0 and 1.");
+        }
+        //the shards calculate a fixed set of blocks without knowing the results of the other ones
+        if (m_targetPrecision > 0 && m_shardCount > 1)
+        {
+            throw new IllegalArgumentException("target_precision cannot be used with a simulation split between shards.");
+        }
+    }
+    
+    public TrajectoryStorage getTrajectoryStorage()
+    {
+        return m_trajectoryStorage;
+    }
+    
+    /**
+     * @return true if only the exits of the particles are counted, no trajectory being kept nor written
+     */
+    public boolean isExitOnly()
+    {
+        return m_exitOnly;
+    }
+    
+    /**
+     * Tell if the exits of the ballistic particles are interpolated in a map calculated once per absorber
+     * The interpolated exit times are within 1 % of the stepped ones at the nodes checked by the map, and the mean exit times within 0.3 % on the sample absorber. The particles of the cells missing this tolerance are simulated.
+     * @return true if the map is used
+     */
+    public boolean isExitMap()
+    {
+        return m_exitMap;
+    }
+    
+    /**
+     * @return true if the exits of the ballistic particles are solved from the conservation of their energy instead of being simulated
+     */
+    public boolean isExitSolver()
+    {
+        return m_exitSolver;
+    }
+    
+    /**
+     * @return the number of steps averaged together in the mean trajectories, 1 if they are written at each step
+     */
+    public int getMeanBucketSteps()
+    {
+        return m_meanBucketSteps;
+    }
+    
+    /**
+     * @return the memory the simulation is allowed to keep in RAM, in bytes, or Long.MAX_VALUE if no budget has been set
+     */
+    public long getMemoryBudget()
+    {
+        return m_memoryBudget;
+    }
+    
+    /**
+     * @return the maximum number of particles simulated by a single task
+     */
+    public int getVelocityBlockSize()
+    {
+        return m_velocityBlockSize;
+    }
+    
+    /**
+     * @return the number of particles simulated to estimate the cost of a starting position unknown from the previous runs, 0 to not estimate it
+     */
+    public int getPilotParticles()
+    {
+        return m_pilotParticles;
+    }
+    
+    /**
+     * @return the number of times per second the progress is sent to the terminal
+     */
+    public double getProgressUpdateRate()
+    {
+        return m_progressUpdateRate;
+    }
+    
+    public IOExecutor getIOExecutor()
+    {
+        return m_ioExecutor;
+    }
+    
+    /**
+     * @return true if the starting positions already completed in the output folder by a run of the same configuration are skipped
+     */
+    public boolean isResume()
+    {
+        return m_resume;
+    }
+    
+    /**
+     * @return the index of the shard calculated by this process, between 0 and getShardCount() - 1
+     */
+    public int getShardIndex()
+    {
+        return m_shardIndex;
+    }
+    
+    /**
+     * @return the number of shards the simulation is split into, 1 if it is not split
+     */
+    public int getShardCount()
+    {
+        return m_shardCount;
+    }
+    
+    /**
+     * @return the half-width of the 95% confidence intervals at which a starting position stops, absolute for the collection fractions and relative to the mean for the exit time, or 0 if all the particles are always calculated
+     */
+    public double getTargetPrecision()
+    {
+        return m_targetPrecision;
+    }
+    
+    /**
+     * Read a boolean option, written true or false
+     * @param p_value the written value
+     * @param p_name the name of the option, for the error message
+     * @return the value of the option
+     * @throws IllegalArgumentException if the value is neither true nor false
+     */
+    private static boolean parseBoolean(String p_value, String p_name) throws IllegalArgumentException
+    {
+        String value = p_value.strip().toLowerCase();
+        
+        if (!value.equals("true") && !value.equals("false"))
+        {
+            throw new IllegalArgumentException(p_name+" has to be true or false.");
+        }
+        
+        return value.equals("true");
+    }
+    
+    /**
+     * Read a duration written in femtoseconds as a number of time steps
+     * @param p_value the written duration
+     * @param p_name the name of the option, for the error message
+     * @return the number of steps of the duration
+     * @throws IllegalArgumentException if the duration is not a positive multiple of the time step
+     */
+    private static int parseBucket(String p_value, String p_name) throws IllegalArgumentException
+    {
+        int steps;
+        
+        try
+        {
+            steps = new BigDecimal(p_value.strip()).multiply(PhysicsTools.UnitsPrefix.FEMTO.getMultiplier()).divide(CalculationConditions.DT).intValueExact();
+        }
+        catch (ArithmeticException ex)
+        {
+            throw new IllegalArgumentException(p_name+" has to be a multiple of the time step ("+CalculationConditions.DT+" s).");
+        }
+        if (steps <= 0)
+        {
+            throw new IllegalArgumentException(p_name+" has to be positive.");
+        }
+        
+        return steps;
+    }
+    
+    /**
+     * Read a size written as a number of bytes, optionally followed by a binary multiplier (K, M or G)
+     * @param p_value the written size, empty if the option is not set
+     * @param p_name the name of the option, for the error message
+     * @return the size in bytes, or Long.MAX_VALUE if the value is empty
+     * @throws IllegalArgumentException if the value is not a positive size
+     */
+    private static long parseBytes(String p_value, String p_name) throws IllegalArgumentException
+    {
+        String value = p_value.strip().toUpperCase();
+        long size = Long.MAX_VALUE;
+        
+        if (!value.isEmpty())
+        {
+            long multiplier = 1;
+            switch (value.charAt(value.length() - 1))
+            {
+                case 'K':
+                    multiplier = 1L << 10;
+                    break;
+                case 'M':
+                    multiplier = 1L << 20;
+                    break;
+                case 'G':
+                    multiplier = 1L << 30;
+                    break;
+                default:
+                    break;
+            }
+            if (multiplier != 1)
+            {
+                value = value.substring(0, value.length() - 1).strip();
+            }
+            
+            try
+            {
+                size = Math.multiplyExact(Long.parseLong(value), multiplier);
+            }
+            catch (ArithmeticException ex)
+            {
+                throw new IllegalArgumentException(p_name+" is too big.");
+            }
+            if (size <= 0)
+            {
+                throw new IllegalArgumentException(p_name+" has to be positive.");
+            }
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Where the particle histories are stored during the simulation
+     * HEAP: in lists on the Java heap
+     * DIRECT: in direct buffers, outside of the Java heap
+     * MAPPED: in a scratch file under the output folder, mapped in memory
+     */
+    public enum TrajectoryStorage
+    {
+        HEAP, DIRECT, MAPPED
+    }
+    
+    /**
+     * The threads running the stages of the simulation that wait (reading the fields, waiting for the calculations, writing the results)
+     * AUTO: virtual threads if the Java runtime provides them, platform threads otherwise
+     * VIRTUAL: virtual threads, falling back to platform threads if the Java runtime does not provide them
+     * PLATFORM: a pool of platform threads
+     */
+    public enum IOExecutor
+    {
+        AUTO, VIRTUAL, PLATFORM
+    }
+}
@@ -18,31 +18,47 @@ package hitoridenshi.simulationmanager;
 
 import commonutils.PhysicsTools;
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.MathContext;
 import java.nio.file.FileSystemException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Track an ongoing simulation, remembering the fastest and slowest particle speed and trajectory, as well as the mean trajectory and speed of the particle generated 
+ * Track an ongoing simulation, remembering the fastest and slowest particle speed and trajectory, as well as the mean trajectory and speed of the particle generated
+ * A tracker created for the exit statistics only counts the particles and their exit times, their histories being neither averaged nor kept, and writes the statistics of the exit times instead of the trajectories.
  * @author Alban Lafuente
  */
 public class SimulationTracker
 {
-    private BigDecimal m_numberParticle;
+    private int m_numberParticle;
+    private final boolean m_exitOnly;
     
     private int m_numberFrontExit;
     private int m_numberBackExit;
     private int m_numberNotExited;
     
+    //the weighted numbers of particles of each channel and the exit times, giving the estimates and their standard error
+    private final CollectionStatistics m_statistics = new CollectionStatistics();
+    
+    //the blocks of particles logged to the tracker are batches, whose spread gives the variance of the results whatever the sampling of the velocities
+    //sums over the batches of the fractions of particles not collected, collected at the front and at the back, and of their mean exit time in steps, and of their squares
+    private static final int BATCH_QUANTITIES = 4;
+    private int m_numberOfBatches = 0;
+    private int m_numberOfExitBatches = 0;
+    private final double[] m_batchSums = new double[BATCH_QUANTITIES];
+    private final double[] m_squaredBatchSums = new double[BATCH_QUANTITIES];
+    
     //save for the overall mean trajectory, velocity and acceleration
-    private List<BigDecimal> m_meanTrajectory = new ArrayList<>();
-    private List<BigDecimal> m_meanVelocity= new ArrayList<>();
-    private List<BigDecimal> m_meanAcceleration = new ArrayList<>();
+    private final MeanAccumulator m_meanTrajectory;
+    private final MeanAccumulator m_meanVelocity;
+    private final MeanAccumulator m_meanAcceleration;
     
     //save the trajectory, speed and acceleration history of the particle that reached the front the fastest
     private List<BigDecimal> m_fastestFrontTrajectory = new ArrayList<>();
@@ -55,9 +71,9 @@ public class SimulationTracker
     private List<BigDecimal> m_slowestFrontAcceleration = new ArrayList<>();
     
     //save the mean trajectory, speed and acceleration history of the particle that reached the front
-    private List<BigDecimal> m_meanFrontTrajectory = new ArrayList<>();
-    private List<BigDecimal> m_meanFrontVelocity= new ArrayList<>();
-    private List<BigDecimal> m_meanFrontAcceleration = new ArrayList<>();
+    private final MeanAccumulator m_meanFrontTrajectory;
+    private final MeanAccumulator m_meanFrontVelocity;
+    private final MeanAccumulator m_meanFrontAcceleration;
     
     //save the trajectory, speed and acceleration history of the particle that reached the back the fastest
     private List<BigDecimal> m_fastestBackTrajectory = new ArrayList<>();
@@ -70,98 +86,176 @@ public class SimulationTracker
     private List<BigDecimal> m_slowestBackAcceleration = new ArrayList<>();
     
     //save the mean trajectory, speed and acceleration history of the particle that reached the back
-    private List<BigDecimal> m_meanBackTrajectory = new ArrayList<>();
-    private List<BigDecimal> m_meanBackVelocity= new ArrayList<>();
-    private List<BigDecimal> m_meanBackAcceleration = new ArrayList<>();
+    private final MeanAccumulator m_meanBackTrajectory;
+    private final MeanAccumulator m_meanBackVelocity;
+    private final MeanAccumulator m_meanBackAcceleration;
+    
+    //when the histories are stored outside of the heap, the fastest and slowest particles are kept as slots of the store instead of the lists above
+    private final TrajectoryStore m_store;
+    //a tracker finding the store fully reserved keeps its histories on the heap, with the values the store would give back, so that the results do not depend on which trackers got slots
+    private final boolean m_storeOverflow;
+    private boolean m_reservationReleased = false;
+    private int m_fastestFrontSlot = -1;
+    private int m_slowestFrontSlot = -1;
+    private int m_fastestBackSlot = -1;
+    private int m_slowestBackSlot = -1;
+    
+    //length of the histories of the fastest and slowest particles
+    private int m_fastestFrontLength = 0;
+    private int m_slowestFrontLength = 0;
+    private int m_fastestBackLength = 0;
+    private int m_slowestBackLength = 0;
     
     //No need to log times, it can be deduced from the length of the array and the time step
     
+    //the number of slots used by a tracker: the four kept particles, plus the one being simulated
+    static final int STORE_SLOTS = 5;
+    
     public SimulationTracker(int p_numberParticle)
     {
-        m_numberParticle = new BigDecimal(p_numberParticle);
+        this(p_numberParticle, null, false, 1);
+    }
+    
+    /**
+     * Create a tracker keeping the fastest and slowest particles in the given store
+     * The store is shared with the other trackers of the simulation: the tracker reserves STORE_SLOTS slots of it, given back once it is saved, merged or discarded. If the store is fully reserved, the histories are kept on the heap instead.
+     * @param p_numberParticle the number of particles that will be logged to the tracker
+     * @param p_store the store in which the particle histories are written, or null if they are kept on the heap or not kept
+     * @param p_exitOnly true to only count the particles and their exit times
+     * @param p_bucketSteps the number of steps averaged together in the mean trajectories, 1 to write them at each step
+     */
+    SimulationTracker(int p_numberParticle, TrajectoryStore p_store, boolean p_exitOnly, int p_bucketSteps)
+    {
+        m_numberParticle = p_numberParticle;
+        m_exitOnly = p_exitOnly;
+        m_meanTrajectory = new MeanAccumulator(p_bucketSteps);
+        m_meanVelocity = new MeanAccumulator(p_bucketSteps);
+        m_meanAcceleration = new MeanAccumulator(p_bucketSteps);
+        m_meanFrontTrajectory = new MeanAccumulator(p_bucketSteps);
+        m_meanFrontVelocity = new MeanAccumulator(p_bucketSteps);
+        m_meanFrontAcceleration = new MeanAccumulator(p_bucketSteps);
+        m_meanBackTrajectory = new MeanAccumulator(p_bucketSteps);
+        m_meanBackVelocity = new MeanAccumulator(p_bucketSteps);
+        m_meanBackAcceleration = new MeanAccumulator(p_bucketSteps);
         m_numberBackExit = 0;
         m_numberFrontExit = 0;
         m_numberNotExited = 0;
+        boolean reserved = p_store != null && p_store.reserve(STORE_SLOTS);
+        m_store = reserved ? p_store : null;
+        m_storeOverflow = p_store != null && !reserved;
     }
     
     /**
-     * Add the current particle to the given category of mean trajectory, speed and acceleration
-     * @param p_type the type of list to which the mean have to be added.
-     * @param p_absorber the absorber in which the absorber was.
-     * @param p_particleTrajectoryArray the array containing the position history of the particle
-     * @param p_particleVelocityArray the array containing the speed history of the particle
-     * @param p_particleAccelerationArray the array containing the acceleration history of the particle
+     * @return the store in which the histories of the particles logged to this tracker have to be written, null if they are kept on the heap
      */
-    synchronized private void addMean(MeanType p_type, Absorber p_absorber, ArrayList<BigDecimal> p_particleTrajectoryArray, ArrayList<BigDecimal> p_particleVelocityArray, ArrayList<BigDecimal> p_particleAccelerationArray)
+    TrajectoryStore getTrajectoryStore()
     {
-        List<BigDecimal> trackerTrajectoryArray = new ArrayList<BigDecimal>();
-        List<BigDecimal> trackerVelocityArray = new ArrayList<BigDecimal>();
-        List<BigDecimal> trackerAccelerationArray = new ArrayList<BigDecimal>();
-        BigDecimal toAddIfLongerList = BigDecimal.ZERO;
+        return m_store;
+    }
+    
+    /**
+     * @return the number of particles expected by the tracker
+     */
+    int getNumberParticle()
+    {
+        return m_numberParticle;
+    }
+    
+    /**
+     * @return the statistics of the collection of the particles logged to the tracker, not to be modified
+     */
+    CollectionStatistics getStatistics()
+    {
+        return m_statistics;
+    }
+    
+    /**
+     * Count all the particles logged so far as a batch, once the block of particles of the tracker is finished
+     */
+    synchronized void closeBatch()
+    {
+        if (m_statistics.getNumberParticle() > 0)
+        {
+            double[] batch = {m_statistics.getFraction(Particle.CollectionState.NOTCOLLECTED), m_statistics.getFraction(Particle.CollectionState.FRONT), m_statistics.getFraction(Particle.CollectionState.BACK), m_statistics.getMeanExitSteps()};
+            for (int i = 0 ; i < BATCH_QUANTITIES ; i += 1)
+            {
+                m_batchSums[i] = batch[i];
+                m_squaredBatchSums[i] = batch[i] * batch[i];
+            }
+            m_numberOfBatches = 1;
+            m_numberOfExitBatches = m_statistics.getNumberCollected() > 0 ? 1 : 0;
+        }
+    }
+    
+    /**
+     * Add the history of the current particle to the overall mean and to the mean of its collection side
+     * The particle is counted with its last position, velocity and acceleration after its last step
+     * @param p_particle the particle to be added
+     * @param p_type the mean of the collection side to which the particle has to be added, GENERAL if it has not been collected
+     * @param p_weight the weight of the particle
+     */
+    private void addMean(Particle p_particle, MeanType p_type, double p_weight)
+    {
+        MeanAccumulator sideTrajectory = null;
+        MeanAccumulator sideVelocity = null;
+        MeanAccumulator sideAcceleration = null;
         
         switch(p_type)
         {
-            case GENERAL:
-                trackerTrajectoryArray = m_meanTrajectory;
-                trackerVelocityArray = m_meanVelocity;
-                trackerAccelerationArray = m_meanAcceleration;
-                break;
             case FRONT:
-                trackerTrajectoryArray = m_meanFrontTrajectory;
-                trackerVelocityArray = m_meanFrontVelocity;
-                trackerAccelerationArray = m_meanFrontAcceleration;
-                toAddIfLongerList = CalculationConditions.formatBigDecimal(new BigDecimal(m_numberFrontExit*p_absorber.getFrontPosition().doubleValue()));
+                sideTrajectory = m_meanFrontTrajectory;
+                sideVelocity = m_meanFrontVelocity;
+                sideAcceleration = m_meanFrontAcceleration;
                 break;
             case BACK:
-                trackerTrajectoryArray = m_meanBackTrajectory;
-                trackerVelocityArray = m_meanBackVelocity;
-                trackerAccelerationArray = m_meanBackAcceleration;
-                toAddIfLongerList = CalculationConditions.formatBigDecimal(new BigDecimal(m_numberBackExit*p_absorber.getBackPosition().doubleValue()));
+                sideTrajectory = m_meanBackTrajectory;
+                sideVelocity = m_meanBackVelocity;
+                sideAcceleration = m_meanBackAcceleration;
                 break;
         }
         
-        int trackerArraySize = trackerTrajectoryArray.size(); 
-        int particleArraySize = p_particleTrajectoryArray.size();
-        int shortestAcceleration = Math.min(trackerAccelerationArray.size(), p_particleAccelerationArray.size());
-        int index;
-        
-        for(index = 0 ; index < particleArraySize ; index += 1)
+        int length = p_particle.getHistoryLength();
+        for (int step = 0 ; step < length ; step += 1)
         {
-            if (index < trackerArraySize)
+            double position = p_particle.getPositionAt(step);
+            double velocity = p_particle.getVelocityAt(step);
+            m_meanTrajectory.addSample(step, position, p_weight);
+            m_meanVelocity.addSample(step, velocity, p_weight);
+            if (sideTrajectory != null)
             {
-                trackerTrajectoryArray.set(index, trackerTrajectoryArray.get(index).add(p_particleTrajectoryArray.get(index).divide(m_numberParticle, MathContext.DECIMAL128)));
-                trackerVelocityArray.set(index, trackerVelocityArray.get(index).add(p_particleVelocityArray.get(index).divide(m_numberParticle, MathContext.DECIMAL128)));
-                if (index < shortestAcceleration)
-                {
-                    trackerAccelerationArray.set(index, trackerAccelerationArray.get(index).add(p_particleAccelerationArray.get(index).divide(m_numberParticle, MathContext.DECIMAL128)));
-                }
+                sideTrajectory.addSample(step, position, p_weight);
+                sideVelocity.addSample(step, velocity, p_weight);
             }
-            else
+            
+            //there is one acceleration less than positions, as the particle does not move from its last position
+            if (step < length - 1)
             {
-                if (p_type.equals(MeanType.GENERAL) && m_numberBackExit + m_numberFrontExit + m_numberNotExited > 1)
+                double acceleration = p_particle.getAccelerationAt(step);
+                m_meanAcceleration.addSample(step, acceleration, p_weight);
+                if (sideAcceleration != null)
                 {
-                    toAddIfLongerList = trackerTrajectoryArray.get(index-1);
-                }
-                trackerTrajectoryArray.add((p_particleTrajectoryArray.get(index).add(toAddIfLongerList)).divide(m_numberParticle, MathContext.DECIMAL128));
-                trackerVelocityArray.add(p_particleVelocityArray.get(index).divide(m_numberParticle, MathContext.DECIMAL128));
-                if (index < particleArraySize -1)
-                {
-                    trackerAccelerationArray.add(p_particleAccelerationArray.get(index).divide(m_numberParticle, MathContext.DECIMAL128));
+                    sideAcceleration.addSample(step, acceleration, p_weight);
                 }
             }
         }
         
-        //if the tracker mean arrays are longer than the particle arrays, we add the end position of the particle to the mean until reaching the end of the array
-        while (index < trackerArraySize)
+        double lastPosition = p_particle.getPositionAt(length - 1);
+        double lastVelocity = p_particle.getVelocityAt(length - 1);
+        m_meanTrajectory.endSeries(length, lastPosition, p_weight);
+        m_meanVelocity.endSeries(length, lastVelocity, p_weight);
+        if (sideTrajectory != null)
         {
-            trackerTrajectoryArray.set(index, trackerTrajectoryArray.get(index).add(p_particleTrajectoryArray.get(particleArraySize-1).divide(m_numberParticle, MathContext.DECIMAL128)));
-            trackerVelocityArray.set(index, trackerVelocityArray.get(index).add(p_particleVelocityArray.get(particleArraySize-1).divide(m_numberParticle, MathContext.DECIMAL128)));
-            if (index < shortestAcceleration)
+            sideTrajectory.endSeries(length, lastPosition, p_weight);
+            sideVelocity.endSeries(length, lastVelocity, p_weight);
+        }
+        if (length > 1)
+        {
+            double lastAcceleration = p_particle.getAccelerationAt(length - 2);
+            m_meanAcceleration.endSeries(length - 1, lastAcceleration, p_weight);
+            if (sideAcceleration != null)
             {
-                trackerAccelerationArray.set(index, trackerAccelerationArray.get(index).add(p_particleAccelerationArray.get(particleArraySize-1).divide(m_numberParticle, MathContext.DECIMAL128)));
+                sideAcceleration.endSeries(length - 1, lastAcceleration, p_weight);
             }
-            
-            index += 1;
         }
     }
     
@@ -170,7 +264,7 @@ public class SimulationTracker
      * @param p_listType the type of the list to write
      * @param p_writer the BufferedWriter in which to write the lists
      * @param p_prefix the SI prefix of the distance unit
-     * @throws IOException 
+     * @throws IOException
      */
     private void writeFile(ListType p_listType, BufferedWriter p_writer, PhysicsTools.UnitsPrefix p_prefix) throws IOException
     {
@@ -183,39 +277,69 @@ public class SimulationTracker
         switch(p_listType)
         {
             case GENERALMEAN:
-                trajectoryToWrite = new ArrayList(m_meanTrajectory);
-                velocitiesToWrite = new ArrayList(m_meanVelocity);
-                accelerationsToWrite = new ArrayList(m_meanAcceleration);
-                break;
+                writeMeanFile(m_meanTrajectory, m_meanVelocity, m_meanAcceleration, p_writer, p_prefix);
+                return;
             case FRONTMEAN:
-                trajectoryToWrite = new ArrayList(m_meanFrontTrajectory);
-                velocitiesToWrite = new ArrayList(m_meanFrontVelocity);
-                accelerationsToWrite = new ArrayList(m_meanFrontAcceleration);
-                break;
+                writeMeanFile(m_meanFrontTrajectory, m_meanFrontVelocity, m_meanFrontAcceleration, p_writer, p_prefix);
+                return;
             case FRONTFAST:
-                trajectoryToWrite = new ArrayList(m_fastestFrontTrajectory);
-                velocitiesToWrite = new ArrayList(m_fastestFrontVelocity);
-                accelerationsToWrite = new ArrayList(m_fastestFrontAcceleration);
+                if (m_store != null)
+                {
+                    trajectoryToWrite = readStoredTrajectory(m_fastestFrontSlot);
+                    velocitiesToWrite = readStoredVelocities(m_fastestFrontSlot);
+                    accelerationsToWrite = readStoredAccelerations(m_fastestFrontSlot);
+                }
+                else
+                {
+                    trajectoryToWrite = new ArrayList(m_fastestFrontTrajectory);
+                    velocitiesToWrite = new ArrayList(m_fastestFrontVelocity);
+                    accelerationsToWrite = new ArrayList(m_fastestFrontAcceleration);
+                }
                 break;
             case FRONTSLOW:
-                trajectoryToWrite = new ArrayList(m_slowestFrontTrajectory);
-                velocitiesToWrite = new ArrayList(m_slowestFrontVelocity);
-                accelerationsToWrite = new ArrayList(m_slowestFrontAcceleration);
+                if (m_store != null)
+                {
+                    trajectoryToWrite = readStoredTrajectory(m_slowestFrontSlot);
+                    velocitiesToWrite = readStoredVelocities(m_slowestFrontSlot);
+                    accelerationsToWrite = readStoredAccelerations(m_slowestFrontSlot);
+                }
+                else
+                {
+                    trajectoryToWrite = new ArrayList(m_slowestFrontTrajectory);
+                    velocitiesToWrite = new ArrayList(m_slowestFrontVelocity);
+                    accelerationsToWrite = new ArrayList(m_slowestFrontAcceleration);
+                }
                 break;
             case BACKMEAN:
-                trajectoryToWrite = new ArrayList(m_meanBackTrajectory);
-                velocitiesToWrite = new ArrayList(m_meanBackVelocity);
-                accelerationsToWrite = new ArrayList(m_meanBackAcceleration);
-                break;
+                writeMeanFile(m_meanBackTrajectory, m_meanBackVelocity, m_meanBackAcceleration, p_writer, p_prefix);
+                return;
             case BACKFAST:
-                trajectoryToWrite = new ArrayList(m_fastestBackTrajectory);
-                velocitiesToWrite = new ArrayList(m_fastestBackVelocity);
-                accelerationsToWrite = new ArrayList(m_fastestBackAcceleration);
+                if (m_store != null)
+                {
+                    trajectoryToWrite = readStoredTrajectory(m_fastestBackSlot);
+                    velocitiesToWrite = readStoredVelocities(m_fastestBackSlot);
+                    accelerationsToWrite = readStoredAccelerations(m_fastestBackSlot);
+                }
+                else
+                {
+                    trajectoryToWrite = new ArrayList(m_fastestBackTrajectory);
+                    velocitiesToWrite = new ArrayList(m_fastestBackVelocity);
+                    accelerationsToWrite = new ArrayList(m_fastestBackAcceleration);
+                }
                 break;
             case BACKSLOW:
-                trajectoryToWrite = new ArrayList(m_slowestBackTrajectory);
-                velocitiesToWrite = new ArrayList(m_slowestBackVelocity);
-                accelerationsToWrite = new ArrayList(m_slowestBackAcceleration);
+                if (m_store != null)
+                {
+                    trajectoryToWrite = readStoredTrajectory(m_slowestBackSlot);
+                    velocitiesToWrite = readStoredVelocities(m_slowestBackSlot);
+                    accelerationsToWrite = readStoredAccelerations(m_slowestBackSlot);
+                }
+                else
+                {
+                    trajectoryToWrite = new ArrayList(m_slowestBackTrajectory);
+                    velocitiesToWrite = new ArrayList(m_slowestBackVelocity);
+                    accelerationsToWrite = new ArrayList(m_slowestBackAcceleration);
+                }
                 break;
             default:
                 trajectoryToWrite = new ArrayList();
@@ -236,6 +360,171 @@ public class SimulationTracker
         p_writer.close();
     }
     
+    /**
+     * Write the mean and the standard deviation of the trajectory, velocity and acceleration at each step to the given BufferedWriter
+     * When the steps are gathered in buckets, each line gives the statistics of a bucket at the time of its first step, with the minimum and the maximum of the values in the bucket.
+     * @param p_trajectory the accumulated positions
+     * @param p_velocity the accumulated velocities
+     * @param p_acceleration the accumulated accelerations
+     * @param p_writer the BufferedWriter in which to write the means
+     * @param p_prefix the SI prefix of the distance unit
+     * @throws IOException
+     */
+    private void writeMeanFile(MeanAccumulator p_trajectory, MeanAccumulator p_velocity, MeanAccumulator p_acceleration, BufferedWriter p_writer, PhysicsTools.UnitsPrefix p_prefix) throws IOException
+    {
+        BigDecimal multiplier = p_prefix.getMultiplier();
+        BigDecimal bucketDuration = CalculationConditions.DT.multiply(new BigDecimal(p_trajectory.getBucketSteps()));
+        boolean bucketed = p_trajectory.getBucketSteps() > 1;
+        double[][] trajectory = p_trajectory.summarize();
+        double[][] velocity = p_velocity.summarize();
+        double[][] acceleration = p_acceleration.summarize();
+        
+        p_writer.write("Time (ns)\tPosition ("+p_prefix.getPrefix()+"m)\tVelocity (m/s)\tAcceleration (m²/s)\tPosition std ("+p_prefix.getPrefix()+"m)\tVelocity std (m/s)\tAcceleration std (m²/s)");
+        if (bucketed)
+        {
+            p_writer.write("\tPosition min ("+p_prefix.getPrefix()+"m)\tPosition max ("+p_prefix.getPrefix()+"m)\tVelocity min (m/s)\tVelocity max (m/s)\tAcceleration min (m²/s)\tAcceleration max (m²/s)");
+        }
+        for (int i = 0 ; i < trajectory[0].length ; i++)
+        {
+            p_writer.newLine();
+            String toBeWritten = (new BigDecimal(i)).multiply(bucketDuration).divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier())+"\t"+(new BigDecimal(trajectory[0][i])).divide(multiplier, MathContext.DECIMAL32)+"\t"+(new BigDecimal(velocity[0][i])).round(MathContext.DECIMAL32);
+            toBeWritten += "\t" + (i < acceleration[0].length ? (new BigDecimal(acceleration[0][i])).round(MathContext.DECIMAL32) : "");
+            toBeWritten += "\t"+(new BigDecimal(trajectory[1][i])).divide(multiplier, MathContext.DECIMAL32)+"\t"+(new BigDecimal(velocity[1][i])).round(MathContext.DECIMAL32);
+            toBeWritten += "\t" + (i < acceleration[1].length ? (new BigDecimal(acceleration[1][i])).round(MathContext.DECIMAL32) : "");
+            if (bucketed)
+            {
+                toBeWritten += "\t"+(new BigDecimal(trajectory[2][i])).divide(multiplier, MathContext.DECIMAL32)+"\t"+(new BigDecimal(trajectory[3][i])).divide(multiplier, MathContext.DECIMAL32);
+                toBeWritten += "\t"+(new BigDecimal(velocity[2][i])).round(MathContext.DECIMAL32)+"\t"+(new BigDecimal(velocity[3][i])).round(MathContext.DECIMAL32);
+                toBeWritten += "\t" + (i < acceleration[2].length ? (new BigDecimal(acceleration[2][i])).round(MathContext.DECIMAL32)+"\t"+(new BigDecimal(acceleration[3][i])).round(MathContext.DECIMAL32) : "\t");
+            }
+            p_writer.write(toBeWritten);
+        }
+        p_writer.flush();
+        p_writer.close();
+    }
+    
+    /**
+     * Read back the positions of a particle history from the store
+     * @param p_slot the slot in which the history is stored, -1 if no particle has been kept
+     * @return the positions of the particle
+     */
+    private List<BigDecimal> readStoredTrajectory(int p_slot)
+    {
+        List<BigDecimal> trajectory = new ArrayList<>();
+        
+        if (p_slot >= 0)
+        {
+            for (int i = 0 ; i < m_store.getLength(p_slot) ; i += 1)
+            {
+                trajectory.add(new BigDecimal(m_store.getPosition(p_slot, i)));
+            }
+        }
+        
+        return trajectory;
+    }
+    
+    /**
+     * Read back the velocities of a particle history from the store
+     * @param p_slot the slot in which the history is stored, -1 if no particle has been kept
+     * @return the velocities of the particle
+     */
+    private List<BigDecimal> readStoredVelocities(int p_slot)
+    {
+        List<BigDecimal> velocities = new ArrayList<>();
+        
+        if (p_slot >= 0)
+        {
+            for (int i = 0 ; i < m_store.getLength(p_slot) ; i += 1)
+            {
+                velocities.add(new BigDecimal(m_store.getVelocity(p_slot, i)));
+            }
+        }
+        
+        return velocities;
+    }
+    
+    /**
+     * Read back the accelerations of a particle history from the store
+     * @param p_slot the slot in which the history is stored, -1 if no particle has been kept
+     * @return the accelerations of the particle, one less than the number of positions
+     */
+    private List<BigDecimal> readStoredAccelerations(int p_slot)
+    {
+        List<BigDecimal> accelerations = new ArrayList<>();
+        
+        if (p_slot >= 0)
+        {
+            for (int i = 0 ; i < m_store.getLength(p_slot) - 1 ; i += 1)
+            {
+                accelerations.add(new BigDecimal(m_store.getAcceleration(p_slot, i)));
+            }
+        }
+        
+        return accelerations;
+    }
+    
+    /**
+     * Give the values of a history as they are kept: unchanged on the heap, or as the store would give them back for a tracker that could not reserve its slots
+     * @param p_values the values of the history of a particle
+     * @return the values to keep
+     */
+    private List<BigDecimal> keptValues(List<BigDecimal> p_values)
+    {
+        List<BigDecimal> kept = p_values;
+        
+        if (m_storeOverflow)
+        {
+            kept = new ArrayList<>(p_values.size());
+            for (BigDecimal value: p_values)
+            {
+                kept.add(new BigDecimal(value.doubleValue()));
+            }
+        }
+        
+        return kept;
+    }
+    
+    /**
+     * Copy a history kept on the heap by another tracker into the store, in place of the history kept in p_oldSlot
+     * @param p_oldSlot the slot being replaced, -1 if there was none
+     * @param p_trajectory the positions of the particle
+     * @param p_velocities the velocities of the particle
+     * @param p_accelerations the accelerations of the particle, one less than the number of positions
+     * @return the slot in which the history has been copied
+     */
+    private int storeHistory(int p_oldSlot, List<BigDecimal> p_trajectory, List<BigDecimal> p_velocities, List<BigDecimal> p_accelerations)
+    {
+        //no particle is simulated during a merge, so its slot is free and the tracker stays within its reservation
+        int slot = m_store.acquireSlot();
+        for (int i = 0 ; i < p_trajectory.size() ; i += 1)
+        {
+            m_store.write(slot, i, p_trajectory.get(i).doubleValue(), p_velocities.get(i).doubleValue(), i < p_accelerations.size() ? p_accelerations.get(i).doubleValue() : Double.NaN);
+        }
+        if (p_oldSlot >= 0)
+        {
+            m_store.releaseSlot(p_oldSlot);
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * Keep the history stored in p_newSlot in place of the one in p_oldSlot
+     * @param p_oldSlot the slot being replaced, -1 if there was none
+     * @param p_newSlot the slot to keep
+     * @return the kept slot
+     */
+    private int replaceSlot(int p_oldSlot, int p_newSlot)
+    {
+        m_store.retainSlot(p_newSlot);
+        if (p_oldSlot >= 0)
+        {
+            m_store.releaseSlot(p_oldSlot);
+        }
+        
+        return p_newSlot;
+    }
+    
     /**
      * The different type of mean lists, used to identify where to write each particle
      * GENERAL: the list containing the mean for all the particle
@@ -264,94 +553,577 @@ public class SimulationTracker
     
     /**
      * Register a particle to the tracker
+     * If the history of the particle is written in the store of the tracker, the slot of the particle is released afterward
      * @param p_particle the particle to be registered
      * @param p_absorber the absorber that particle was in
      */
-    synchronized public void logParticle(Particle p_particle, Absorber p_absorber)
+    public void logParticle(Particle p_particle, Absorber p_absorber)
     {
-        ArrayList<BigDecimal> particleTrajectory = p_particle.getTrajectory();
-        ArrayList<BigDecimal> particleVelocities = p_particle.getVelocityList();
-        ArrayList<BigDecimal> particleAccelerations = p_particle.getAccelerationList();
-        
-        this.addMean(MeanType.GENERAL, p_absorber, particleTrajectory, particleVelocities, particleAccelerations);
+        logParticle(p_particle, p_absorber, 1);
+    }
+    
+    /**
+     * Register a particle whose velocity has been drawn by importance sampling to the tracker
+     * The particle counts for its weight in the numbers of particles of each channel and in the means, the fastest and slowest particles being kept whatever their weight
+     * @param p_particle the particle to be registered
+     * @param p_absorber the absorber that particle was in
+     * @param p_weight the weight of the particle, the ratio of the thermal distribution to the sampled one at its initial velocity
+     */
+    synchronized void logParticle(Particle p_particle, Absorber p_absorber, double p_weight)
+    {
+        int particleLength = p_particle.getHistoryLength();
+        m_statistics.add(p_particle.getCollection(), particleLength - 1, p_weight);
         
         switch (p_particle.getCollection())
         {
             case FRONT:
                 m_numberFrontExit += 1;
-                addMean(MeanType.FRONT, p_absorber, particleTrajectory, particleVelocities, particleAccelerations);
+                if (!m_exitOnly)
+                {
+                    addMean(p_particle, MeanType.FRONT, p_weight);
+                }
                 //if it is the first particle to reach the front -> we log everything directly
-                if (m_numberFrontExit == 1)
+                if (m_numberFrontExit == 1 || particleLength < m_fastestFrontLength)
                 {
-                    m_fastestFrontTrajectory = particleTrajectory;
-                    m_fastestFrontVelocity = particleVelocities;
-                    m_fastestFrontAcceleration = particleAccelerations;
-                    
-                    m_slowestFrontTrajectory = particleTrajectory;
-                    m_slowestFrontVelocity = particleVelocities;
-                    m_slowestFrontAcceleration = particleAccelerations;
+                    m_fastestFrontLength = particleLength;
+                    if (m_store != null)
+                    {
+                        m_fastestFrontSlot = replaceSlot(m_fastestFrontSlot, p_particle.getSlot());
+                    }
+                    else if (!m_exitOnly)
+                    {
+                        m_fastestFrontTrajectory = keptValues(p_particle.getTrajectory());
+                        m_fastestFrontVelocity = keptValues(p_particle.getVelocityList());
+                        m_fastestFrontAcceleration = keptValues(p_particle.getAccelerationList());
+                    }
                 }
-                else
+                if (m_numberFrontExit == 1 || particleLength > m_slowestFrontLength)
                 {
-                    if (particleTrajectory.size() < m_fastestFrontTrajectory.size())
+                    m_slowestFrontLength = particleLength;
+                    if (m_store != null)
                     {
-                        m_fastestFrontTrajectory = particleTrajectory;
-                        m_fastestFrontVelocity = particleVelocities;
-                        m_fastestFrontAcceleration = particleAccelerations;
+                        m_slowestFrontSlot = replaceSlot(m_slowestFrontSlot, p_particle.getSlot());
                     }
-                    if (particleTrajectory.size() > m_slowestFrontTrajectory.size())
+                    else if (!m_exitOnly)
                     {
-                        m_slowestFrontTrajectory = particleTrajectory;
-                        m_slowestFrontVelocity = particleVelocities;
-                        m_slowestFrontAcceleration = particleAccelerations;
+                        m_slowestFrontTrajectory = keptValues(p_particle.getTrajectory());
+                        m_slowestFrontVelocity = keptValues(p_particle.getVelocityList());
+                        m_slowestFrontAcceleration = keptValues(p_particle.getAccelerationList());
                     }
                 }
                 break;
             case BACK:
                 m_numberBackExit += 1;
-                addMean(MeanType.BACK, p_absorber, particleTrajectory, particleVelocities, particleAccelerations);
-                //if it is the first particle to reach the front -> we log everything directly
-                if (m_numberBackExit == 1)
+                if (!m_exitOnly)
                 {
-                    m_fastestBackTrajectory = particleTrajectory;
-                    m_fastestBackVelocity = particleVelocities;
-                    m_fastestBackAcceleration = particleAccelerations;
-                    
-                    m_slowestBackTrajectory = particleTrajectory;
-                    m_slowestBackVelocity = particleVelocities;
-                    m_slowestBackAcceleration = particleAccelerations;
+                    addMean(p_particle, MeanType.BACK, p_weight);
                 }
-                else
+                //if it is the first particle to reach the back -> we log everything directly
+                if (m_numberBackExit == 1 || particleLength < m_fastestBackLength)
+                {
+                    m_fastestBackLength = particleLength;
+                    if (m_store != null)
+                    {
+                        m_fastestBackSlot = replaceSlot(m_fastestBackSlot, p_particle.getSlot());
+                    }
+                    else if (!m_exitOnly)
+                    {
+                        m_fastestBackTrajectory = keptValues(p_particle.getTrajectory());
+                        m_fastestBackVelocity = keptValues(p_particle.getVelocityList());
+                        m_fastestBackAcceleration = keptValues(p_particle.getAccelerationList());
+                    }
+                }
+                if (m_numberBackExit == 1 || particleLength > m_slowestBackLength)
                 {
-                    if (particleTrajectory.size() < m_fastestBackTrajectory.size())
+                    m_slowestBackLength = particleLength;
+                    if (m_store != null)
                     {
-                        m_fastestBackTrajectory = particleTrajectory;
-                        m_fastestBackVelocity = particleVelocities;
-                        m_fastestBackAcceleration = particleAccelerations;
+                        m_slowestBackSlot = replaceSlot(m_slowestBackSlot, p_particle.getSlot());
                     }
-                    if (particleTrajectory.size() > m_slowestBackTrajectory.size())
+                    else if (!m_exitOnly)
                     {
-                        m_slowestBackTrajectory = particleTrajectory;
-                        m_slowestBackVelocity = particleVelocities;
-                        m_slowestBackAcceleration = particleAccelerations;
+                        m_slowestBackTrajectory = keptValues(p_particle.getTrajectory());
+                        m_slowestBackVelocity = keptValues(p_particle.getVelocityList());
+                        m_slowestBackAcceleration = keptValues(p_particle.getAccelerationList());
                     }
                 }
                 break;
             case NOTCOLLECTED:
-                m_numberNotExited += 1; 
+                m_numberNotExited += 1;
+                if (!m_exitOnly)
+                {
+                    addMean(p_particle, MeanType.GENERAL, p_weight);
+                }
+                break;
+        }
+        
+        //the particle is not used anymore, its slot stays reserved only if the tracker kept it
+        if (m_store != null)
+        {
+            m_store.releaseSlot(p_particle.getSlot());
+        }
+    }
+    
+    /**
+     * Register the exit of a particle that has not been simulated step by step, to a tracker of the exit statistics only
+     * @param p_channel where the particle has been collected
+     * @param p_numberOfSteps the number of steps of the particle
+     * @param p_weight the weight of the particle
+     */
+    synchronized void logExit(Particle.CollectionState p_channel, int p_numberOfSteps, double p_weight)
+    {
+        int particleLength = p_numberOfSteps + 1;
+        m_statistics.add(p_channel, p_numberOfSteps, p_weight);
+        
+        switch (p_channel)
+        {
+            case FRONT:
+                m_numberFrontExit += 1;
+                m_fastestFrontLength = m_numberFrontExit == 1 ? particleLength : Math.min(m_fastestFrontLength, particleLength);
+                m_slowestFrontLength = m_numberFrontExit == 1 ? particleLength : Math.max(m_slowestFrontLength, particleLength);
+                break;
+            case BACK:
+                m_numberBackExit += 1;
+                m_fastestBackLength = m_numberBackExit == 1 ? particleLength : Math.min(m_fastestBackLength, particleLength);
+                m_slowestBackLength = m_numberBackExit == 1 ? particleLength : Math.max(m_slowestBackLength, particleLength);
+                break;
+            case NOTCOLLECTED:
+                m_numberNotExited += 1;
                 break;
         }
     }
     
+    /**
+     * Add all the particles logged to another tracker to this one, as if they had been logged here after the particles already there
+     * The particles of the other tracker are supposed to come after the ones of this tracker: on a tie, the fastest and slowest particles already kept stay, like with logParticle. Merging the trackers of consecutive blocks of particles in their order thus gives the same result whatever the order in which the blocks were calculated.
+     * The other tracker cannot be used afterwards. The kept histories are passed on without being copied when both trackers keep them in the store, and copied when only one of them could reserve its slots.
+     * @param p_other the tracker to merge into this one
+     */
+    synchronized void merge(SimulationTracker p_other)
+    {
+        synchronized (p_other)
+        {
+            if (p_other.m_numberFrontExit > 0)
+            {
+                if (m_numberFrontExit == 0 || p_other.m_fastestFrontLength < m_fastestFrontLength)
+                {
+                    m_fastestFrontLength = p_other.m_fastestFrontLength;
+                    if (m_store != null)
+                    {
+                        m_fastestFrontSlot = p_other.m_store != null ? replaceSlot(m_fastestFrontSlot, p_other.m_fastestFrontSlot) : storeHistory(m_fastestFrontSlot, p_other.m_fastestFrontTrajectory, p_other.m_fastestFrontVelocity, p_other.m_fastestFrontAcceleration);
+                    }
+                    else if (p_other.m_store != null)
+                    {
+                        m_fastestFrontTrajectory = p_other.readStoredTrajectory(p_other.m_fastestFrontSlot);
+                        m_fastestFrontVelocity = p_other.readStoredVelocities(p_other.m_fastestFrontSlot);
+                        m_fastestFrontAcceleration = p_other.readStoredAccelerations(p_other.m_fastestFrontSlot);
+                    }
+                    else
+                    {
+                        m_fastestFrontTrajectory = p_other.m_fastestFrontTrajectory;
+                        m_fastestFrontVelocity = p_other.m_fastestFrontVelocity;
+                        m_fastestFrontAcceleration = p_other.m_fastestFrontAcceleration;
+                    }
+                }
+                if (m_numberFrontExit == 0 || p_other.m_slowestFrontLength > m_slowestFrontLength)
+                {
+                    m_slowestFrontLength = p_other.m_slowestFrontLength;
+                    if (m_store != null)
+                    {
+                        m_slowestFrontSlot = p_other.m_store != null ? replaceSlot(m_slowestFrontSlot, p_other.m_slowestFrontSlot) : storeHistory(m_slowestFrontSlot, p_other.m_slowestFrontTrajectory, p_other.m_slowestFrontVelocity, p_other.m_slowestFrontAcceleration);
+                    }
+                    else if (p_other.m_store != null)
+                    {
+                        m_slowestFrontTrajectory = p_other.readStoredTrajectory(p_other.m_slowestFrontSlot);
+                        m_slowestFrontVelocity = p_other.readStoredVelocities(p_other.m_slowestFrontSlot);
+                        m_slowestFrontAcceleration = p_other.readStoredAccelerations(p_other.m_slowestFrontSlot);
+                    }
+                    else
+                    {
+                        m_slowestFrontTrajectory = p_other.m_slowestFrontTrajectory;
+                        m_slowestFrontVelocity = p_other.m_slowestFrontVelocity;
+                        m_slowestFrontAcceleration = p_other.m_slowestFrontAcceleration;
+                    }
+                }
+            }
+            
+            if (p_other.m_numberBackExit > 0)
+            {
+                if (m_numberBackExit == 0 || p_other.m_fastestBackLength < m_fastestBackLength)
+                {
+                    m_fastestBackLength = p_other.m_fastestBackLength;
+                    if (m_store != null)
+                    {
+                        m_fastestBackSlot = p_other.m_store != null ? replaceSlot(m_fastestBackSlot, p_other.m_fastestBackSlot) : storeHistory(m_fastestBackSlot, p_other.m_fastestBackTrajectory, p_other.m_fastestBackVelocity, p_other.m_fastestBackAcceleration);
+                    }
+                    else if (p_other.m_store != null)
+                    {
+                        m_fastestBackTrajectory = p_other.readStoredTrajectory(p_other.m_fastestBackSlot);
+                        m_fastestBackVelocity = p_other.readStoredVelocities(p_other.m_fastestBackSlot);
+                        m_fastestBackAcceleration = p_other.readStoredAccelerations(p_other.m_fastestBackSlot);
+                    }
+                    else
+                    {
+                        m_fastestBackTrajectory = p_other.m_fastestBackTrajectory;
+                        m_fastestBackVelocity = p_other.m_fastestBackVelocity;
+                        m_fastestBackAcceleration = p_other.m_fastestBackAcceleration;
+                    }
+                }
+                if (m_numberBackExit == 0 || p_other.m_slowestBackLength > m_slowestBackLength)
+                {
+                    m_slowestBackLength = p_other.m_slowestBackLength;
+                    if (m_store != null)
+                    {
+                        m_slowestBackSlot = p_other.m_store != null ? replaceSlot(m_slowestBackSlot, p_other.m_slowestBackSlot) : storeHistory(m_slowestBackSlot, p_other.m_slowestBackTrajectory, p_other.m_slowestBackVelocity, p_other.m_slowestBackAcceleration);
+                    }
+                    else if (p_other.m_store != null)
+                    {
+                        m_slowestBackTrajectory = p_other.readStoredTrajectory(p_other.m_slowestBackSlot);
+                        m_slowestBackVelocity = p_other.readStoredVelocities(p_other.m_slowestBackSlot);
+                        m_slowestBackAcceleration = p_other.readStoredAccelerations(p_other.m_slowestBackSlot);
+                    }
+                    else
+                    {
+                        m_slowestBackTrajectory = p_other.m_slowestBackTrajectory;
+                        m_slowestBackVelocity = p_other.m_slowestBackVelocity;
+                        m_slowestBackAcceleration = p_other.m_slowestBackAcceleration;
+                    }
+                }
+            }
+            
+            m_numberParticle += p_other.m_numberParticle;
+            m_numberFrontExit += p_other.m_numberFrontExit;
+            m_numberBackExit += p_other.m_numberBackExit;
+            m_numberNotExited += p_other.m_numberNotExited;
+            m_statistics.merge(p_other.m_statistics);
+            m_numberOfBatches += p_other.m_numberOfBatches;
+            m_numberOfExitBatches += p_other.m_numberOfExitBatches;
+            for (int i = 0 ; i < BATCH_QUANTITIES ; i += 1)
+            {
+                m_batchSums[i] += p_other.m_batchSums[i];
+                m_squaredBatchSums[i] += p_other.m_squaredBatchSums[i];
+            }
+            
+            m_meanTrajectory.merge(p_other.m_meanTrajectory);
+            m_meanVelocity.merge(p_other.m_meanVelocity);
+            m_meanAcceleration.merge(p_other.m_meanAcceleration);
+            m_meanFrontTrajectory.merge(p_other.m_meanFrontTrajectory);
+            m_meanFrontVelocity.merge(p_other.m_meanFrontVelocity);
+            m_meanFrontAcceleration.merge(p_other.m_meanFrontAcceleration);
+            m_meanBackTrajectory.merge(p_other.m_meanBackTrajectory);
+            m_meanBackVelocity.merge(p_other.m_meanBackVelocity);
+            m_meanBackAcceleration.merge(p_other.m_meanBackAcceleration);
+            
+            p_other.releaseSlots();
+        }
+    }
+    
+    /**
+     * Write the exact state of the tracker, so that it can be merged with the trackers of the other blocks by another process
+     * The kept particle histories are written with the exact values that saveToFile would write, whatever the store of the tracker
+     * @param p_output where the state is written
+     * @throws IOException
+     */
+    synchronized void writePartial(DataOutput p_output) throws IOException
+    {
+        p_output.writeInt(m_numberParticle);
+        p_output.writeBoolean(m_exitOnly);
+        p_output.writeInt(m_meanTrajectory.getBucketSteps());
+        p_output.writeInt(m_numberFrontExit);
+        p_output.writeInt(m_numberBackExit);
+        p_output.writeInt(m_numberNotExited);
+        m_statistics.write(p_output);
+        p_output.writeInt(m_numberOfBatches);
+        p_output.writeInt(m_numberOfExitBatches);
+        for (int i = 0 ; i < BATCH_QUANTITIES ; i += 1)
+        {
+            p_output.writeDouble(m_batchSums[i]);
+            p_output.writeDouble(m_squaredBatchSums[i]);
+        }
+        p_output.writeInt(m_fastestFrontLength);
+        p_output.writeInt(m_slowestFrontLength);
+        p_output.writeInt(m_fastestBackLength);
+        p_output.writeInt(m_slowestBackLength);
+        
+        for (MeanAccumulator accumulator: getAccumulators())
+        {
+            accumulator.write(p_output);
+        }
+        
+        if (m_store != null)
+        {
+            for (int slot: new int[] {m_fastestFrontSlot, m_slowestFrontSlot, m_fastestBackSlot, m_slowestBackSlot})
+            {
+                writeHistory(readStoredTrajectory(slot), p_output);
+                writeHistory(readStoredVelocities(slot), p_output);
+                writeHistory(readStoredAccelerations(slot), p_output);
+            }
+        }
+        else
+        {
+            writeHistory(m_fastestFrontTrajectory, p_output);
+            writeHistory(m_fastestFrontVelocity, p_output);
+            writeHistory(m_fastestFrontAcceleration, p_output);
+            writeHistory(m_slowestFrontTrajectory, p_output);
+            writeHistory(m_slowestFrontVelocity, p_output);
+            writeHistory(m_slowestFrontAcceleration, p_output);
+            writeHistory(m_fastestBackTrajectory, p_output);
+            writeHistory(m_fastestBackVelocity, p_output);
+            writeHistory(m_fastestBackAcceleration, p_output);
+            writeHistory(m_slowestBackTrajectory, p_output);
+            writeHistory(m_slowestBackVelocity, p_output);
+            writeHistory(m_slowestBackAcceleration, p_output);
+        }
+    }
+    
+    /**
+     * Create a tracker from the state written by writePartial, keeping its particle histories on the heap
+     * @param p_input where the state is read
+     * @return the tracker
+     * @throws IOException
+     */
+    static SimulationTracker readPartial(DataInput p_input) throws IOException
+    {
+        int numberParticle = p_input.readInt();
+        boolean exitOnly = p_input.readBoolean();
+        SimulationTracker tracker = new SimulationTracker(numberParticle, null, exitOnly, p_input.readInt());
+        tracker.m_numberFrontExit = p_input.readInt();
+        tracker.m_numberBackExit = p_input.readInt();
+        tracker.m_numberNotExited = p_input.readInt();
+        tracker.m_statistics.read(p_input);
+        tracker.m_numberOfBatches = p_input.readInt();
+        tracker.m_numberOfExitBatches = p_input.readInt();
+        for (int i = 0 ; i < BATCH_QUANTITIES ; i += 1)
+        {
+            tracker.m_batchSums[i] = p_input.readDouble();
+            tracker.m_squaredBatchSums[i] = p_input.readDouble();
+        }
+        tracker.m_fastestFrontLength = p_input.readInt();
+        tracker.m_slowestFrontLength = p_input.readInt();
+        tracker.m_fastestBackLength = p_input.readInt();
+        tracker.m_slowestBackLength = p_input.readInt();
+        
+        for (MeanAccumulator accumulator: tracker.getAccumulators())
+        {
+            accumulator.read(p_input);
+        }
+        
+        tracker.m_fastestFrontTrajectory = readHistory(p_input);
+        tracker.m_fastestFrontVelocity = readHistory(p_input);
+        tracker.m_fastestFrontAcceleration = readHistory(p_input);
+        tracker.m_slowestFrontTrajectory = readHistory(p_input);
+        tracker.m_slowestFrontVelocity = readHistory(p_input);
+        tracker.m_slowestFrontAcceleration = readHistory(p_input);
+        tracker.m_fastestBackTrajectory = readHistory(p_input);
+        tracker.m_fastestBackVelocity = readHistory(p_input);
+        tracker.m_fastestBackAcceleration = readHistory(p_input);
+        tracker.m_slowestBackTrajectory = readHistory(p_input);
+        tracker.m_slowestBackVelocity = readHistory(p_input);
+        tracker.m_slowestBackAcceleration = readHistory(p_input);
+        
+        return tracker;
+    }
+    
+    /**
+     * @return the accumulators of the tracker, always in the same order
+     */
+    private MeanAccumulator[] getAccumulators()
+    {
+        return new MeanAccumulator[] {m_meanTrajectory, m_meanVelocity, m_meanAcceleration, m_meanFrontTrajectory, m_meanFrontVelocity, m_meanFrontAcceleration, m_meanBackTrajectory, m_meanBackVelocity, m_meanBackAcceleration};
+    }
+    
+    private static void writeHistory(List<BigDecimal> p_history, DataOutput p_output) throws IOException
+    {
+        p_output.writeInt(p_history.size());
+        for (BigDecimal value: p_history)
+        {
+            byte[] unscaledValue = value.unscaledValue().toByteArray();
+            p_output.writeInt(value.scale());
+            p_output.writeInt(unscaledValue.length);
+            p_output.write(unscaledValue);
+        }
+    }
+    
+    private static List<BigDecimal> readHistory(DataInput p_input) throws IOException
+    {
+        int size = p_input.readInt();
+        List<BigDecimal> history = new ArrayList<>(size);
+        
+        for (int i = 0 ; i < size ; i += 1)
+        {
+            int scale = p_input.readInt();
+            byte[] unscaledValue = new byte[p_input.readInt()];
+            p_input.readFully(unscaledValue);
+            history.add(new BigDecimal(new BigInteger(unscaledValue), scale));
+        }
+        
+        return history;
+    }
+    
+    /**
+     * Write the standard error of the collection fractions and of the mean exit time, estimated from the spread of the batches and for independent particles with the same weights, next to the one of independent random velocities without weights
+     * The variance reduction is the ratio of the squares of the last one and of the first one (the second one with a single batch): the number of random particles giving the same precision, relatively to the number of particles simulated
+     * @param p_writer the writer of the file, closed afterward
+     * @throws IOException
+     */
+    private void writeVariance(BufferedWriter p_writer) throws IOException
+    {
+        double dt = CalculationConditions.DT.doubleValue();
+        Particle.CollectionState[] channels = {Particle.CollectionState.NOTCOLLECTED, Particle.CollectionState.FRONT, Particle.CollectionState.BACK};
+        double[] values = new double[BATCH_QUANTITIES];
+        double[] batchErrors = new double[BATCH_QUANTITIES];
+        double[] independentErrors = new double[BATCH_QUANTITIES];
+        double[] randomErrors = new double[BATCH_QUANTITIES];
+        int numberParticle = m_statistics.getNumberParticle();
+        int numberCollected = m_statistics.getNumberCollected();
+        
+        for (int i = 0 ; i < BATCH_QUANTITIES - 1 ; i += 1)
+        {
+            values[i] = m_statistics.getFraction(channels[i]);
+            batchErrors[i] = batchStandardError(i, m_numberOfBatches);
+            independentErrors[i] = m_statistics.getFractionStandardError(channels[i]);
+            randomErrors[i] = Math.sqrt(Math.max(0, values[i] * (1 - values[i])) / numberParticle);
+        }
+        values[BATCH_QUANTITIES - 1] = m_statistics.getMeanExitSteps() * dt;
+        batchErrors[BATCH_QUANTITIES - 1] = batchStandardError(BATCH_QUANTITIES - 1, m_numberOfExitBatches) * dt;
+        independentErrors[BATCH_QUANTITIES - 1] = m_statistics.getExitStepsStandardError() * dt;
+        //the random velocities would give on average numberParticle times the estimated fraction of collected particles
+        double randomCollected = numberParticle * (values[1] + values[2]);
+        randomErrors[BATCH_QUANTITIES - 1] = randomCollected > 0 ? Math.sqrt(m_statistics.getExitStepsVariance() / randomCollected) * dt : 0;
+        
+        try (BufferedWriter varianceBuffer = p_writer)
+        {
+            String[] names = {"Not accounted", "Front", "Back", "Mean exit time (s)"};
+            varianceBuffer.write("Quantity\tValue\tStandard error of the batches\tStandard error of independent particles\tStandard error of random velocities\tVariance reduction");
+            for (int i = 0 ; i < BATCH_QUANTITIES ; i += 1)
+            {
+                double error = m_numberOfBatches > 1 ? batchErrors[i] : independentErrors[i];
+                varianceBuffer.newLine();
+                varianceBuffer.write(names[i]+"\t"+values[i]+"\t"+(m_numberOfBatches > 1 ? String.valueOf(batchErrors[i]) : "-")+"\t"+independentErrors[i]+"\t"+randomErrors[i]+"\t"+(error > 0 ? String.valueOf(randomErrors[i] * randomErrors[i] / (error * error)) : "-"));
+            }
+            varianceBuffer.newLine();
+            varianceBuffer.write("Batches\t"+m_numberOfBatches+"\t\t\t\t");
+        }
+    }
+    
+    /**
+     * Write the number of particles collected at each side and the statistics of their exit times: mean, standard deviation, standard error of the mean, fastest and slowest
+     * The times are the ones of the steps at which the particles left the absorber, weighted like the mean exit time of Variance.sim.
+     * @param p_writer the writer of the file, closed afterward
+     * @throws IOException
+     */
+    private void writeExitTimes(BufferedWriter p_writer) throws IOException
+    {
+        double dt = CalculationConditions.DT.doubleValue();
+        
+        try (BufferedWriter exitTimeBuffer = p_writer)
+        {
+            exitTimeBuffer.write("Side\t#carriers\tMean exit time (s)\tExit time std (s)\tStandard error (s)\tFastest (s)\tSlowest (s)");
+            exitTimeBuffer.newLine();
+            exitTimeBuffer.write(exitTimeLine("Front", Particle.CollectionState.FRONT, m_numberFrontExit, m_fastestFrontLength, m_slowestFrontLength, dt));
+            exitTimeBuffer.newLine();
+            exitTimeBuffer.write(exitTimeLine("Back", Particle.CollectionState.BACK, m_numberBackExit, m_fastestBackLength, m_slowestBackLength, dt));
+            exitTimeBuffer.newLine();
+            String collectedLine = "Collected\t"+m_statistics.getNumberCollected();
+            if (m_statistics.getNumberCollected() > 0)
+            {
+                int fastestLength = m_numberFrontExit == 0 ? m_fastestBackLength : (m_numberBackExit == 0 ? m_fastestFrontLength : Math.min(m_fastestFrontLength, m_fastestBackLength));
+                int slowestLength = Math.max(m_slowestFrontLength, m_slowestBackLength);
+                collectedLine += "\t"+m_statistics.getMeanExitSteps() * dt+"\t"+Math.sqrt(m_statistics.getExitStepsVariance()) * dt+"\t"+m_statistics.getExitStepsStandardError() * dt+"\t"+(fastestLength - 1) * dt+"\t"+(slowestLength - 1) * dt;
+            }
+            else
+            {
+                collectedLine += "\t-\t-\t-\t-\t-";
+            }
+            exitTimeBuffer.write(collectedLine);
+        }
+    }
+    
+    /**
+     * @param p_name the name of the side
+     * @param p_channel the channel of the side
+     * @param p_count the number of particles collected at the side
+     * @param p_fastestLength the length of the history of the fastest particle collected at the side
+     * @param p_slowestLength the length of the history of the slowest particle collected at the side
+     * @param p_dt the time step, in s
+     * @return the line of the side in ExitTime.sim, without times if no particle has been collected there
+     */
+    private String exitTimeLine(String p_name, Particle.CollectionState p_channel, int p_count, int p_fastestLength, int p_slowestLength, double p_dt)
+    {
+        String line = p_name+"\t"+p_count;
+        
+        if (p_count > 0)
+        {
+            line += "\t"+m_statistics.getMeanExitSteps(p_channel) * p_dt+"\t"+Math.sqrt(m_statistics.getExitStepsVariance(p_channel)) * p_dt+"\t"+m_statistics.getExitStepsStandardError(p_channel) * p_dt+"\t"+(p_fastestLength - 1) * p_dt+"\t"+(p_slowestLength - 1) * p_dt;
+        }
+        else
+        {
+            line += "\t-\t-\t-\t-\t-";
+        }
+        
+        return line;
+    }
+    
+    /**
+     * @param p_quantity the index of the quantity in the batch sums
+     * @param p_numberOfBatches the number of batches in which the quantity is defined
+     * @return the standard error of the mean of the quantity over the batches, 0 with less than two batches
+     */
+    private double batchStandardError(int p_quantity, int p_numberOfBatches)
+    {
+        double error = 0;
+        
+        if (p_numberOfBatches > 1)
+        {
+            double mean = m_batchSums[p_quantity] / p_numberOfBatches;
+            double variance = Math.max(0, (m_squaredBatchSums[p_quantity] - p_numberOfBatches * mean * mean) / (p_numberOfBatches - 1));
+            error = Math.sqrt(variance / p_numberOfBatches);
+        }
+        
+        return error;
+    }
+    
+    /**
+     * Throw away the particles logged in the tracker, when its starting position is cancelled
+     */
+    synchronized void discard()
+    {
+        releaseSlots();
+    }
+    
+    /**
+     * Give back the slots of the store kept by the tracker and its reservation, once its histories are not needed anymore
+     */
+    private void releaseSlots()
+    {
+        if (m_store != null && !m_reservationReleased)
+        {
+            for (int slot: new int[] {m_fastestFrontSlot, m_slowestFrontSlot, m_fastestBackSlot, m_slowestBackSlot})
+            {
+                if (slot >= 0)
+                {
+                    m_store.releaseSlot(slot);
+                }
+            }
+            m_fastestFrontSlot = -1;
+            m_slowestFrontSlot = -1;
+            m_fastestBackSlot = -1;
+            m_slowestBackSlot = -1;
+            m_reservationReleased = true;
+            m_store.unreserve(STORE_SLOTS);
+        }
+    }
+    
     /**
      * Save the registered data to a file
+     * If the particle histories were kept in a store, their slots are given back once the files are written
      * @param p_generalOutputFolder the address of the folder in which to write the files
      * @param p_biasVoltage the applied bias voltage, used to name the file
      * @param p_notchPosition the position of the notch in the absorber, used to name the file
      * @param p_initialPosition the initial position of the electrons, used to name the file
      * @param p_prefix the SI prefix of the abscissa unit
      * @throws FileSystemException
-     * @throws IOException 
+     * @throws IOException
      */
     synchronized public void saveToFile(String p_generalOutputFolder, String p_biasVoltage, String p_notchPosition, BigDecimal p_initialPosition, PhysicsTools.UnitsPrefix p_prefix) throws FileSystemException, IOException
     {
@@ -364,21 +1136,37 @@ public class SimulationTracker
             BufferedWriter exitFileBuffer = new BufferedWriter(new FileWriter(currenOutputFolder + "/Exit.sim"));
             exitFileBuffer.write("Abscissa\tPosition\t#carriers");
             exitFileBuffer.newLine();
-            exitFileBuffer.write("0\tNot accounted\t"+m_numberNotExited);
+            //with importance sampling, the numbers of carriers are the sums of the weights, estimating the numbers sampling without weights would have given
+            boolean weighted = m_statistics.isWeighted();
+            exitFileBuffer.write("0\tNot accounted\t"+(weighted ? String.valueOf(m_statistics.getWeight(Particle.CollectionState.NOTCOLLECTED)) : String.valueOf(m_numberNotExited)));
             exitFileBuffer.newLine();
-            exitFileBuffer.write("1\tFront\t"+m_numberFrontExit);
+            exitFileBuffer.write("1\tFront\t"+(weighted ? String.valueOf(m_statistics.getWeight(Particle.CollectionState.FRONT)) : String.valueOf(m_numberFrontExit)));
             exitFileBuffer.newLine();
-            exitFileBuffer.write("2\tBack\t"+m_numberBackExit);
+            exitFileBuffer.write("2\tBack\t"+(weighted ? String.valueOf(m_statistics.getWeight(Particle.CollectionState.BACK)) : String.valueOf(m_numberBackExit)));
             exitFileBuffer.flush();
             exitFileBuffer.close();
             
-            writeFile(ListType.GENERALMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovement.sim")), p_prefix);
-            writeFile(ListType.FRONTFAST, new BufferedWriter(new FileWriter(currenOutputFolder + "/FastestMovementToFront.sim")), p_prefix);
-            writeFile(ListType.FRONTSLOW, new BufferedWriter(new FileWriter(currenOutputFolder + "/SlowestMovementToFront.sim")), p_prefix);
-            writeFile(ListType.FRONTMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovementToFront.sim")), p_prefix);
-            writeFile(ListType.BACKFAST, new BufferedWriter(new FileWriter(currenOutputFolder + "/FastestMovementToBack.sim")), p_prefix);
-            writeFile(ListType.BACKSLOW, new BufferedWriter(new FileWriter(currenOutputFolder + "/SlowestMovementToBack.sim")), p_prefix);
-            writeFile(ListType.BACKMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovementToBack.sim")), p_prefix);
+            if (m_numberOfBatches > 1 || m_statistics.isWeighted())
+            {
+                writeVariance(new BufferedWriter(new FileWriter(currenOutputFolder + "/Variance.sim")));
+            }
+            
+            if (m_exitOnly)
+            {
+                writeExitTimes(new BufferedWriter(new FileWriter(currenOutputFolder + "/ExitTime.sim")));
+            }
+            else
+            {
+                writeFile(ListType.GENERALMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovement.sim")), p_prefix);
+                writeFile(ListType.FRONTFAST, new BufferedWriter(new FileWriter(currenOutputFolder + "/FastestMovementToFront.sim")), p_prefix);
+                writeFile(ListType.FRONTSLOW, new BufferedWriter(new FileWriter(currenOutputFolder + "/SlowestMovementToFront.sim")), p_prefix);
+                writeFile(ListType.FRONTMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovementToFront.sim")), p_prefix);
+                writeFile(ListType.BACKFAST, new BufferedWriter(new FileWriter(currenOutputFolder + "/FastestMovementToBack.sim")), p_prefix);
+                writeFile(ListType.BACKSLOW, new BufferedWriter(new FileWriter(currenOutputFolder + "/SlowestMovementToBack.sim")), p_prefix);
+                writeFile(ListType.BACKMEAN, new BufferedWriter(new FileWriter(currenOutputFolder + "/MeanMovementToBack.sim")), p_prefix);
+            }
+            
+            releaseSlots();
         }
         else
         {
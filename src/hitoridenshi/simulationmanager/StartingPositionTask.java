@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import commonutils.PhysicsTools;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The simulation of all the particles starting from one position in one absorber, saved in its own folder
+ * The particles are split in blocks of velocities calculated in parallel by ParticleBlockTask. The task gives back the tracker of all the particles, to be saved outside of the calculation pool.
+ * When the simulation is split between shards, the task only calculates the blocks of its shard, and writes the tracker of each of them in a part file as soon as the block is finished, instead of the results.
+ * When a target precision is set, the blocks are added in the order of the velocity list until the confidence intervals of the results reach it, the number of particles of the simulation being the maximum.
+ * @author Alban Lafuente
+ */
+class StartingPositionTask extends RecursiveTask<SimulationTracker>
+{
+    private static final long serialVersionUID = 1L;
+    
+    static final String INPUT_HASH_FILE = "InputHash.txt";
+    
+    private final SimulationManager m_manager;
+    private final CalculationConditions m_conditions;
+    private final HashMap<String, BigDecimal> m_particleParameters;
+    private final Absorber m_absorber;
+    private final BigDecimal m_initialPosition;
+    private final String m_outputFolder;
+    //the store shared by the trackers of the simulation, null when the histories are kept on the heap or not kept
+    private final TrajectoryStore m_store;
+    private final boolean m_exitOnly;
+    private final int m_meanBucketSteps;
+    private final int m_blockSize;
+    private final String m_inputHash;
+    //the random streams of the particles starting from this position, derived from the seed, the absorber, the position and the index of each particle
+    private final long m_randomStream;
+    private final AtomicLong m_totalSteps = new AtomicLong();
+    //the largest kinetic energy per unit mass the field can give to a colliding particle, bounding its collision rate, 0 without collisions
+    private final double m_energyGain;
+    
+    private double m_estimatedCost = 0;
+    //the blocks calculated by this shard, null when the whole starting position is calculated
+    private List<int[]> m_blocks = null;
+    private String m_shardName = null;
+    //the confidence intervals of the results when the calculation stops at a target precision, null when all the particles are calculated
+    private ConvergenceMonitor m_monitor = null;
+    //the exits of the ballistic particles of the absorber, null when the particles are simulated step by step
+    private ExitMap m_exitMap = null;
+    //the potential of the absorber solving the exits of the ballistic particles, null when the particles are simulated step by step
+    private ExitSolver m_exitSolver = null;
+    private int m_launchedParticles = 0;
+    //the trackers give back their slots of the store when they are saved, or by the last of the calculation and the manager once the task is cancelled, the result being dropped
+    private final Object m_resultLock = new Object();
+    private boolean m_calculationEnded = false;
+    private SimulationTracker m_result = null;
+    
+    /**
+     * @param p_manager the manager to which the progress is sent
+     * @param p_conditions the conditions of the simulation
+     * @param p_absorber the absorber in which the particles move
+     * @param p_initialPosition the starting position of the particles
+     * @param p_outputFolder the folder in which the results are written
+     * @param p_store the store shared by the trackers of the simulation, null if the histories are kept on the heap or not kept
+     * @param p_exitOnly true to only count the exits of the particles, without keeping their histories
+     * @param p_meanBucketSteps the number of steps averaged together in the mean trajectories
+     * @param p_blockSize the maximum number of particles calculated by a single task
+     * @param p_inputHash the hash of all the inputs the results depend on
+     */
+    StartingPositionTask(SimulationManager p_manager, CalculationConditions p_conditions, Absorber p_absorber, BigDecimal p_initialPosition, String p_outputFolder, TrajectoryStore p_store, boolean p_exitOnly, int p_meanBucketSteps, int p_blockSize, String p_inputHash)
+    {
+        m_manager = p_manager;
+        m_conditions = p_conditions;
+        m_particleParameters = p_conditions.getParticleParameters();
+        m_absorber = p_absorber;
+        m_initialPosition = p_initialPosition;
+        m_outputFolder = p_outputFolder;
+        m_store = p_store;
+        m_exitOnly = p_exitOnly;
+        m_meanBucketSteps = p_meanBucketSteps;
+        m_blockSize = p_blockSize;
+        m_inputHash = p_inputHash;
+        m_randomStream = ParticleRandom.stream(key(p_absorber.getBias(), p_absorber.getNotchPosition(), p_initialPosition));
+        m_energyGain = p_conditions.getScattering().isActive() ? new ExitSolver(p_absorber, p_conditions).getLargestEnergyGain() : 0;
+    }
+    
+    SimulationManager getManager()
+    {
+        return m_manager;
+    }
+    
+    CalculationConditions getConditions()
+    {
+        return m_conditions;
+    }
+    
+    /**
+     * @return true if the particles only keep their position and velocity, the trackers only counting their exits
+     */
+    boolean isExitOnly()
+    {
+        return m_exitOnly;
+    }
+    
+    /**
+     * Give the random stream of a particle, for the random events of its motion
+     * @param p_index the index of the particle
+     * @return a new stream, drawing the same numbers each time it is created for the same particle, whatever the thread and the order of the particles
+     */
+    ParticleRandom getRandom(int p_index)
+    {
+        return new ParticleRandom(m_conditions.getRandomSeed(), m_randomStream, p_index);
+    }
+    
+    HashMap<String, BigDecimal> getParticleParameters()
+    {
+        return m_particleParameters;
+    }
+    
+    Absorber getAbsorber()
+    {
+        return m_absorber;
+    }
+    
+    BigDecimal getInitialPosition()
+    {
+        return m_initialPosition;
+    }
+    
+    int getBlockSize()
+    {
+        return m_blockSize;
+    }
+    
+    /**
+     * @return the key identifying the starting position in the statistics of the runs
+     */
+    String getKey()
+    {
+        return key(m_absorber.getBias(), m_absorber.getNotchPosition(), m_initialPosition);
+    }
+    
+    /**
+     * @return the key identifying the starting position in the journal of the runs, which tells the shards apart
+     */
+    String getJournalKey()
+    {
+        return m_shardName == null ? getKey() : getKey()+"@"+m_shardName;
+    }
+    
+    /**
+     * @param p_bias the bias voltage of a starting position
+     * @param p_notch the notch position of its absorber
+     * @param p_initialPosition the position of the starting position
+     * @return the key identifying the starting position in the statistics and the journal of the runs
+     */
+    static String key(String p_bias, BigDecimal p_notch, BigDecimal p_initialPosition)
+    {
+        return "E"+p_bias+"V_N"+p_notch.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue()+"nm_xi"+p_initialPosition.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128).intValue()+"nm";
+    }
+    
+    /**
+     * @return the hash of all the inputs the results of the starting position depend on
+     */
+    String getInputHash()
+    {
+        return m_inputHash;
+    }
+    
+    /**
+     * Only calculate some blocks of particles, the others being calculated by other shards
+     * @param p_blocks the blocks to calculate, in the order of the velocity list
+     * @param p_shardName the name of the shard, used to name its files
+     */
+    void setShard(List<int[]> p_blocks, String p_shardName)
+    {
+        m_blocks = p_blocks;
+        m_shardName = p_shardName;
+    }
+    
+    /**
+     * Stop the calculation once the confidence intervals of the results reach a target precision
+     * @param p_targetPrecision the half-width the confidence intervals have to reach: absolute for the collection fractions, relative to the mean for the exit time
+     */
+    void setTargetPrecision(double p_targetPrecision)
+    {
+        m_monitor = new ConvergenceMonitor(p_targetPrecision);
+    }
+    
+    /**
+     * Take the exits of the particles from the map of the absorber, instead of simulating them step by step
+     * @param p_exitMap the map of the absorber of the task
+     */
+    void setExitMap(ExitMap p_exitMap)
+    {
+        m_exitMap = p_exitMap;
+    }
+    
+    /**
+     * @return the map giving the exits of the particles, null if they have to be simulated
+     */
+    ExitMap getExitMap()
+    {
+        return m_exitMap;
+    }
+    
+    /**
+     * Solve the exits of the particles from the conservation of their energy, instead of simulating them step by step
+     * @param p_exitSolver the solver of the absorber of the task
+     */
+    void setExitSolver(ExitSolver p_exitSolver)
+    {
+        m_exitSolver = p_exitSolver;
+    }
+    
+    /**
+     * @return the solver giving the exits of the particles, null if they have to be simulated
+     */
+    ExitSolver getExitSolver()
+    {
+        return m_exitSolver;
+    }
+    
+    /**
+     * @return the largest kinetic energy per unit mass the field of the absorber can give to a particle between two collisions, in J/kg
+     */
+    double getEnergyGain()
+    {
+        return m_energyGain;
+    }
+    
+    /**
+     * @return the maximum number of particles calculated by this task
+     */
+    int getNumberOfParticles()
+    {
+        int numberOfParticles = m_conditions.getNumberOfParticles();
+        
+        if (m_blocks != null)
+        {
+            numberOfParticles = 0;
+            for (int[] block: m_blocks)
+            {
+                numberOfParticles += block[1] - block[0];
+            }
+        }
+        
+        return numberOfParticles;
+    }
+    
+    /**
+     * @param p_outputFolder the output folder of the simulation
+     * @param p_bias the bias voltage of a starting position
+     * @param p_notch the notch position of its absorber
+     * @param p_initialPosition the position of the starting position
+     * @return the folder in which the results of the starting position are written
+     */
+    static File getResultFolder(String p_outputFolder, String p_bias, BigDecimal p_notch, BigDecimal p_initialPosition)
+    {
+        String notchPositionString = String.valueOf(p_notch.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue());
+        BigDecimal initialPositionNanometer = p_initialPosition.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128);
+        
+        return new File(p_outputFolder + "/E" + p_bias + "V/Notch"+notchPositionString+"nm/xi"+String.valueOf(initialPositionNanometer.intValue())+"nm");
+    }
+    
+    /**
+     * @return true if the results of the inputs of this starting position are already written: the result files, or the part files of the blocks of the shard
+     */
+    boolean hasUpToDateResults()
+    {
+        boolean upToDate;
+        
+        if (m_blocks == null)
+        {
+            upToDate = hasUpToDateResults(getResultFolder(m_outputFolder, m_absorber.getBias(), m_absorber.getNotchPosition(), m_initialPosition), m_inputHash);
+        }
+        else
+        {
+            File partFolder = ShardPlan.getPartFolder(m_outputFolder, getKey());
+            upToDate = isTagged(new File(partFolder, "InputHash-"+m_shardName+".txt"), m_inputHash);
+            for (int[] block: m_blocks)
+            {
+                upToDate = upToDate && ShardPlan.getPartFile(partFolder, block).isFile();
+            }
+        }
+        
+        return upToDate;
+    }
+    
+    /**
+     * @param p_resultFolder the result folder of a starting position
+     * @param p_inputHash the hash of the current inputs of the starting position
+     * @return true if the result folder contains the results of these inputs
+     */
+    static boolean hasUpToDateResults(File p_resultFolder, String p_inputHash)
+    {
+        return new File(p_resultFolder, "Exit.sim").isFile() && isTagged(new File(p_resultFolder, INPUT_HASH_FILE), p_inputHash);
+    }
+    
+    /**
+     * @param p_tagFile a file containing the hash of the inputs of some results
+     * @param p_inputHash the hash of the current inputs
+     * @return true if the tag file exists and contains the hash
+     */
+    private static boolean isTagged(File p_tagFile, String p_inputHash)
+    {
+        boolean tagged = false;
+        
+        try
+        {
+            tagged = p_tagFile.isFile() && Files.readString(p_tagFile.toPath(), StandardCharsets.UTF_8).strip().equals(p_inputHash);
+        }
+        catch (IOException ex)
+        {
+            tagged = false;
+        }
+        
+        return tagged;
+    }
+    
+    /**
+     * @return the estimated mean number of steps of the particles, used to schedule the task
+     */
+    double getEstimatedCost()
+    {
+        return m_estimatedCost;
+    }
+    
+    void setEstimatedCost(double p_meanSteps)
+    {
+        m_estimatedCost = p_meanSteps;
+    }
+    
+    /**
+     * Count the steps calculated for the particles of this starting position
+     * @param p_steps the number of steps to add
+     */
+    void addSteps(long p_steps)
+    {
+        m_totalSteps.addAndGet(p_steps);
+    }
+    
+    /**
+     * @return the mean number of steps of the particles calculated so far
+     */
+    double getMeanSteps()
+    {
+        int numberOfParticles = m_monitor != null ? m_launchedParticles : getNumberOfParticles();
+        
+        return numberOfParticles == 0 ? 0 : (double) m_totalSteps.get() / numberOfParticles;
+    }
+    
+    /**
+     * Create a tracker for a block of particles
+     * @param p_numberParticle the number of particles in the block
+     * @return the created tracker, keeping its histories in the store of the simulation if it can reserve its slots there
+     */
+    SimulationTracker createTracker(int p_numberParticle)
+    {
+        return new SimulationTracker(p_numberParticle, m_store, m_exitOnly, m_meanBucketSteps);
+    }
+    
+    /**
+     * Calculate all the particles of the starting position, or only the blocks of the shard
+     * A task cancelled by the scope of its absorber stops at the next step of its particles; if it ends normally all the same, its result is dropped and its trackers give back their slots of the store.
+     * @return the tracker to which all the particles have been logged, or null for a shard, whose blocks are written in their part files by the calculation
+     * @throws UncheckedIOException if the part file of a block cannot be written
+     */
+    @Override
+    protected SimulationTracker compute()
+    {
+        SimulationTracker tracker = null;
+        
+        if (m_monitor != null)
+        {
+            tracker = computeUntilConvergence();
+        }
+        else if (m_blocks == null)
+        {
+            tracker = new ParticleBlockTask(this, 0, m_conditions.getNumberOfParticles()).compute();
+        }
+        else
+        {
+            final File partFolder = ShardPlan.getPartFolder(m_outputFolder, getKey());
+            if (!partFolder.mkdirs() && !partFolder.isDirectory())
+            {
+                throw new UncheckedIOException(new FileSystemException(partFolder.getPath(), null, "Impossible to create the part directory."));
+            }
+            
+            //each block writes its part file and throws its tracker away as soon as it is finished, so that only the blocks being calculated hold a tracker
+            List<RecursiveAction> blockTasks = new ArrayList<>();
+            for (final int[] block: m_blocks)
+            {
+                blockTasks.add(new RecursiveAction()
+                {
+                    private static final long serialVersionUID = 1L;
+                    
+                    @Override
+                    protected void compute()
+                    {
+                        SimulationTracker blockTracker = new ParticleBlockTask(StartingPositionTask.this, block[0], block[1]).compute();
+                        try
+                        {
+                            ShardPlan.writePart(ShardPlan.getPartFile(partFolder, block), m_inputHash, block, blockTracker);
+                        }
+                        catch (IOException ex)
+                        {
+                            throw new UncheckedIOException(ex);
+                        }
+                        finally
+                        {
+                            blockTracker.discard();
+                        }
+                    }
+                });
+            }
+            
+            //the blocks are not cancelled when one of them fails: the part files of the other ones are kept for the next run
+            for (RecursiveAction blockTask: blockTasks)
+            {
+                blockTask.fork();
+            }
+            RecursiveAction failedBlock = null;
+            for (RecursiveAction blockTask: blockTasks)
+            {
+                blockTask.quietlyJoin();
+                if (failedBlock == null && blockTask.isCompletedAbnormally())
+                {
+                    failedBlock = blockTask;
+                }
+            }
+            if (failedBlock != null)
+            {
+                //throws the exception of the failed block
+                failedBlock.join();
+            }
+        }
+        endCalculation(tracker);
+        
+        return tracker;
+    }
+    
+    /**
+     * Tell that the calculation has ended, discarding its result if the task has been cancelled in the meantime since it will never be saved
+     * @param p_tracker the tracker given by the calculation, null for a shard
+     */
+    private void endCalculation(SimulationTracker p_tracker)
+    {
+        synchronized (m_resultLock)
+        {
+            m_calculationEnded = true;
+            m_result = p_tracker;
+            if (isCancelled())
+            {
+                discardResult();
+            }
+        }
+    }
+    
+    /**
+     * Throw away the result of a cancelled task, which will not be saved. The result is only discarded once the calculation has ended, the calculation discarding it at its end otherwise.
+     */
+    void dropResult()
+    {
+        synchronized (m_resultLock)
+        {
+            if (m_calculationEnded)
+            {
+                discardResult();
+            }
+        }
+    }
+    
+    /**
+     * Discard the tracker of the calculation, so that it gives back its slots of the store
+     */
+    private void discardResult()
+    {
+        synchronized (m_resultLock)
+        {
+            if (m_result != null)
+            {
+                m_result.discard();
+                m_result = null;
+            }
+        }
+    }
+    
+    /**
+     * Calculate the blocks of particles in the order of the velocity list until the confidence intervals of the results reach the target precision, or until all the particles are calculated
+     * A few blocks are calculated ahead to keep the workers busy, but the blocks are added to the results one after the other in their order, so the particles used do not depend on the number of workers. The blocks calculated beyond the convergence are thrown away.
+     * @return the tracker of the particles used
+     */
+    private SimulationTracker computeUntilConvergence()
+    {
+        List<int[]> blocks = ParticleBlockTask.leafBlocks(0, m_conditions.getNumberOfParticles(), m_blockSize);
+        int numberAhead = getPool().getParallelism();
+        Deque<ParticleBlockTask> runningBlocks = new ArrayDeque<>();
+        SimulationTracker tracker = null;
+        int nextBlock = 0;
+        
+        try
+        {
+            while (!m_monitor.hasConverged() && (nextBlock < blocks.size() || !runningBlocks.isEmpty()))
+            {
+                while (runningBlocks.size() < numberAhead && nextBlock < blocks.size())
+                {
+                    ParticleBlockTask blockTask = new ParticleBlockTask(this, blocks.get(nextBlock)[0], blocks.get(nextBlock)[1]);
+                    blockTask.fork();
+                    runningBlocks.addLast(blockTask);
+                    m_launchedParticles += blocks.get(nextBlock)[1] - blocks.get(nextBlock)[0];
+                    nextBlock += 1;
+                }
+                
+                SimulationTracker blockTracker = runningBlocks.removeFirst().join();
+                m_monitor.add(blockTracker);
+                if (tracker == null)
+                {
+                    tracker = blockTracker;
+                }
+                else
+                {
+                    tracker.merge(blockTracker);
+                }
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            throwAway(tracker, runningBlocks, ex);
+            throw ex;
+        }
+        
+        throwAway(null, runningBlocks, null);
+        //the particles never launched are counted as done for the progress
+        m_manager.skipCalculations(m_conditions.getNumberOfParticles() - m_launchedParticles);
+        
+        return tracker;
+    }
+    
+    /**
+     * Throw away the blocks that will not be used: the ones not started yet are not calculated, the other ones are waited for and discarded
+     * @param p_tracker a tracker to discard as well, null if there is none
+     * @param p_blocks the blocks to throw away
+     * @param p_failure the exception being thrown, to which the exceptions met are added, or null
+     */
+    private void throwAway(SimulationTracker p_tracker, Deque<ParticleBlockTask> p_blocks, Exception p_failure)
+    {
+        Iterator<ParticleBlockTask> blocks = p_blocks.descendingIterator();
+        while (blocks.hasNext())
+        {
+            ParticleBlockTask blockTask = blocks.next();
+            try
+            {
+                if (blockTask.tryUnfork())
+                {
+                    m_launchedParticles -= blockTask.getNumberOfParticles();
+                }
+                else
+                {
+                    blockTask.join().discard();
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                if (p_failure != null)
+                {
+                    p_failure.addSuppressed(ex);
+                }
+            }
+        }
+        
+        if (p_tracker != null)
+        {
+            p_tracker.discard();
+        }
+    }
+    
+    /**
+     * Write the result files of the starting position, or the tag of the shard whose blocks have all been written in their part files by the calculation
+     * The files are on the disk before returning, so that the run journal never records results that could be lost. The trackers give back their slots of the store afterwards.
+     * @param p_tracker the tracker given by the calculation, null for a shard
+     * @throws FileSystemException if the output folder cannot be created
+     * @throws IOException if the files cannot be written
+     */
+    void save(SimulationTracker p_tracker) throws FileSystemException, IOException
+    {
+        String notchPositionString = String.valueOf(m_absorber.getNotchPosition().divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue());
+        String initialPositionString = String.valueOf(m_initialPosition.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128).intValue());
+        
+        try
+        {
+            if (m_monitor != null)
+            {
+                File resultFolder = getResultFolder(m_outputFolder, m_absorber.getBias(), m_absorber.getNotchPosition(), m_initialPosition);
+                if (!resultFolder.mkdirs() && !resultFolder.isDirectory())
+                {
+                    throw new FileSystemException(resultFolder.getPath(), null, "Impossible to create the output directory.");
+                }
+                m_monitor.saveToFile(resultFolder, CalculationConditions.DT);
+                writeResults(p_tracker, m_outputFolder, m_absorber.getBias(), m_absorber.getNotchPosition(), m_initialPosition, m_conditions.getAbscissaScale(), m_inputHash);
+                m_manager.sendMessage("Calculation ended for E_bias = "+m_absorber.getBias()+", x_notch = "+notchPositionString+"nm and x_init = "+initialPositionString+"nm, "+(m_monitor.hasConverged() ? "target precision reached with " : "target precision not reached with all the ")+m_monitor.getNumberParticle()+" particles.");
+            }
+            else if (m_blocks == null)
+            {
+                writeResults(p_tracker, m_outputFolder, m_absorber.getBias(), m_absorber.getNotchPosition(), m_initialPosition, m_conditions.getAbscissaScale(), m_inputHash);
+                m_manager.sendMessage("Calculation ended for E_bias = "+m_absorber.getBias()+", x_notch = "+notchPositionString+"nm and x_init = "+initialPositionString+"nm.");
+            }
+            else
+            {
+                //the part files of the blocks are already written, the tag tells that the shard is complete
+                File partFolder = ShardPlan.getPartFolder(m_outputFolder, getKey());
+                writeSynced(new File(partFolder, "InputHash-"+m_shardName+".txt"), m_inputHash);
+                m_manager.sendMessage("Calculation of the "+m_blocks.size()+" blocks of shard "+m_shardName+" ended for E_bias = "+m_absorber.getBias()+", x_notch = "+notchPositionString+"nm and x_init = "+initialPositionString+"nm.");
+            }
+        }
+        finally
+        {
+            //the trackers cannot be used anymore once their files are written
+            if (p_tracker != null)
+            {
+                p_tracker.discard();
+            }
+            discardResult();
+        }
+    }
+    
+    /**
+     * Write the result files of a starting position, tagged with the hash of their inputs, and make sure they are on the disk
+     * @param p_tracker the tracker of all the particles of the starting position, which cannot be used afterwards
+     * @param p_outputFolder the output folder of the simulation
+     * @param p_bias the bias voltage of the starting position
+     * @param p_notch the notch position of its absorber
+     * @param p_initialPosition the position of the starting position
+     * @param p_prefix the SI prefix of the abscissa unit
+     * @param p_inputHash the hash of the inputs of the starting position
+     * @throws FileSystemException if the output folder cannot be created
+     * @throws IOException if the files cannot be written
+     */
+    static void writeResults(SimulationTracker p_tracker, String p_outputFolder, String p_bias, BigDecimal p_notch, BigDecimal p_initialPosition, PhysicsTools.UnitsPrefix p_prefix, String p_inputHash) throws FileSystemException, IOException
+    {
+        String notchPositionString = String.valueOf(p_notch.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier()).intValue());
+        BigDecimal initialPositionNanometer = p_initialPosition.divide(PhysicsTools.UnitsPrefix.NANO.getMultiplier(), MathContext.DECIMAL128);
+        File resultFolder = getResultFolder(p_outputFolder, p_bias, p_notch, p_initialPosition);
+        
+        p_tracker.saveToFile(p_outputFolder, p_bias, notchPositionString, initialPositionNanometer, p_prefix);
+        File[] resultFiles = resultFolder.listFiles();
+        if (resultFiles != null)
+        {
+            for (File resultFile: resultFiles)
+            {
+                if (resultFile.isFile() && !resultFile.getName().equals(INPUT_HASH_FILE))
+                {
+                    try (FileChannel resultChannel = FileChannel.open(resultFile.toPath(), StandardOpenOption.WRITE))
+                    {
+                        resultChannel.force(true);
+                    }
+                }
+            }
+        }
+        //the results are tagged with the hash of their inputs once they are on the disk, so that the next runs know what they were calculated from
+        writeSynced(new File(resultFolder, INPUT_HASH_FILE), p_inputHash);
+    }
+    
+    /**
+     * Write a hash in a tag file, and make sure it is on the disk
+     * @param p_tagFile the file to write
+     * @param p_inputHash the hash to write
+     * @throws IOException
+     */
+    private static void writeSynced(File p_tagFile, String p_inputHash) throws IOException
+    {
+        try (FileChannel tagChannel = FileChannel.open(p_tagFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            tagChannel.write(StandardCharsets.UTF_8.encode(p_inputHash+"\n"));
+            tagChannel.force(true);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A group of tasks that are started together and all finished when the scope is closed, so that no task outlives the part of the simulation it belongs to
+ * When the scope cancels on failure, the first task to fail cancels all the other ones, including the tasks registered from other executors (like the calculations of a ForkJoinPool). Otherwise, each task fails alone.
+ * Usage: fork the tasks, join the scope, then close it, ideally in a try-with-resources.
+ * @author Alban Lafuente
+ */
+class TaskScope implements AutoCloseable
+{
+    private final String m_name;
+    private final ExecutorService m_executor;
+    private final boolean m_cancelOnFailure;
+    private final List<Future<?>> m_futures = new ArrayList<>();
+    
+    private Throwable m_failure = null;
+    private boolean m_closed = false;
+    
+    /**
+     * @param p_name the name of the scope, used in the error messages
+     * @param p_executor the executor on which the tasks are forked
+     * @param p_cancelOnFailure true if the failure of a task has to cancel the other tasks of the scope
+     */
+    TaskScope(String p_name, ExecutorService p_executor, boolean p_cancelOnFailure)
+    {
+        m_name = p_name;
+        m_executor = p_executor;
+        m_cancelOnFailure = p_cancelOnFailure;
+    }
+    
+    String getName()
+    {
+        return m_name;
+    }
+    
+    /**
+     * Start a task in the scope
+     * @param <T> the type of the result of the task
+     * @param p_task the task to start
+     * @return the future of the task
+     * @throws IllegalStateException if the scope is already closed
+     */
+    synchronized <T> Future<T> fork(final Callable<T> p_task) throws IllegalStateException
+    {
+        if (m_closed)
+        {
+            throw new IllegalStateException("The task scope "+m_name+" is closed.");
+        }
+        
+        Future<T> future = m_executor.submit(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                try
+                {
+                    return p_task.call();
+                }
+                catch (Exception | Error ex)
+                {
+                    fail(ex);
+                    throw ex;
+                }
+            }
+        });
+        m_futures.add(future);
+        
+        //the scope may have failed while the task was submitted
+        if (m_failure != null && m_cancelOnFailure)
+        {
+            future.cancel(true);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Add a task started elsewhere to the scope, so that it is cancelled with the other tasks of the scope
+     * @param p_future the future of the task
+     */
+    synchronized void register(Future<?> p_future)
+    {
+        m_futures.add(p_future);
+        if ((m_failure != null && m_cancelOnFailure) || m_closed)
+        {
+            p_future.cancel(true);
+        }
+    }
+    
+    /**
+     * Record the failure of a task, cancelling the other tasks if needed
+     * @param p_failure the cause of the failure
+     */
+    private synchronized void fail(Throwable p_failure)
+    {
+        if (m_failure == null)
+        {
+            m_failure = p_failure;
+            if (m_cancelOnFailure)
+            {
+                cancelAll();
+            }
+        }
+    }
+    
+    /**
+     * Cancel all the tasks of the scope that are not finished
+     */
+    synchronized void cancelAll()
+    {
+        for (Future<?> future: m_futures)
+        {
+            if (!future.isDone())
+            {
+                future.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Wait for all the tasks of the scope to be finished or cancelled
+     * @return the first failure of a task, null if none failed
+     * @throws InterruptedException if the waiting thread is interrupted, in which case the tasks are cancelled
+     */
+    Throwable join() throws InterruptedException
+    {
+        List<Future<?>> futures;
+        synchronized (this)
+        {
+            futures = new ArrayList<>(m_futures);
+        }
+        
+        try
+        {
+            for (Future<?> future: futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (CancellationException ex)
+                {
+                    //cancelled because of another task, the cause is already recorded
+                }
+                catch (ExecutionException ex)
+                {
+                    //a task registered from another executor does not go through fork. If it stopped because the simulation was cancelled, it did not fail.
+                    if (!(ex.getCause() instanceof CancellationException))
+                    {
+                        fail(ex.getCause());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            cancelAll();
+            throw ex;
+        }
+        
+        synchronized (this)
+        {
+            return m_failure;
+        }
+    }
+    
+    /**
+     * Close the scope, cancelling the tasks that are still running. No task can be started in the scope afterwards.
+     */
+    @Override
+    public synchronized void close()
+    {
+        m_closed = true;
+        cancelAll();
+    }
+}
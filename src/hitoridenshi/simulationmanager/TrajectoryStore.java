@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores particle histories (position, velocity and acceleration at each step) outside of the Java heap, either in direct buffers or in a scratch file mapped in memory
+ * The store is divided in a fixed number of slots, each able to hold the full history of one particle, so its footprint is known as soon as it is created: numberOfSlots * (maxSteps + 1) * RECORD_SIZE bytes
+ * A single store is shared by all the trackers of a simulation. Each tracker reserves the slots it uses at most when it is created, and keeps its histories on the heap if the store is fully reserved, so the store never runs out of slots whatever the number of trackers alive at the same time
+ * Slots are reference counted, so the same history can be kept by several owners (for instance a particle being both the fastest and the slowest) and is given back only once all of them released it
+ * The values are stored as double: the histories are written with a precision of DECIMAL32, so nothing is lost compared to the BigDecimal of the calculation
+ * @author Alban Lafuente
+ */
+class TrajectoryStore
+{
+    //one record per step: position, velocity and acceleration
+    static final int RECORD_SIZE = 3 * Double.BYTES;
+    
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+    
+    private final int m_slotCapacity;
+    private final ByteBuffer[] m_slots;
+    private final int[] m_referenceCounts;
+    private final int[] m_lengths;
+    private final Deque<Integer> m_freeSlots = new ArrayDeque<>();
+    private final File m_scratchFile;
+    private final RandomAccessFile m_scratchAccess;
+    
+    //the slots reserved by the trackers alive, never more than the number of slots
+    private int m_reservedSlots = 0;
+    private boolean m_freed = false;
+    private boolean m_released = false;
+    
+    static
+    {
+        //the cleaner allows to give back the memory right away instead of waiting for the garbage collector to collect the buffers
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            unsafeField.setAccessible(true);
+            unsafe = unsafeField.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+    
+    /**
+     * Create a store for the given storage type
+     * @param p_storage the type of storage chosen for the simulation
+     * @param p_scratchFolder the folder in which the scratch file will be created if the storage is MAPPED
+     * @param p_numberOfSlots the number of histories that can be stored at the same time
+     * @param p_maxSteps the maximum number of steps of a particle
+     * @return the created store, or null if the histories are to be kept on the heap
+     * @throws FileSystemException
+     * @throws IOException
+     */
+    static TrajectoryStore create(SimulationOptions.TrajectoryStorage p_storage, File p_scratchFolder, int p_numberOfSlots, int p_maxSteps) throws FileSystemException, IOException
+    {
+        TrajectoryStore store;
+        
+        switch (p_storage)
+        {
+            case DIRECT:
+                store = new TrajectoryStore(null, p_numberOfSlots, p_maxSteps);
+                break;
+            case MAPPED:
+                if (!p_scratchFolder.mkdirs() && !p_scratchFolder.isDirectory())
+                {
+                    throw new FileSystemException(p_scratchFolder.getPath(), null, "Impossible to create the scratch directory.");
+                }
+                File scratchFile = File.createTempFile("trajectories", ".tmp", p_scratchFolder);
+                scratchFile.deleteOnExit();
+                store = new TrajectoryStore(scratchFile, p_numberOfSlots, p_maxSteps);
+                break;
+            default:
+                store = null;
+                break;
+        }
+        
+        return store;
+    }
+    
+    /**
+     * Give the number of bytes taken by a store
+     * @param p_numberOfSlots the number of slots of the store
+     * @param p_maxSteps the maximum number of steps of a particle
+     * @return the footprint of the store, in bytes
+     */
+    static long footprint(int p_numberOfSlots, int p_maxSteps)
+    {
+        return (long) p_numberOfSlots * (p_maxSteps + 1) * RECORD_SIZE;
+    }
+    
+    /**
+     * Create a store, in a scratch file if one is given, in direct buffers otherwise
+     * @param p_scratchFile the scratch file to map, or null to use direct buffers
+     * @param p_numberOfSlots the number of histories that can be stored at the same time
+     * @param p_maxSteps the maximum number of steps of a particle
+     * @throws IOException
+     */
+    private TrajectoryStore(File p_scratchFile, int p_numberOfSlots, int p_maxSteps) throws IOException
+    {
+        long slotSize = (long) (p_maxSteps + 1) * RECORD_SIZE;
+        if (slotSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("The particle lifetime is too long to store its history outside of the heap.");
+        }
+        
+        m_slotCapacity = p_maxSteps + 1;
+        m_slots = new ByteBuffer[p_numberOfSlots];
+        m_referenceCounts = new int[p_numberOfSlots];
+        m_lengths = new int[p_numberOfSlots];
+        m_scratchFile = p_scratchFile;
+        
+        if (m_scratchFile != null)
+        {
+            m_scratchAccess = new RandomAccessFile(m_scratchFile, "rw");
+            m_scratchAccess.setLength(slotSize * p_numberOfSlots);
+            FileChannel scratchChannel = m_scratchAccess.getChannel();
+            for (int i = 0 ; i < p_numberOfSlots ; i += 1)
+            {
+                m_slots[i] = scratchChannel.map(FileChannel.MapMode.READ_WRITE, slotSize * i, slotSize);
+            }
+        }
+        else
+        {
+            m_scratchAccess = null;
+            for (int i = 0 ; i < p_numberOfSlots ; i += 1)
+            {
+                m_slots[i] = ByteBuffer.allocateDirect((int) slotSize);
+            }
+        }
+        
+        for (int i = 0 ; i < p_numberOfSlots ; i += 1)
+        {
+            m_freeSlots.add(i);
+        }
+    }
+    
+    /**
+     * Reserve slots for a tracker, so that it never runs out of them while it keeps its histories in the store
+     * @param p_numberOfSlots the number of slots the tracker uses at most at the same time
+     * @return true if the slots are reserved, false if the store is fully reserved or freed
+     */
+    synchronized boolean reserve(int p_numberOfSlots)
+    {
+        boolean reserved = !m_freed && m_reservedSlots + p_numberOfSlots <= m_slots.length;
+        
+        if (reserved)
+        {
+            m_reservedSlots += p_numberOfSlots;
+        }
+        
+        return reserved;
+    }
+    
+    /**
+     * Give back the slots reserved by a tracker, once it has released all its histories
+     * @param p_numberOfSlots the number of slots reserved by the tracker
+     */
+    synchronized void unreserve(int p_numberOfSlots)
+    {
+        m_reservedSlots -= p_numberOfSlots;
+        if (m_freed && m_reservedSlots == 0)
+        {
+            release();
+        }
+    }
+    
+    /**
+     * Reserve an empty slot to write the history of a particle in it
+     * @return the index of the slot
+     * @throws IllegalStateException if all the slots are used
+     */
+    synchronized int acquireSlot() throws IllegalStateException
+    {
+        if (m_released)
+        {
+            throw new IllegalStateException("The trajectory store has already been freed.");
+        }
+        if (m_freeSlots.isEmpty())
+        {
+            throw new IllegalStateException("No slot left in the trajectory store, a tracker used more slots than it reserved.");
+        }
+        
+        int slot = m_freeSlots.poll();
+        m_referenceCounts[slot] = 1;
+        m_lengths[slot] = 0;
+        
+        return slot;
+    }
+    
+    /**
+     * Add an owner to the history stored in the slot
+     * @param p_slot the index of the slot
+     */
+    synchronized void retainSlot(int p_slot)
+    {
+        m_referenceCounts[p_slot] += 1;
+    }
+    
+    /**
+     * Remove an owner of the history stored in the slot, the slot being given back once it has no owner left
+     * @param p_slot the index of the slot
+     */
+    synchronized void releaseSlot(int p_slot)
+    {
+        m_referenceCounts[p_slot] -= 1;
+        if (m_referenceCounts[p_slot] == 0)
+        {
+            m_freeSlots.add(p_slot);
+        }
+    }
+    
+    /**
+     * Write the state of the particle at a given step, the acceleration being the one applied from this step to the next
+     * @param p_slot the index of the slot
+     * @param p_step the step number
+     * @param p_position the position of the particle
+     * @param p_velocity the velocity of the particle
+     * @param p_acceleration the acceleration of the particle
+     */
+    void write(int p_slot, int p_step, double p_position, double p_velocity, double p_acceleration)
+    {
+        if (p_step >= m_slotCapacity)
+        {
+            throw new IndexOutOfBoundsException("Step "+p_step+" is after the end of the particle lifetime.");
+        }
+        
+        ByteBuffer slot = m_slots[p_slot];
+        int offset = p_step * RECORD_SIZE;
+        slot.putDouble(offset, p_position);
+        slot.putDouble(offset + Double.BYTES, p_velocity);
+        slot.putDouble(offset + 2 * Double.BYTES, p_acceleration);
+        m_lengths[p_slot] = Math.max(m_lengths[p_slot], p_step + 1);
+    }
+    
+    /**
+     * Write the acceleration of an already written step
+     * @param p_slot the index of the slot
+     * @param p_step the step number
+     * @param p_acceleration the acceleration applied from this step to the next
+     */
+    void writeAcceleration(int p_slot, int p_step, double p_acceleration)
+    {
+        m_slots[p_slot].putDouble(p_step * RECORD_SIZE + 2 * Double.BYTES, p_acceleration);
+    }
+    
+    /**
+     * @param p_slot the index of the slot
+     * @return the number of steps written in the slot
+     */
+    int getLength(int p_slot)
+    {
+        return m_lengths[p_slot];
+    }
+    
+    double getPosition(int p_slot, int p_step)
+    {
+        return m_slots[p_slot].getDouble(p_step * RECORD_SIZE);
+    }
+    
+    double getVelocity(int p_slot, int p_step)
+    {
+        return m_slots[p_slot].getDouble(p_step * RECORD_SIZE + Double.BYTES);
+    }
+    
+    double getAcceleration(int p_slot, int p_step)
+    {
+        return m_slots[p_slot].getDouble(p_step * RECORD_SIZE + 2 * Double.BYTES);
+    }
+    
+    /**
+     * Give back all the memory used by the store and delete its scratch file, once the trackers still holding reservations have released them. No slot can be reserved afterwards.
+     */
+    synchronized void free()
+    {
+        if (!m_freed)
+        {
+            m_freed = true;
+            //a tracker still holding a reservation can be writing in its slots
+            if (m_reservedSlots == 0)
+            {
+                release();
+            }
+        }
+    }
+    
+    /**
+     * Give back the buffers of the slots and delete the scratch file
+     */
+    private void release()
+    {
+        if (!m_released)
+        {
+            m_released = true;
+            m_freeSlots.clear();
+            
+            for (int i = 0 ; i < m_slots.length ; i += 1)
+            {
+                if (INVOKE_CLEANER != null)
+                {
+                    try
+                    {
+                        INVOKE_CLEANER.invoke(UNSAFE, m_slots[i]);
+                    }
+                    catch (ReflectiveOperationException | RuntimeException ex)
+                    {
+                        //the buffer will be given back by the garbage collector instead
+                    }
+                }
+                m_slots[i] = null;
+            }
+            
+            if (m_scratchAccess != null)
+            {
+                try
+                {
+                    m_scratchAccess.close();
+                }
+                catch (IOException ex)
+                {
+                    //the file is deleted at the exit of the program instead
+                    Logger.getLogger(TrajectoryStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                m_scratchFile.delete();
+            }
+        }
+    }
+}
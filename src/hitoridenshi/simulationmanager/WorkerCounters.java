@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One counter per worker, each on its own cache line so that workers incrementing their counter never slow each other down
+ * A worker only writes its own counter, so the increments are not contended. They are atomic all the same, as several threads of a pool can share a worker ID when the pool adds threads to compensate for blocked ones.
+ * @author Alban Lafuente
+ */
+class WorkerCounters
+{
+    //16 longs are 128 bytes, covering the cache line and the adjacent line prefetched with it
+    private static final int STRIDE = 16;
+    
+    private final AtomicLongArray m_counters;
+    private final int m_numberOfWorkers;
+    
+    WorkerCounters(int p_numberOfWorkers)
+    {
+        m_numberOfWorkers = p_numberOfWorkers;
+        //one more stride so that the first counter does not share its line with the header of the array
+        m_counters = new AtomicLongArray((p_numberOfWorkers + 1) * STRIDE);
+    }
+    
+    void add(int p_worker, long p_value)
+    {
+        m_counters.addAndGet((p_worker + 1) * STRIDE, p_value);
+    }
+    
+    long get(int p_worker)
+    {
+        return m_counters.get((p_worker + 1) * STRIDE);
+    }
+    
+    /**
+     * @return the sum of the counters of all the workers
+     */
+    long sum()
+    {
+        long sum = 0;
+        
+        for (int i = 0 ; i < m_numberOfWorkers ; i += 1)
+        {
+            sum += get(i);
+        }
+        
+        return sum;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the precision documented in MeanAccumulator against an accumulation in BigDecimal with DECIMAL128 rounding
+ * The histories are random walks of different lengths, the short ones being padded with their last value as in the simulation.
+ * The bound on the variance grows with the condition number, not with its square as for a sum of squares: a badly conditioned set of values checks that the naive accumulation breaks it.
+ * @author Alban Lafuente
+ */
+public class MeanAccumulatorTest
+{
+    private static final int NUMBER_OF_SERIES = 2000;
+    private static final int MAXIMUM_LENGTH = 500;
+    private static final double EPSILON = Math.ulp(1.0) / 2;
+    //a million times more offset than spread, like positions far from the origin of the absorber spreading by a picometer
+    private static final double OFFSET = 1e-6;
+    private static final double SPREAD = 1e-12;
+    private static final int NUMBER_OF_VALUES = 20000;
+    
+    /**
+     * @return random walks around a micrometer, like the positions of the particles, of random lengths
+     */
+    private static double[][] randomSeries(long p_seed)
+    {
+        Random random = new Random(p_seed);
+        double[][] series = new double[NUMBER_OF_SERIES][];
+        
+        for (int k = 0 ; k < NUMBER_OF_SERIES ; k += 1)
+        {
+            series[k] = new double[1 + random.nextInt(MAXIMUM_LENGTH)];
+            double value = 1e-6 + random.nextGaussian() * 1e-9;
+            for (int i = 0 ; i < series[k].length ; i += 1)
+            {
+                value += random.nextGaussian() * 1e-10;
+                series[k][i] = value;
+            }
+        }
+        
+        return series;
+    }
+    
+    private static void accumulate(MeanAccumulator p_accumulator, double[] p_series, double p_weight)
+    {
+        for (int i = 0 ; i < p_series.length ; i += 1)
+        {
+            p_accumulator.addSample(i, p_series[i], p_weight);
+        }
+        p_accumulator.endSeries(p_series.length, p_series[p_series.length - 1], p_weight);
+    }
+    
+    /**
+     * Compare the mean and the variance of each bucket to the BigDecimal ones, within the bounds given in the documentation of MeanAccumulator
+     * @param p_result the result of MeanAccumulator.summarize
+     * @param p_series the histories
+     * @param p_weights the weight of each history
+     * @param p_bucketSteps the number of steps in each bucket
+     */
+    private static void assertWithinBounds(double[][] p_result, double[][] p_series, double[] p_weights, int p_bucketSteps)
+    {
+        int longest = 0;
+        for (double[] series: p_series)
+        {
+            longest = Math.max(longest, series.length);
+        }
+        
+        //the last bucket can be incomplete
+        for (int bucket = 0 ; bucket < longest / p_bucketSteps ; bucket += 1)
+        {
+            BigDecimal weight = BigDecimal.ZERO;
+            BigDecimal sum = BigDecimal.ZERO;
+            double maximum = 0;
+            for (int k = 0 ; k < p_series.length ; k += 1)
+            {
+                for (int i = bucket * p_bucketSteps ; i < (bucket + 1) * p_bucketSteps ; i += 1)
+                {
+                    double value = p_series[k][Math.min(i, p_series[k].length - 1)];
+                    weight = weight.add(new BigDecimal(p_weights[k]));
+                    sum = sum.add(new BigDecimal(p_weights[k]).multiply(new BigDecimal(value)));
+                    maximum = Math.max(maximum, Math.abs(value));
+                }
+            }
+            BigDecimal mean = sum.divide(weight, MathContext.DECIMAL128);
+            BigDecimal squaredDeviations = BigDecimal.ZERO;
+            for (int k = 0 ; k < p_series.length ; k += 1)
+            {
+                for (int i = bucket * p_bucketSteps ; i < (bucket + 1) * p_bucketSteps ; i += 1)
+                {
+                    BigDecimal deviation = new BigDecimal(p_series[k][Math.min(i, p_series[k].length - 1)]).subtract(mean);
+                    squaredDeviations = squaredDeviations.add(new BigDecimal(p_weights[k]).multiply(deviation).multiply(deviation));
+                }
+            }
+            double variance = squaredDeviations.divide(weight.subtract(BigDecimal.ONE), MathContext.DECIMAL128).doubleValue();
+            double values = weight.doubleValue();
+            
+            assertEquals("mean of bucket "+bucket, mean.doubleValue(), p_result[0][bucket], values * EPSILON * maximum);
+            assertEquals("variance of bucket "+bucket, variance, p_result[1][bucket] * p_result[1][bucket], varianceBound(values, mean.doubleValue(), variance));
+        }
+    }
+    
+    /**
+     * @return the bound on the error of the variance documented in MeanAccumulator
+     */
+    private static double varianceBound(double p_values, double p_mean, double p_variance)
+    {
+        return p_values * EPSILON * p_variance * Math.sqrt(1 + p_mean * p_mean / p_variance);
+    }
+    
+    @Test
+    public void testStepsMatchBigDecimal()
+    {
+        double[][] series = randomSeries(1);
+        double[] weights = new double[series.length];
+        MeanAccumulator accumulator = new MeanAccumulator(1);
+        
+        for (int k = 0 ; k < series.length ; k += 1)
+        {
+            weights[k] = 1;
+            accumulate(accumulator, series[k], 1);
+        }
+        
+        assertWithinBounds(accumulator.summarize(), series, weights, 1);
+    }
+    
+    @Test
+    public void testWeightsMatchBigDecimal()
+    {
+        double[][] series = randomSeries(2);
+        double[] weights = new double[series.length];
+        Random random = new Random(3);
+        MeanAccumulator accumulator = new MeanAccumulator(1);
+        
+        for (int k = 0 ; k < series.length ; k += 1)
+        {
+            weights[k] = 0.1 + 2 * random.nextDouble();
+            accumulate(accumulator, series[k], weights[k]);
+        }
+        
+        assertWithinBounds(accumulator.summarize(), series, weights, 1);
+    }
+    
+    @Test
+    public void testBucketsMatchBigDecimal()
+    {
+        double[][] series = randomSeries(4);
+        double[] weights = new double[series.length];
+        MeanAccumulator accumulator = new MeanAccumulator(10);
+        
+        for (int k = 0 ; k < series.length ; k += 1)
+        {
+            weights[k] = 1;
+            accumulate(accumulator, series[k], 1);
+        }
+        
+        assertWithinBounds(accumulator.summarize(), series, weights, 10);
+    }
+    
+    @Test
+    public void testMergeMatchesBigDecimal()
+    {
+        double[][] series = randomSeries(5);
+        double[] weights = new double[series.length];
+        MeanAccumulator first = new MeanAccumulator(1);
+        MeanAccumulator second = new MeanAccumulator(1);
+        
+        for (int k = 0 ; k < series.length ; k += 1)
+        {
+            weights[k] = 1;
+            accumulate(k < series.length / 3 ? first : second, series[k], 1);
+        }
+        first.merge(second);
+        
+        assertEquals(NUMBER_OF_SERIES, first.getNumberOfSeries());
+        assertWithinBounds(first.summarize(), series, weights, 1);
+    }
+    
+    /**
+     * Values with a tiny spread around a large offset, for which the sum of the squares loses the variance while Welford's algorithm keeps it
+     */
+    @Test
+    public void testBadlyConditionedVarianceBeatsNaiveSum()
+    {
+        Random random = new Random(6);
+        double[][] series = new double[NUMBER_OF_VALUES][1];
+        double[] weights = new double[NUMBER_OF_VALUES];
+        MeanAccumulator accumulator = new MeanAccumulator(1);
+        double sum = 0;
+        double squaredSum = 0;
+        
+        for (int k = 0 ; k < NUMBER_OF_VALUES ; k += 1)
+        {
+            series[k][0] = OFFSET + random.nextGaussian() * SPREAD;
+            weights[k] = 1;
+            accumulate(accumulator, series[k], 1);
+            sum += series[k][0];
+            squaredSum += series[k][0] * series[k][0];
+        }
+        assertWithinBounds(accumulator.summarize(), series, weights, 1);
+        
+        BigDecimal exactSum = BigDecimal.ZERO;
+        for (double[] value: series)
+        {
+            exactSum = exactSum.add(new BigDecimal(value[0]));
+        }
+        BigDecimal mean = exactSum.divide(new BigDecimal(NUMBER_OF_VALUES), MathContext.DECIMAL128);
+        BigDecimal squaredDeviations = BigDecimal.ZERO;
+        for (double[] value: series)
+        {
+            BigDecimal deviation = new BigDecimal(value[0]).subtract(mean);
+            squaredDeviations = squaredDeviations.add(deviation.multiply(deviation));
+        }
+        double variance = squaredDeviations.divide(new BigDecimal(NUMBER_OF_VALUES - 1), MathContext.DECIMAL128).doubleValue();
+        double naiveVariance = (squaredSum - sum * sum / NUMBER_OF_VALUES) / (NUMBER_OF_VALUES - 1);
+        
+        assertTrue("the naive variance has to miss the bound for the test to check anything", Math.abs(naiveVariance - variance) > varianceBound(NUMBER_OF_VALUES, mean.doubleValue(), variance));
+    }
+}
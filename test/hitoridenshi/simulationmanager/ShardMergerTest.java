@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import commonutils.PhysicsTools;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that the shards of a simulation, once merged by ShardMerger, give the same files as the simulation run on a single node
+ * @author Alban Lafuente
+ */
+public class ShardMergerTest
+{
+    private static final String FIELD_FOLDER = "ConfigurationFiles/SCAPS-1D_Files";
+    private static final int NUMBER_OF_PARTICLES = 48;
+    private static final String BLOCK_SIZE = "6";
+    private static final int NUMBER_OF_SHARDS = 3;
+    
+    private static final ProgressNotifierInterface SILENT = new ProgressNotifierInterface()
+    {
+        @Override
+        public void updateProgress(int p_workerID, double p_workerProgress, double p_globalProgress)
+        {
+        }
+        
+        @Override
+        public void sendMessage(String p_message)
+        {
+        }
+    };
+    
+    /**
+     * Each shard calculates some blocks of particles and the merge adds them up in the order of the velocity list, so every result file is byte for byte the one of the single node run
+     */
+    @Test
+    public void testMergedShardsMatchSingleNode() throws Exception
+    {
+        File singleFolder = Files.createTempDirectory("single").toFile();
+        File shardedFolder = Files.createTempDirectory("sharded").toFile();
+        
+        try
+        {
+            new SimulationManager(FIELD_FOLDER, singleFolder.getPath(), createConditions(), createOptions(null), SILENT).start().get();
+            for (int i = 0 ; i < NUMBER_OF_SHARDS ; i += 1)
+            {
+                new SimulationManager(FIELD_FOLDER, shardedFolder.getPath(), createConditions(), createOptions(i+"/"+NUMBER_OF_SHARDS), SILENT).start().get();
+            }
+            new ShardMerger(shardedFolder.getPath(), createConditions(), createOptions(null), SILENT).run();
+            
+            List<Path> singleFiles = listResultFiles(new File(singleFolder, "E0.7V").toPath());
+            assertTrue("The single node run wrote no result.", !singleFiles.isEmpty());
+            for (Path singleFile: singleFiles)
+            {
+                Path mergedFile = shardedFolder.toPath().resolve(singleFolder.toPath().relativize(singleFile));
+                assertTrue(mergedFile+" has not been written by the merge.", Files.isRegularFile(mergedFile));
+                assertTrue(mergedFile+" differs from the single node run.", Arrays.equals(Files.readAllBytes(singleFile), Files.readAllBytes(mergedFile)));
+            }
+        }
+        finally
+        {
+            delete(singleFolder.toPath());
+            delete(shardedFolder.toPath());
+        }
+    }
+    
+    /**
+     * @return the conditions of a short simulation of the sample absorber, from two starting positions
+     */
+    private static CalculationConditions createConditions()
+    {
+        return new CalculationConditions(true, false, PhysicsTools.UnitsPrefix.selectPrefix("um"), NUMBER_OF_PARTICLES, new BigDecimal("0.089"), new BigDecimal("0.005"), new BigDecimal("0.5"), new BigDecimal("2.5"), new BigDecimal("1.3"), new BigDecimal("1.2"), new BigDecimal("1.3"), "0.7", "1.7", "0.05");
+    }
+    
+    /**
+     * @param p_shard the shard to calculate, written i/N, or null to calculate all the blocks
+     * @return the options of the simulation, keeping the histories in a mapped store so that the trackers of the shards go through it
+     */
+    private static SimulationOptions createOptions(String p_shard)
+    {
+        Properties properties = new Properties();
+        properties.setProperty("velocity_block_size", BLOCK_SIZE);
+        properties.setProperty("trajectory_storage", "mapped");
+        if (p_shard != null)
+        {
+            properties.setProperty("shard", p_shard);
+        }
+        
+        return new SimulationOptions(properties);
+    }
+    
+    /**
+     * @param p_folder a folder of results
+     * @return all the files under the folder
+     * @throws IOException
+     */
+    private static List<Path> listResultFiles(Path p_folder) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        
+        try (Stream<Path> paths = Files.walk(p_folder))
+        {
+            files.addAll(paths.filter(Files::isRegularFile).collect(Collectors.toList()));
+        }
+        
+        return files;
+    }
+    
+    /**
+     * Delete a folder and everything under it
+     * @param p_folder the folder to delete
+     * @throws IOException
+     */
+    private static void delete(Path p_folder) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(p_folder))
+        {
+            for (Path path: paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(path);
+            }
+        }
+    }
+}
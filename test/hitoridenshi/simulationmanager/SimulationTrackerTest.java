@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Alban Lafuente
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package hitoridenshi.simulationmanager;
+
+import commonutils.PhysicsTools;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the mean movements written by SimulationTracker, on particles of the sample absorber of the configuration files
+ * @author Alban Lafuente
+ */
+public class SimulationTrackerTest
+{
+    private static final String FIELD_FILE = "ConfigurationFiles/SCAPS-1D_Files/E0.7V_N1700nm.eb";
+    private static final int PARTICLES_PER_SIDE = 6;
+    
+    /**
+     * The mean movement to a side is divided by the number of particles collected at this side, not by the number of particles: its last position is the one of the exit
+     */
+    @Test
+    public void testSideMeansAreDividedBySideCounts() throws DataFormatException, IOException
+    {
+        PhysicsTools.UnitsPrefix prefix = PhysicsTools.UnitsPrefix.selectPrefix("um");
+        CalculationConditions conditions = new CalculationConditions(true, false, prefix, 3 * PARTICLES_PER_SIDE, new BigDecimal("0.089"), new BigDecimal("0.005"), new BigDecimal("0.5"), new BigDecimal("2.5"), new BigDecimal("1.3"), new BigDecimal("1.2"), new BigDecimal("1.3"), "0.7", "1.7", "0.05");
+        BigDecimal notch = conditions.getNotchPositionArray().get(0);
+        Absorber absorber = new Absorber(ContinuousFunction.createElectricFieldFromSCAPS(new File(FIELD_FILE), conditions.getAbscissaMultiplier()), "0.7", notch, conditions);
+        BigDecimal front = absorber.getFrontPosition();
+        BigDecimal back = absorber.getBackPosition();
+        BigDecimal towardsFront = new BigDecimal(front.compareTo(back) > 0 ? "3e5" : "-3e5");
+        BigDecimal startingDistance = new BigDecimal("2e-8");
+        
+        //particles starting close to each exit and thrown towards it, and particles starting at the notch
+        List<Particle> particles = new ArrayList<>();
+        for (int i = 0 ; i < PARTICLES_PER_SIDE ; i += 1)
+        {
+            BigDecimal shift = new BigDecimal(i).multiply(new BigDecimal("1e-9"));
+            particles.add(new Particle(conditions.getParticleParameters(), front.add(back.subtract(front).signum() > 0 ? startingDistance.add(shift) : startingDistance.add(shift).negate()), towardsFront.multiply(new BigDecimal(i + 1))));
+            particles.add(new Particle(conditions.getParticleParameters(), back.add(front.subtract(back).signum() > 0 ? startingDistance.add(shift) : startingDistance.add(shift).negate()), towardsFront.negate().multiply(new BigDecimal(i + 1))));
+            particles.add(new Particle(conditions.getParticleParameters(), notch.add(shift), BigDecimal.ZERO));
+        }
+        
+        SimulationTracker tracker = new SimulationTracker(particles.size());
+        BigDecimal frontSum = BigDecimal.ZERO;
+        BigDecimal backSum = BigDecimal.ZERO;
+        int frontCount = 0;
+        int backCount = 0;
+        for (Particle particle: particles)
+        {
+            while (!particle.isCollected() && particle.getHistoryLength() <= conditions.getMaxSteps())
+            {
+                particle.applyExteriorFields(absorber, CalculationConditions.DT);
+            }
+            if (particle.getCollection() == Particle.CollectionState.FRONT)
+            {
+                frontSum = frontSum.add(particle.getCurrentPosition());
+                frontCount += 1;
+            }
+            else if (particle.getCollection() == Particle.CollectionState.BACK)
+            {
+                backSum = backSum.add(particle.getCurrentPosition());
+                backCount += 1;
+            }
+            tracker.logParticle(particle, absorber, 1);
+        }
+        assertTrue("particles have to exit at both sides", frontCount > 0 && backCount > 0 && frontCount + backCount < particles.size());
+        
+        File outputFolder = Files.createTempDirectory("tracker").toFile();
+        tracker.saveToFile(outputFolder.getPath(), "0.7", "1700", new BigDecimal(50), prefix);
+        File resultFolder = new File(outputFolder, "E0.7V/Notch1700nm/xi50nm");
+        
+        double unit = prefix.getMultiplier().doubleValue();
+        assertEquals(frontSum.divide(new BigDecimal(frontCount), MathContext.DECIMAL128).doubleValue() / unit, lastPosition(new File(resultFolder, "MeanMovementToFront.sim")), 1e-6 * front.abs().add(back.abs()).doubleValue() / unit);
+        assertEquals(backSum.divide(new BigDecimal(backCount), MathContext.DECIMAL128).doubleValue() / unit, lastPosition(new File(resultFolder, "MeanMovementToBack.sim")), 1e-6 * front.abs().add(back.abs()).doubleValue() / unit);
+    }
+    
+    /**
+     * @return the position of the last line of a mean movement file
+     */
+    private static double lastPosition(File p_file) throws IOException
+    {
+        List<String> lines = Files.readAllLines(p_file.toPath());
+        
+        return Double.parseDouble(lines.get(lines.size() - 1).split("\t")[1]);
+    }
+}